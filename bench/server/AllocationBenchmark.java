@@ -0,0 +1,113 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Defines a benchmark of the garbage made by one keep-alive request on the cached-hit path
+ * Each invocation runs what ThreadHandler runs for a request after the first on a connection: the connection's
+ * parser and response object are reused and the response goes out through a pooled output buffer
+ * Run it with "-prof gc" (as "make bench" does) and read gc.alloc.rate.norm, the bytes allocated per request:
+ * a request for the file as stored allocates nothing, and a gzip request only the Accept-Encoding value
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AllocationBenchmark {
+    @Param({"identity", "gzip"})
+    public String encoding;
+
+    private Path documentRoot;
+    private Command command;
+    private HttpRequestParser parser;
+    private ByteArrayInputStream input;
+    private PooledOutputStream output;
+    private HttpResponse response;
+
+    @Setup
+    public void setUp() throws IOException {
+        documentRoot = Files.createTempDirectory("allocation-bench");
+        byte[] page = new byte[4096];
+        Arrays.fill(page, (byte) 'x');
+        Files.write(documentRoot.resolve("index.html"), page);
+
+        ServerContext context = new ServerContext(ServerConfig.parse(new String[] {
+                "-document_root", documentRoot.toString(), "-metrics", "off"}));
+        command = new GetCommand(context);
+        parser = new HttpRequestParser();
+        input = new ByteArrayInputStream(("GET /index.html HTTP/1.1\r\n"
+                + "Host: localhost:8888\r\n"
+                + "User-Agent: curl/8.4.0\r\n"
+                + "Accept: */*\r\n"
+                + ("gzip".equals(encoding) ? "Accept-Encoding: gzip, deflate, br\r\n" : "")
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        output = new PooledOutputStream(context.getBufferPool(), new DiscardingChannel(), 16 * 1024);
+        response = new HttpResponse(output);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        output.close();
+        Files.deleteIfExists(documentRoot.resolve("index.html"));
+        Files.deleteIfExists(documentRoot);
+    }
+
+    /**
+     * Defines a benchmark of one request answered from the content cache
+     */
+    @Benchmark
+    public HttpResponse serveCachedHit() throws Exception {
+        input.reset();
+        HttpRequest request = parser.parseRequest(input);
+
+        response.reset();
+        response.setKeepAlive(request.isKeepAlive());
+        command.execute(HttpUtil.resolveDefaultPage(request), response);
+        output.flush();
+        return response;
+    }
+
+    /**
+     * Defines a channel that accepts and drops every byte, standing in for the socket
+     */
+    private static final class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer source) {
+            int count = source.remaining();
+            source.position(source.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
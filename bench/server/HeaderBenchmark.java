@@ -0,0 +1,79 @@
+package server;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Defines a benchmark of building response headers and looking up content types
+ * constructHeader is the String form kept for callers outside the server; encodeResponse is what
+ * ResponseWriter runs for every response, with the validators and range headers a real GET carries
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    private static final String[] PATHS = {
+            "/index.html", "/css/style.css", "/js/app.js", "/images/logo.png", "/images/photo.jpg",
+            "/images/icon.svg", "/robots.txt", "/images/spinner.gif", "/fonts/inter.woff2"
+    };
+
+    private HeaderEncoder encoder;
+    private HttpResponse response;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        encoder = new HeaderEncoder();
+        response = new HttpResponse(OutputStream.nullOutputStream());
+        response.setStatus(200, "OK");
+        response.setContentType("text/css");
+        response.setContentLength(18_432);
+        response.setResourceLength(18_432);
+        response.setKeepAlive(true);
+        response.setETag(HttpUtil.createETag(18_432, 1_699_092_942_000L, "gzip"));
+        response.setLastModified(1_699_092_942_000L);
+        response.setAcceptRanges(true);
+        response.setContentEncoding("gzip");
+        response.setVaryAcceptEncoding(true);
+    }
+
+    /**
+     * Defines a benchmark of the String header builder
+     */
+    @Benchmark
+    public String constructHeader() {
+        return HttpUtil.constructHeader(200, "OK", "HTTP/1.1", "text/html", 18_432, true);
+    }
+
+    /**
+     * Defines a benchmark of encoding a full response header into the reused buffer
+     */
+    @Benchmark
+    public int encodeResponse() {
+        return encoder.encode(response).getLength();
+    }
+
+    /**
+     * Defines a benchmark of the extension and media type lookup done for every file
+     */
+    @Benchmark
+    public void getContentType(Blackhole blackhole) {
+        String path = PATHS[next++ % PATHS.length];
+        blackhole.consume(HttpUtil.getContentType(HttpUtil.getExtension(path)));
+    }
+}
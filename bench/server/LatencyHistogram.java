@@ -0,0 +1,107 @@
+package server;
+
+/**
+ * Defines a class that records latencies into log-linear buckets, in the style of HdrHistogram
+ * Every power of two is split into 64 buckets, so any recorded value is reported within 1.6% of its
+ * true value while the whole range from 1 ns to hours fits in a few thousand counters
+ * A histogram is not thread safe; each load thread records into its own and they are added together at the end
+ */
+public class LatencyHistogram {
+    // Values below 2^SUB_BUCKET_BITS get a bucket each; above, each power of two gets HALF_COUNT buckets
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_COUNT + HALF_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    /**
+     * Defines a method that records one value
+     * @param value is the latency in nanoseconds (negative values are recorded as 0)
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Defines a method that adds every value recorded by another histogram to this one
+     * @param other is the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Defines a method to get the number of recorded values
+     * @return the count
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Defines a method to get the largest recorded value
+     * @return the exact maximum
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Defines a method to get the mean of the recorded values
+     * @return the mean, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        return (totalCount == 0) ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * Defines a method that finds the value at a percentile
+     * @param percentile is between 0 and 100 (ex. 99.9)
+     * @return the highest value equivalent to the one at that percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Defines a method that finds the bucket of a value
+     * Values below SUB_BUCKET_COUNT map to themselves; larger values keep their top 7 bits
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Defines a method that finds the largest value that lands in a bucket
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int shift = index / HALF_COUNT - 1;
+        long subBucket = index - (long) shift * HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
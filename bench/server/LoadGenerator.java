@@ -0,0 +1,540 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Defines a self-contained load test: it starts Server in this JVM on a free loopback port, serving a
+ * generated document root, then drives it from many client connections and reports throughput and
+ * latency percentiles
+ * Options use the server's "-name value" form; every option is also passed on to the server, so the
+ * same command line compares engines and caches (ex. -engine nio -cache_bytes 0)
+ *   -connections N        concurrent client connections (64)
+ *   -duration N           seconds measured (10), after -warmup N seconds (3) that are not recorded
+ *   -requests_per_connection N   requests sent before a connection is replaced (0 keeps it open)
+ *   -mix small=N,large=N,notfound=N,bad=N   relative weights of the request kinds (80,10,8,2)
+ *   -large_bytes N        size of the large binary file (1 MB)
+ *   -tls on               serve HTTPS with a self-signed certificate made by keytool, to compare with plaintext;
+ *                         -requests_per_connection 1 measures handshakes per second, and -tls_resume off makes
+ *                         every handshake a full one instead of resuming the client's last session
+ * Each connection sends its next request as soon as the previous response arrives (a closed loop),
+ * so latency under overload is understated; compare runs at the same concurrency
+ */
+public class LoadGenerator {
+    // The kinds of request in the mix, in the order of the -mix weights
+    private static final String[] KINDS = {"small", "large", "notfound", "bad"};
+    private static final int SMALL = 0;
+    private static final int LARGE = 1;
+    private static final int NOT_FOUND = 2;
+    private static final int BAD = 3;
+    private static final String[] SMALL_PATHS = {"/index.html", "/style.css", "/app.js", "/notes.txt"};
+    private static final String KEYSTORE_PASSWORD = "changeit";
+
+    private final String[] serverArgs;
+    private final int connections;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int requestsPerConnection;
+    private final int[] cumulativeWeights;
+    private final long largeBytes;
+    private final boolean tls;
+    private final boolean resumeSessions;
+
+    private int port;
+    private byte[][] smallRequests;
+    private byte[] largeRequest;
+    private byte[] notFoundRequest;
+    private byte[] badRequest;
+    private Path keystore;
+    private SSLContext clientContext;
+
+    // Set by the main thread, read by the load threads
+    private volatile boolean recording;
+    private volatile boolean stopped;
+
+    // Results, counted only while recording
+    private final AtomicLongArray statusCounts = new AtomicLongArray(600);
+    private final AtomicLongArray kindCounts = new AtomicLongArray(KINDS.length);
+    private final LatencyHistogram[] histograms;
+    private final long[] bytesReceived;
+    private final long[] errors;
+    private final long[] reconnects;
+
+    /**
+     * Defines a constructor that reads the load test options
+     * @param args are the command line arguments, also handed to the server
+     */
+    public LoadGenerator(String[] args) {
+        ServerConfig config = ServerConfig.parse(args);
+        this.serverArgs = args;
+        this.connections = Math.max(1, config.getInt("connections", 64));
+        this.warmupNanos = config.getLong("warmup", 3) * 1_000_000_000L;
+        this.durationNanos = Math.max(1, config.getLong("duration", 10)) * 1_000_000_000L;
+        this.requestsPerConnection = Math.max(0, config.getInt("requests_per_connection", 0));
+        this.cumulativeWeights = parseMix(config.getString("mix", "small=80,large=10,notfound=8,bad=2"));
+        this.largeBytes = config.getLong("large_bytes", 1024 * 1024);
+        this.tls = "on".equalsIgnoreCase(config.getString("tls", "off"));
+        this.resumeSessions = !"off".equalsIgnoreCase(config.getString("tls_resume", "on"));
+        this.histograms = new LatencyHistogram[connections];
+        this.bytesReceived = new long[connections];
+        this.errors = new long[connections];
+        this.reconnects = new long[connections];
+    }
+
+    /**
+     * Defines the main method that runs one load test and prints its report
+     * @param args are the options described on the class
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        generator.run();
+        // The in-process server has no shutdown hook
+        System.exit(0);
+    }
+
+    /**
+     * Defines a method that starts the server, applies the load and prints the results
+     * @throws Exception if the document root cannot be generated or the server does not start
+     */
+    public void run() throws Exception {
+        Path documentRoot = createDocumentRoot();
+        port = findFreePort();
+        if (tls) {
+            keystore = createKeystore();
+            clientContext = newClientContext();
+        }
+        startServer(documentRoot);
+        buildRequests();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            int id = i;
+            histograms[i] = new LatencyHistogram();
+            Thread thread = new Thread(() -> drive(id), "load-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread.sleep(warmupNanos / 1_000_000);
+        long start = System.nanoTime();
+        recording = true;
+        Thread.sleep(durationNanos / 1_000_000);
+        recording = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.join(2000);
+        }
+
+        report(elapsed);
+        deleteDocumentRoot(documentRoot);
+        if (keystore != null) deleteDocumentRoot(keystore.getParent());
+    }
+
+    /**
+     * Defines a method run by each load thread: one connection at a time, one request at a time
+     * @param id is the index of this thread's histogram and counters
+     */
+    private void drive(int id) {
+        LatencyHistogram histogram = histograms[id];
+        byte[] skipBuffer = new byte[64 * 1024];
+        Socket socket = null;
+        int sentOnSocket = 0;
+
+        while (!stopped) {
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress("127.0.0.1", port));
+                    if (tls) {
+                        // A client context keeps the sessions it made, so its next connection resumes one
+                        SSLContext context = resumeSessions ? clientContext : newClientContext();
+                        SSLSocket secure = (SSLSocket) context.getSocketFactory()
+                                .createSocket(socket, "127.0.0.1", port, true);
+                        socket = secure;
+                        secure.startHandshake();
+                    }
+                    sentOnSocket = 0;
+                    if (recording) reconnects[id]++;
+                }
+                InputStream input = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                OutputStream output = socket.getOutputStream();
+                boolean keepOpen = true;
+
+                while (keepOpen && !stopped) {
+                    int kind = pickKind();
+                    boolean measured = recording;
+                    long sent = System.nanoTime();
+                    output.write(requestFor(kind));
+                    output.flush();
+
+                    Response response = readResponse(input, skipBuffer);
+                    long latency = System.nanoTime() - sent;
+                    sentOnSocket++;
+
+                    if (measured && recording) {
+                        histogram.record(latency);
+                        statusCounts.incrementAndGet(Math.min(response.status, statusCounts.length() - 1));
+                        kindCounts.incrementAndGet(kind);
+                        bytesReceived[id] += response.bytes;
+                    }
+                    keepOpen = !response.closes
+                            && (requestsPerConnection == 0 || sentOnSocket < requestsPerConnection);
+                }
+                closeQuietly(socket);
+                socket = null;
+            } catch (IOException | GeneralSecurityException e) {
+                if (recording) errors[id]++;
+                closeQuietly(socket);
+                socket = null;
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Defines a class for the parts of a response the report needs
+     */
+    private static final class Response {
+        int status;
+        long bytes;
+        boolean closes;
+    }
+
+    /**
+     * Defines a method that reads one response: the status line, the headers and Content-Length body bytes
+     * @throws IOException if the connection fails or closes before the response is complete
+     */
+    private static Response readResponse(InputStream input, byte[] skipBuffer) throws IOException {
+        Response response = new Response();
+        String statusLine = readLine(input);
+        if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        response.status = Integer.parseInt(statusLine.substring(9, 12));
+        response.closes = statusLine.startsWith("HTTP/1.0");
+        response.bytes = statusLine.length() + 2;
+
+        long contentLength = 0;
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            response.bytes += line.length() + 2;
+            int colon = line.indexOf(':');
+            if (colon < 0) continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection")) {
+                response.closes = value.equalsIgnoreCase("close");
+            }
+        }
+        response.bytes += 2;
+
+        for (long remaining = contentLength; remaining > 0; ) {
+            int count = input.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, remaining));
+            if (count < 0) throw new EOFException("Connection closed inside a response body");
+            remaining -= count;
+        }
+        response.bytes += contentLength;
+        return response;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) throw new EOFException("Connection closed inside a response header");
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Defines a method that picks the kind of the next request by the -mix weights
+     */
+    private int pickKind() {
+        int roll = ThreadLocalRandom.current().nextInt(cumulativeWeights[KINDS.length - 1]);
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            if (roll < cumulativeWeights[kind]) return kind;
+        }
+        return SMALL;
+    }
+
+    private byte[] requestFor(int kind) {
+        switch (kind) {
+            case LARGE:
+                return largeRequest;
+            case NOT_FOUND:
+                return notFoundRequest;
+            case BAD:
+                return badRequest;
+            default:
+                return smallRequests[ThreadLocalRandom.current().nextInt(smallRequests.length)];
+        }
+    }
+
+    /**
+     * Defines a method that prepares the request bytes sent for each kind
+     * Small files are asked for the way a browser asks, with Accept-Encoding, so text may be compressed
+     */
+    private void buildRequests() {
+        smallRequests = new byte[SMALL_PATHS.length][];
+        for (int i = 0; i < SMALL_PATHS.length; i++) {
+            smallRequests[i] = request(SMALL_PATHS[i], "Accept-Encoding: gzip, deflate\r\n");
+        }
+        largeRequest = request("/large.jpg", "");
+        notFoundRequest = request("/missing/page.html", "");
+        // The server answers a malformed request line with 400 and closes the connection
+        badRequest = ("GET /index.html HTTP/1.1 extra\r\nHost: 127.0.0.1:" + port + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] request(String path, String extraHeaders) {
+        return ("GET " + path + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + port + "\r\n"
+                + "User-Agent: LoadGenerator\r\n"
+                + "Accept: */*\r\n"
+                + extraHeaders
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Defines a method that turns "small=80,large=10,..." into cumulative weights in KINDS order
+     * @throws IllegalArgumentException if a kind is unknown or every weight is 0
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[KINDS.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            int kind = Arrays.asList(KINDS).indexOf(pair[0].trim());
+            if (kind < 0 || pair.length != 2) {
+                throw new IllegalArgumentException("Bad -mix entry " + part + ", expected kind=weight with kinds "
+                                                   + String.join(", ", KINDS));
+            }
+            weights[kind] = Math.max(0, Integer.parseInt(pair[1].trim()));
+        }
+        int[] cumulative = new int[KINDS.length];
+        int total = 0;
+        for (int i = 0; i < KINDS.length; i++) {
+            total += weights[i];
+            cumulative[i] = total;
+        }
+        if (total == 0) throw new IllegalArgumentException("-mix needs at least one positive weight");
+        return cumulative;
+    }
+
+    /**
+     * Defines a method that writes the files served during the test into a temporary directory
+     */
+    private Path createDocumentRoot() throws IOException {
+        Path root = Files.createTempDirectory("loadgen-root");
+        Random random = new Random(42);
+
+        StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head><title>Load test</title>"
+                + "<link rel=\"stylesheet\" href=\"style.css\"></head><body>\n");
+        for (int i = 0; i < 60; i++) {
+            html.append("<p class=\"item\">Paragraph ").append(i)
+                .append(" of the generated page used by the load test.</p>\n");
+        }
+        html.append("<script src=\"app.js\"></script></body></html>\n");
+        Files.write(root.resolve("index.html"), html.toString().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; i < 80; i++) {
+            css.append(".item-").append(i).append(" { margin: ").append(i % 8)
+               .append("px; color: #").append(Integer.toHexString(0x100000 + i * 997)).append("; }\n");
+        }
+        Files.write(root.resolve("style.css"), css.toString().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder js = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            js.append("function handler").append(i).append("(event) { return event.target.dataset.value + ")
+              .append(i).append("; }\n");
+        }
+        Files.write(root.resolve("app.js"), js.toString().getBytes(StandardCharsets.UTF_8));
+
+        byte[] words = "lorem ipsum dolor sit amet consectetur adipiscing elit ".getBytes(StandardCharsets.US_ASCII);
+        byte[] notes = new byte[2048];
+        for (int i = 0; i < notes.length; i++) notes[i] = words[i % words.length];
+        Files.write(root.resolve("notes.txt"), notes);
+
+        byte[] large = new byte[(int) Math.min(largeBytes, Integer.MAX_VALUE - 8)];
+        random.nextBytes(large);
+        Files.write(root.resolve("large.jpg"), large);
+        return root;
+    }
+
+    /**
+     * Defines a method that makes a self-signed EC certificate for localhost with the JDK's keytool
+     * @return the PKCS12 keystore, alone in a temporary directory
+     * @throws IOException if keytool cannot be run or fails
+     */
+    private static Path createKeystore() throws IOException, InterruptedException {
+        Path keystore = Files.createTempDirectory("loadgen-tls").resolve("server.p12");
+        Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", KEYSTORE_PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool could not create " + keystore);
+        }
+        return keystore;
+    }
+
+    /**
+     * Defines a method that creates a client TLS context trusting any certificate, as the server's is self-signed
+     */
+    private static SSLContext newClientContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {new TrustingManager()}, null);
+        return context;
+    }
+
+    /**
+     * Defines a trust manager that accepts every server; only for the loopback load test
+     */
+    private static final class TrustingManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    private static void deleteDocumentRoot(Path root) throws IOException {
+        try (var paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Defines a method that runs Server.main on a daemon thread and waits until it accepts connections
+     * @throws IOException if the server is not listening within ten seconds
+     */
+    private void startServer(Path documentRoot) throws IOException, InterruptedException {
+        List<String> argList = new ArrayList<>(Arrays.asList(serverArgs));
+        argList.addAll(Arrays.asList("-document_root", documentRoot.toString(), "-port", Integer.toString(port)));
+        if (keystore != null) {
+            argList.addAll(Arrays.asList("-tls_keystore", keystore.toString(),
+                                         "-tls_keystore_password", KEYSTORE_PASSWORD));
+        }
+        String[] args = argList.toArray(new String[0]);
+
+        Thread server = new Thread(() -> Server.main(args), "server-main");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Defines a method that prints the throughput, request and status counts and latency percentiles
+     */
+    private void report(long elapsedNanos) {
+        LatencyHistogram total = new LatencyHistogram();
+        long bytes = 0;
+        long errorCount = 0;
+        long reconnectCount = 0;
+        for (int i = 0; i < connections; i++) {
+            total.add(histograms[i]);
+            bytes += bytesReceived[i];
+            errorCount += errors[i];
+            reconnectCount += reconnects[i];
+        }
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.printf("engine %s%s, %d connections, %.1f s measured%n",
+                          ServerConfig.parse(serverArgs).getEngine(),
+                          !tls ? "" : resumeSessions ? " over TLS" : " over TLS without resumption",
+                          connections, seconds);
+        System.out.printf("requests    %d (%.0f/s), %.1f MB/s received%n",
+                          total.getTotalCount(), total.getTotalCount() / seconds, bytes / seconds / (1024 * 1024));
+        StringBuilder kinds = new StringBuilder("mix        ");
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            kinds.append(' ').append(KINDS[kind]).append('=').append(kindCounts.get(kind));
+        }
+        System.out.println(kinds);
+        StringBuilder statuses = new StringBuilder("status     ");
+        for (int status = 0; status < statusCounts.length(); status++) {
+            if (statusCounts.get(status) > 0) statuses.append(' ').append(status).append('=').append(statusCounts.get(status));
+        }
+        System.out.println(statuses);
+        System.out.printf("errors      %d, new connections %d (%.0f/s)%n", errorCount, reconnectCount,
+                          reconnectCount / seconds);
+        System.out.printf("latency ms  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                          total.getMean() / 1e6,
+                          total.getValueAtPercentile(50) / 1e6,
+                          total.getValueAtPercentile(90) / 1e6,
+                          total.getValueAtPercentile(99) / 1e6,
+                          total.getValueAtPercentile(99.9) / 1e6,
+                          total.getMax() / 1e6);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Defines a benchmark of HttpRequestParser on the requests real clients send
+ * One parser is reused across invocations, the same way a connection reuses it for every request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    // Requests are pipelined in batches of this size in parsePipelined
+    private static final int PIPELINE_DEPTH = 8;
+
+    /**
+     * minimal: only a Host header, as sent by load generators
+     * curl: the headers curl sends by default
+     * browser: a Chrome navigation with client hints, a cookie and validators (about 1 KB)
+     */
+    @Param({"minimal", "curl", "browser"})
+    public String client;
+
+    private ByteArrayInputStream single;
+    private ByteArrayInputStream pipelined;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        byte[] request = request(client).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] batch = new byte[request.length * PIPELINE_DEPTH];
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            System.arraycopy(request, 0, batch, i * request.length, request.length);
+        }
+        single = new ByteArrayInputStream(request);
+        pipelined = new ByteArrayInputStream(batch);
+        parser = new HttpRequestParser();
+    }
+
+    /**
+     * Defines a benchmark that parses one request as it arrives on a fresh read
+     */
+    @Benchmark
+    public HttpRequest parseRequest() throws IOException {
+        single.reset();
+        return parser.parseRequest(single);
+    }
+
+    /**
+     * Defines a benchmark that parses one request and does the header lookups every GET performs
+     */
+    @Benchmark
+    public void parseAndInspect(Blackhole blackhole) throws IOException {
+        single.reset();
+        HttpRequest request = parser.parseRequest(single);
+        blackhole.consume(request.isKeepAlive());
+        blackhole.consume(HttpUtil.negotiateEncoding(request.getHeaders()));
+        blackhole.consume(request.getHeader("If-None-Match"));
+        blackhole.consume(request.getHeader("Range"));
+    }
+
+    /**
+     * Defines a benchmark that parses a batch of pipelined requests read from one buffer
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public void parsePipelined(Blackhole blackhole) throws IOException {
+        pipelined.reset();
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            blackhole.consume(parser.parseRequest(pipelined));
+        }
+    }
+
+    private static String request(String client) {
+        switch (client) {
+            case "minimal":
+                return "GET /index.html HTTP/1.1\r\n"
+                        + "Host: localhost:8888\r\n"
+                        + "\r\n";
+            case "curl":
+                return "GET /images/logo.png HTTP/1.1\r\n"
+                        + "Host: localhost:8888\r\n"
+                        + "User-Agent: curl/8.4.0\r\n"
+                        + "Accept: */*\r\n"
+                        + "\r\n";
+            case "browser":
+                return "GET /css/style.css?v=20231104 HTTP/1.1\r\n"
+                        + "Host: www.example.edu\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "sec-ch-ua: \"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"\r\n"
+                        + "sec-ch-ua-mobile: ?0\r\n"
+                        + "sec-ch-ua-platform: \"macOS\"\r\n"
+                        + "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36"
+                        + " (KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+                        + "Accept: text/css,*/*;q=0.1\r\n"
+                        + "Sec-Fetch-Site: same-origin\r\n"
+                        + "Sec-Fetch-Mode: no-cors\r\n"
+                        + "Sec-Fetch-Dest: style\r\n"
+                        + "Referer: https://www.example.edu/index.html\r\n"
+                        + "Accept-Encoding: gzip, deflate, br\r\n"
+                        + "Accept-Language: en-US,en;q=0.9\r\n"
+                        + "Cookie: _ga=GA1.2.1183749201.1698969811; _gid=GA1.2.902384712.1699050211;"
+                        + " session=8f3c2a91d4e54b7f9a0c6e1d2b3f4a5c; theme=dark; consent=analytics%3Dtrue\r\n"
+                        + "If-None-Match: \"1f4a-18b8f2c3d4e\"\r\n"
+                        + "If-Modified-Since: Sat, 04 Nov 2023 10:15:42 GMT\r\n"
+                        + "\r\n";
+            default:
+                throw new IllegalArgumentException("Unknown client " + client);
+        }
+    }
+}
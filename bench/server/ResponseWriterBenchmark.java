@@ -0,0 +1,124 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Defines a benchmark of writing a whole 200 response, header and body, for files from 1 KB to 100 MB
+ * The socket is replaced by /dev/null so the numbers measure the server's own copying, not the network
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ResponseWriterBenchmark {
+    private static final Path DEV_NULL = Paths.get("/dev/null");
+
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public long size;
+
+    /**
+     * stream: the file is read into the buffered output stream (no channel, as with a plain Socket)
+     * transfer: the file is sent with transferTo, as ThreadHandler does for large bodies
+     * cached: the body comes from a byte[] held by the content cache
+     * mapped: the body comes from a memory mapping held by the mapped file cache
+     */
+    @Param({"stream", "transfer", "cached", "mapped"})
+    public String source;
+
+    private Path file;
+    private long lastModified;
+    private byte[] body;
+    private FileChannel sink;
+    private OutputStream output;
+    private MappedFileCache mappedFileCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("response-bench", ".jpg");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                ByteBuffer next = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+                written += channel.write(next);
+            }
+        }
+        lastModified = file.toFile().lastModified();
+
+        if (source.equals("cached")) {
+            body = Files.readAllBytes(file);
+        }
+        if (source.equals("mapped")) {
+            mappedFileCache = new MappedFileCache(size, 0, size, 1);
+        }
+        sink = FileChannel.open(DEV_NULL, StandardOpenOption.WRITE);
+        output = new BufferedOutputStream(Channels.newOutputStream(sink));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Defines a benchmark of one keep-alive response for the file
+     */
+    @Benchmark
+    public void writeSuccessResponse() throws IOException {
+        HttpResponse response = new HttpResponse(output);
+        response.setStatus(200, "OK");
+        response.setKeepAlive(true);
+        response.setContentType("image/jpeg");
+        response.setContentLength(size);
+        response.setResourceLength(size);
+        response.setFilePath(file.toString());
+        response.setETag(HttpUtil.createETag(size, lastModified));
+        response.setLastModified(lastModified);
+        response.setAcceptRanges(true);
+
+        switch (source) {
+            case "transfer":
+                response.setChannel(sink);
+                break;
+            case "cached":
+                response.setCachedBody(body);
+                break;
+            case "mapped":
+                response.setChannel(sink);
+                response.setMapping(mappedFileCache.acquire(file.toFile(), lastModified, size));
+                break;
+            default:
+                break;
+        }
+
+        ResponseWriter.writeSuccessResponse(response);
+        output.flush();
+    }
+}
@@ -0,0 +1,244 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Defines a class that holds the connections of the threads engine on a selector until their first request header
+ * has arrived, like the accept filters some kernels offer (FreeBSD's accf_http), so a pool thread is only taken
+ * by a connection with a request to answer. A client that connects and sends nothing, or trickles its header,
+ * costs a registered socket and a parser buffer instead of a thread, and the first byte and header timeouts of
+ * the SlowClientGuard drop it from here
+ * A connection is handed over switched back to blocking, with the parser holding the header; a malformed or too
+ * large header is handed over too, so the ThreadHandler answers it as it would any other
+ * Not used over TLS, where the header cannot be read before the handshake
+ */
+public class AcceptFilter implements Runnable {
+    // Upper bound on how long a connection can outlive its first byte or header timeout
+    private static final long SELECT_TIMEOUT_MS = 250;
+
+    /**
+     * Defines the step a connection whose header has arrived is handed to
+     */
+    public interface Dispatcher {
+        /**
+         * @param channel is the connection, blocking again
+         * @param parser holds the buffered request bytes
+         * @param result is what parsing them gave: COMPLETE, MALFORMED or TOO_LARGE
+         */
+        void dispatch(SocketChannel channel, HttpRequestParser parser, HttpRequestParser.Result result);
+    }
+
+    private final Selector selector;
+    private final SlowClientGuard guard;
+    private final ServerMetrics metrics;
+    private final Dispatcher dispatcher;
+    private final Runnable onDropped;
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final List<Waiting> ready = new ArrayList<>();
+    private long lastExpiryCheck;
+
+    /**
+     * Defines a constructor that opens the selector of the filter
+     * @param context holds the SlowClientGuard, with the header limits and timeouts, and the metrics
+     * @param dispatcher takes each connection once its header has arrived
+     * @param onDropped is run for each connection closed here instead of being handed over
+     * @throws IOException if the selector cannot be opened
+     */
+    AcceptFilter(ServerContext context, Dispatcher dispatcher, Runnable onDropped) throws IOException {
+        this.selector = Selector.open();
+        this.guard = context.getSlowClientGuard();
+        this.metrics = context.getMetrics();
+        this.dispatcher = dispatcher;
+        this.onDropped = onDropped;
+    }
+
+    /**
+     * Defines a method that hands a newly accepted connection to the filter
+     * Can be called from any thread, the channel is registered on the filter thread
+     * @param channel is the accepted client connection, still blocking
+     */
+    void add(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    /**
+     * Defines the run method that reads request bytes as they arrive until the filter thread is interrupted
+     */
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Keys selected while handing connections over are still waiting in the selected set
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select(SELECT_TIMEOUT_MS);
+                } else {
+                    selector.selectNow();
+                }
+                registerNewChannels();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+                handOver();
+                closeExpired();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                drop(key, null);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Defines a method that registers the connections queued by the acceptor
+     */
+    private void registerNewChannels() {
+        SocketChannel channel;
+        long now = System.currentTimeMillis();
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                // The first request is parsed here, so whether it is timed is decided here too
+                HttpRequestParser parser = guard.newParser();
+                parser.setTimed(metrics != null && metrics.sampleNext());
+                channel.register(selector, SelectionKey.OP_READ, new Waiting(channel, parser, now));
+            } catch (IOException e) {
+                // Includes ClosedChannelException, the client went away before the filter picked up the connection
+                closeQuietly(channel);
+                onDropped.run();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that reads what a connection sent and sets it aside to be handed over once
+     * parsing gets anywhere but INCOMPLETE
+     * @param key is the key of the readable connection
+     */
+    private void read(SelectionKey key) {
+        Waiting waiting = (Waiting) key.attachment();
+        HttpRequestParser.Result result;
+        try {
+            if (waiting.parser.read(waiting.channel) == -1) {
+                // The client left without a request
+                drop(key, null);
+                return;
+            }
+            result = waiting.parser.parse();
+        } catch (IOException e) {
+            drop(key, null);
+            return;
+        }
+
+        if (result == HttpRequestParser.Result.INCOMPLETE) {
+            if (waiting.headerStartedAt == 0 && waiting.parser.hasPartialRequest()) {
+                waiting.headerStartedAt = System.currentTimeMillis();
+            }
+            return;
+        }
+        waiting.result = result;
+        key.cancel();
+        ready.add(waiting);
+    }
+
+    /**
+     * Defines a method that switches the connections set aside back to blocking and hands them over
+     * A channel stays non-blocking until its cancelled key has left the selector, which the selectNow does
+     * @throws IOException if the selector fails
+     */
+    private void handOver() throws IOException {
+        if (ready.isEmpty()) return;
+        selector.selectNow();
+        for (Waiting waiting : ready) {
+            try {
+                waiting.channel.configureBlocking(true);
+            } catch (IOException e) {
+                closeQuietly(waiting.channel);
+                onDropped.run();
+                continue;
+            }
+            dispatcher.dispatch(waiting.channel, waiting.parser, waiting.result);
+        }
+        ready.clear();
+    }
+
+    /**
+     * Defines a method that drops connections past their first byte or header timeout, at most every select timeout
+     */
+    private void closeExpired() {
+        long now = System.currentTimeMillis();
+        if (now - lastExpiryCheck < SELECT_TIMEOUT_MS) return;
+        lastExpiryCheck = now;
+
+        long firstByteMillis = guard.getFirstByteMillis();
+        long headerMillis = guard.getHeaderMillis();
+        for (SelectionKey key : selector.keys()) {
+            Waiting waiting = (Waiting) key.attachment();
+            if (!key.isValid()) continue;
+            if (waiting.headerStartedAt == 0) {
+                if (firstByteMillis > 0 && now - waiting.acceptedAt > firstByteMillis) {
+                    drop(key, SlowClientGuard.Reason.FIRST_BYTE);
+                }
+            } else if (headerMillis > 0 && now - waiting.headerStartedAt > headerMillis) {
+                drop(key, SlowClientGuard.Reason.HEADER);
+            }
+        }
+    }
+
+    /**
+     * Defines a method that closes a connection that is not handed over
+     * @param key is the key of the connection
+     * @param reason is why the guard drops it, or null if the client left or failed
+     */
+    private void drop(SelectionKey key, SlowClientGuard.Reason reason) {
+        key.cancel();
+        closeQuietly(((Waiting) key.attachment()).channel);
+        if (reason != null) guard.record(reason);
+        onDropped.run();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // This ignores exceptions if the socket has closed
+        }
+    }
+
+    /**
+     * Defines a class for one connection waiting for its header
+     */
+    private static final class Waiting {
+        private final SocketChannel channel;
+        private final HttpRequestParser parser;
+        private final long acceptedAt;
+        private long headerStartedAt;
+        private HttpRequestParser.Result result;
+
+        Waiting(SocketChannel channel, HttpRequestParser parser, long acceptedAt) {
+            this.channel = channel;
+            this.parser = parser;
+            this.acceptedAt = acceptedAt;
+        }
+    }
+}
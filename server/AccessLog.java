@@ -0,0 +1,421 @@
+package server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Defines a class that writes an access log in Common or Combined Log Format without blocking request threads
+ * Request threads copy each entry into a fixed-size record of a preallocated ring buffer; claiming a record is
+ * one compare-and-set, so threads never wait on a lock. A single background thread formats the records in
+ * batches, writes them to the file every "-access_log_flush_ms" milliseconds, and rotates the file by size
+ * or age. When the ring is full, an entry is dropped (and counted) or the request thread waits for room,
+ * as chosen with "-access_log_when_full drop|block"
+ */
+public class AccessLog implements Closeable {
+    // Longer fields are cut off so every record has a fixed size
+    private static final int MAX_REMOTE = 46;
+    private static final int MAX_REQUEST_LINE = 512;
+    private static final int MAX_HEADER_VALUE = 256;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final byte[] DASH = {'-'};
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter ROTATED_SUFFIX =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final File file;
+    private final boolean combined;
+    private final boolean blockWhenFull;
+    private final long flushMillis;
+    private final long maxFileBytes;
+    private final long rotateMillis;
+
+    // The ring: slot i is free for the producer claiming position p when sequences[i] == p,
+    // and holds a published record for the consumer at position p when sequences[i] == p + 1
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private long consumed;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_BYTES];
+    private int buffered;
+    private OutputStream output;
+    private long fileBytes;
+    private long openedMillis;
+    private long lastFlushMillis;
+    private long timestampSecond = -1;
+    private byte[] timestamp;
+
+    // Statistics
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong rotations = new AtomicLong();
+
+    /**
+     * Defines a constructor that opens (or appends to) the log file and starts the writer thread
+     * @param file is the log file; rotated files get a timestamp suffix
+     * @param combined is true for Combined Log Format (with Referer and User-Agent), false for Common
+     * @param capacity is the number of records in the ring, rounded up to a power of two
+     * @param blockWhenFull is true to make request threads wait for room, false to drop entries
+     * @param flushMillis is the longest time an entry waits before being written to the file
+     * @param maxFileBytes rotates the file once it reaches this size, or 0 to never rotate by size
+     * @param rotateMillis rotates the file once it is this old, or 0 to never rotate by age
+     * @throws IOException if the log file cannot be opened
+     */
+    public AccessLog(File file, boolean combined, int capacity, boolean blockWhenFull,
+                     long flushMillis, long maxFileBytes, long rotateMillis) throws IOException {
+        this.file = file;
+        this.combined = combined;
+        this.blockWhenFull = blockWhenFull;
+        this.flushMillis = Math.max(1, flushMillis);
+        this.maxFileBytes = maxFileBytes;
+        this.rotateMillis = rotateMillis;
+
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 24)) * 2 - 1);
+        this.records = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record(combined);
+            sequences.set(i, i);
+        }
+
+        open();
+        this.writer = new Thread(this::writeLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Defines a method that records one answered request; it only copies bytes and never touches the file
+     * @param remote is the client address as bytes (ex. 127.0.0.1)
+     * @param request is the parsed request, or null if it could not be parsed
+     * @param statusCode is the status sent
+     * @param bodyBytes is the size of the body sent, 0 for none
+     */
+    public void log(byte[] remote, HttpRequest request, int statusCode, long bodyBytes) {
+        long position = claimed.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (claimed.compareAndSet(position, position + 1)) break;
+                position = claimed.get();
+            } else if (difference < 0) {
+                // The writer has not caught up with this slot yet: the ring is full
+                if (!blockWhenFull || !running) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                position = claimed.get();
+            } else {
+                // Another thread claimed this position first
+                position = claimed.get();
+            }
+        }
+
+        records[index].fill(remote, request, statusCode, bodyBytes, combined);
+        sequences.set(index, position + 1);
+    }
+
+    /**
+     * Defines a method that stops the writer after it has written every entry already logged
+     */
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Defines a method that summarizes the log statistics
+     * @return written, dropped and rotation counts as a single line
+     */
+    public String getStats() {
+        return "written=" + written.sum() + " dropped=" + dropped.sum() + " rotations=" + rotations.get();
+    }
+
+    /**
+     * Defines a method to get the number of entries dropped because the ring was full
+     * @return the dropped count
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Defines the loop run by the writer thread: drain, flush when due, rotate when due, sleep when idle
+     */
+    private void writeLoop() {
+        while (true) {
+            boolean stopping = !running;
+            int count = drain();
+            long now = System.currentTimeMillis();
+            try {
+                if (buffered > 0 && (stopping || now - lastFlushMillis >= flushMillis)) {
+                    flushBuffer(now);
+                }
+                if (isRotationDue(now)) {
+                    rotate(now);
+                }
+            } catch (IOException e) {
+                System.err.println("Access log write failed: " + e.getMessage());
+                buffered = 0;
+            }
+
+            if (stopping && count == 0) break;
+            if (count == 0) {
+                LockSupport.parkNanos(Math.min(IDLE_PARK_NANOS, TimeUnit.MILLISECONDS.toNanos(flushMillis)));
+            }
+        }
+        try {
+            flushBuffer(System.currentTimeMillis());
+            output.close();
+        } catch (IOException e) {
+            System.err.println("Access log close failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Defines a method that formats every published record into the write buffer
+     * @return the number of records taken from the ring
+     */
+    private int drain() {
+        int count = 0;
+        while (true) {
+            int index = (int) consumed & mask;
+            if (sequences.get(index) != consumed + 1) return count;
+
+            try {
+                format(records[index]);
+            } catch (IOException e) {
+                System.err.println("Access log write failed: " + e.getMessage());
+                buffered = 0;
+            }
+            sequences.set(index, consumed + records.length);
+            consumed++;
+            count++;
+            written.increment();
+        }
+    }
+
+    /**
+     * Defines a method that appends one line in Common or Combined Log Format to the write buffer:
+     * remote - - [10/Oct/2000:13:55:36 -0700] "GET /index.html HTTP/1.1" 200 2326 "referer" "user agent"
+     */
+    private void format(Record record) throws IOException {
+        reserve(MAX_REMOTE + MAX_REQUEST_LINE * 4 + MAX_HEADER_VALUE * 8 + 128);
+        append(record.remote, record.remoteLength);
+        appendAscii(" - - [");
+        append(timestamp(record.timeMillis));
+        appendAscii("] \"");
+        appendEscaped(record.requestLine, record.requestLineLength);
+        appendAscii("\" ");
+        appendNumber(record.statusCode);
+        writeBuffer[buffered++] = ' ';
+        if (record.bodyBytes > 0) {
+            appendNumber(record.bodyBytes);
+        } else {
+            writeBuffer[buffered++] = '-';
+        }
+        if (combined) {
+            appendAscii(" \"");
+            appendField(record.referer, record.refererLength);
+            appendAscii("\" \"");
+            appendField(record.userAgent, record.userAgentLength);
+            writeBuffer[buffered++] = '"';
+        }
+        writeBuffer[buffered++] = '\n';
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (buffered + bytes > writeBuffer.length) {
+            flushBuffer(System.currentTimeMillis());
+        }
+    }
+
+    private void append(byte[] bytes) {
+        append(bytes, bytes.length);
+    }
+
+    private void append(byte[] bytes, int length) {
+        System.arraycopy(bytes, 0, writeBuffer, buffered, length);
+        buffered += length;
+    }
+
+    private void appendAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            writeBuffer[buffered++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void appendNumber(long value) {
+        if (value >= 10) appendNumber(value / 10);
+        writeBuffer[buffered++] = (byte) ('0' + value % 10);
+    }
+
+    private void appendField(byte[] bytes, int length) {
+        if (length < 0) {
+            append(DASH);
+        } else {
+            appendEscaped(bytes, length);
+        }
+    }
+
+    /**
+     * Defines a method that appends client supplied bytes with quotes, backslashes and control bytes escaped
+     * (the way Apache does), so a request cannot forge extra fields or lines in the log
+     */
+    private void appendEscaped(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b == '"' || b == '\\') {
+                writeBuffer[buffered++] = '\\';
+                writeBuffer[buffered++] = (byte) b;
+            } else if (b < 0x20 || b >= 0x7F) {
+                writeBuffer[buffered++] = '\\';
+                writeBuffer[buffered++] = 'x';
+                writeBuffer[buffered++] = (byte) Character.forDigit(b >> 4, 16);
+                writeBuffer[buffered++] = (byte) Character.forDigit(b & 0xF, 16);
+            } else {
+                writeBuffer[buffered++] = (byte) b;
+            }
+        }
+    }
+
+    /**
+     * Defines a method that formats a timestamp, reusing the previous one within the same second
+     */
+    private byte[] timestamp(long timeMillis) {
+        long second = timeMillis / 1000;
+        if (second != timestampSecond) {
+            timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.US_ASCII);
+            timestampSecond = second;
+        }
+        return timestamp;
+    }
+
+    private void flushBuffer(long now) throws IOException {
+        if (buffered > 0) {
+            output.write(writeBuffer, 0, buffered);
+            output.flush();
+            fileBytes += buffered;
+            buffered = 0;
+        }
+        lastFlushMillis = now;
+    }
+
+    private boolean isRotationDue(long now) {
+        return (maxFileBytes > 0 && fileBytes >= maxFileBytes)
+                || (rotateMillis > 0 && now - openedMillis >= rotateMillis && fileBytes > 0);
+    }
+
+    /**
+     * Defines a method that renames the current file with a timestamp suffix and starts a new one
+     */
+    private void rotate(long now) throws IOException {
+        flushBuffer(now);
+        output.close();
+
+        File rotated = new File(file.getPath() + "." + ROTATED_SUFFIX.format(Instant.ofEpochMilli(now)));
+        for (int i = 1; rotated.exists(); i++) {
+            rotated = new File(file.getPath() + "." + ROTATED_SUFFIX.format(Instant.ofEpochMilli(now)) + "-" + i);
+        }
+        if (!file.renameTo(rotated)) {
+            System.err.println("Could not rotate the access log to " + rotated);
+        }
+        rotations.incrementAndGet();
+        open();
+    }
+
+    private void open() throws IOException {
+        output = new FileOutputStream(file, true);
+        fileBytes = file.length();
+        openedMillis = System.currentTimeMillis();
+        lastFlushMillis = openedMillis;
+    }
+
+    /**
+     * Defines a class for one preallocated entry of the ring
+     */
+    private static final class Record {
+        private long timeMillis;
+        private int statusCode;
+        private long bodyBytes;
+        private final byte[] remote = new byte[MAX_REMOTE];
+        private int remoteLength;
+        private final byte[] requestLine = new byte[MAX_REQUEST_LINE];
+        private int requestLineLength;
+        private final byte[] referer;
+        private int refererLength;
+        private final byte[] userAgent;
+        private int userAgentLength;
+
+        Record(boolean combined) {
+            this.referer = combined ? new byte[MAX_HEADER_VALUE] : null;
+            this.userAgent = combined ? new byte[MAX_HEADER_VALUE] : null;
+        }
+
+        void fill(byte[] remote, HttpRequest request, int statusCode, long bodyBytes, boolean combined) {
+            this.timeMillis = System.currentTimeMillis();
+            this.statusCode = statusCode;
+            this.bodyBytes = bodyBytes;
+            this.remoteLength = Math.min(remote.length, MAX_REMOTE);
+            System.arraycopy(remote, 0, this.remote, 0, remoteLength);
+
+            if (request == null) {
+                requestLineLength = 1;
+                requestLine[0] = '-';
+                refererLength = -1;
+                userAgentLength = -1;
+                return;
+            }
+            int length = 0;
+            length = copy(request.getMethod(), length);
+            length = copy(" ", length);
+            length = copy(request.getPath(), length);
+            length = copy(" ", length);
+            requestLineLength = copy(request.getVersion(), length);
+
+            if (combined) {
+                refererLength = request.getHeaders().copyValue("Referer", referer, MAX_HEADER_VALUE);
+                userAgentLength = request.getHeaders().copyValue("User-Agent", userAgent, MAX_HEADER_VALUE);
+            }
+        }
+
+        private int copy(String text, int offset) {
+            int end = Math.min(MAX_REQUEST_LINE, offset + text.length());
+            for (int i = offset; i < end; i++) {
+                requestLine[i] = (byte) text.charAt(i - offset);
+            }
+            return end;
+        }
+    }
+}
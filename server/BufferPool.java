@@ -0,0 +1,268 @@
+package server;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines a class that hands out direct ByteBuffers for response output and takes them back for reuse
+ * Buffers come in power of two size classes from 4 KB to 1 MB. Each platform thread keeps a few released
+ * buffers of every class for itself (an event loop acquires and releases on the same thread, so it never
+ * touches shared state); the rest go to a shared pool of at most "-buffer_pool_bytes" bytes
+ * Virtual threads skip the per-thread cache, since each one lives for a single connection
+ *
+ * With "-buffer_leak_detection on" every buffer handed out is tracked: a buffer that is released twice or
+ * was never acquired fails fast, and a buffer that is dropped without being released is reported with the
+ * stack trace of where it was acquired once the garbage collector finds it
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+    // Bytes of each size class a thread may keep for itself
+    private static final int THREAD_CACHE_BYTES = 256 * 1024;
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+
+    private final long maxPooledBytes;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = ThreadLocal.withInitial(BufferPool::newCache);
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared = new ArrayList<>(CLASS_COUNT);
+    private final AtomicLong sharedBytes = new AtomicLong();
+    private final LeakDetector leakDetector;
+
+    // Statistics
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    /**
+     * Defines a constructor for a pool with a budget for the shared buffers
+     * @param maxPooledBytes is the most bytes the shared pool keeps; buffers released beyond it are dropped
+     * @param leakDetection is true to track every buffer handed out (slower, for debugging)
+     */
+    public BufferPool(long maxPooledBytes, boolean leakDetection) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.leakDetector = leakDetection ? new LeakDetector() : null;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Defines a method that gets a cleared buffer with room for at least the given number of bytes
+     * Requests larger than the biggest size class get a heap buffer that is not pooled
+     * @param minCapacity is the number of bytes needed
+     * @return a buffer positioned at 0 with its limit at its capacity
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass < 0) {
+            oversized.increment();
+            return ByteBuffer.allocate(minCapacity);
+        }
+        acquired.increment();
+
+        ByteBuffer buffer = null;
+        ArrayDeque<ByteBuffer>[] cache = threadCache();
+        if (cache != null) {
+            buffer = cache[sizeClass].pollFirst();
+        }
+        if (buffer == null) {
+            buffer = shared.get(sizeClass).poll();
+            if (buffer != null) sharedBytes.addAndGet(-buffer.capacity());
+        }
+        if (buffer == null) {
+            allocated.increment();
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        }
+
+        buffer.clear();
+        if (leakDetector != null) leakDetector.acquired(buffer);
+        return buffer;
+    }
+
+    /**
+     * Defines a method that gives a buffer back to the pool
+     * The caller must not use the buffer, or any view of it, afterwards
+     * @param buffer is a buffer from acquire; heap buffers and null are ignored
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if (sizeClass < 0 || sizeClass >= CLASS_COUNT || Integer.bitCount(buffer.capacity()) != 1) {
+            throw new IllegalArgumentException("Buffer of " + buffer.capacity() + " bytes is not from the pool");
+        }
+        if (leakDetector != null) leakDetector.released(buffer);
+        released.increment();
+
+        ArrayDeque<ByteBuffer>[] cache = threadCache();
+        if (cache != null && cache[sizeClass].size() < Math.max(1, THREAD_CACHE_BYTES >> (sizeClass + MIN_SHIFT))) {
+            cache[sizeClass].addFirst(buffer);
+            return;
+        }
+        if (sharedBytes.addAndGet(buffer.capacity()) <= maxPooledBytes) {
+            shared.get(sizeClass).offer(buffer);
+        } else {
+            // The pool is full; the buffer's memory is freed once it is garbage collected
+            sharedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Defines a method that summarizes the pool statistics
+     * @return acquire, release and allocation counts, the shared bytes and (when tracking) the leaks as a single line
+     */
+    public String getStats() {
+        String stats = "acquired=" + acquired.sum() + " released=" + released.sum() + " allocated=" + allocated.sum()
+                + " oversized=" + oversized.sum() + " shared_bytes=" + sharedBytes.get();
+        return (leakDetector != null) ? stats + " leaks=" + leakDetector.getLeaks() : stats;
+    }
+
+    /**
+     * Defines a method to get the number of buffers handed out and not yet released
+     * @return the outstanding buffer count
+     */
+    public long getOutstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * Defines a method that gets the size class index of a capacity
+     * @return the index, or -1 if the capacity is larger than the biggest class
+     */
+    private static int sizeClass(int minCapacity) {
+        if (minCapacity <= 1 << MIN_SHIFT) return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(minCapacity - 1);
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Defines a method that gets the calling thread's cache
+     * @return the cache, or null on a virtual thread
+     */
+    private ArrayDeque<ByteBuffer>[] threadCache() {
+        ArrayDeque<ByteBuffer>[] cache = threadCaches.get();
+        return (cache.length == 0) ? null : cache;
+    }
+
+    /**
+     * Defines a method that creates the cache of a thread the first time it uses the pool
+     * @return the cache, or an empty array on a virtual thread
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<ByteBuffer>[] newCache() {
+        if (isVirtual(Thread.currentThread())) {
+            return new ArrayDeque[0];
+        }
+        ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            cache[i] = new ArrayDeque<>();
+        }
+        return cache;
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Defines a method that finds Thread.isVirtual, which only exists on Java 21 or newer
+     * @return the method, or null if there are no virtual threads
+     */
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Defines a class that follows every buffer handed out while leak detection is on
+     * Buffers are held through weak references, so a buffer dropped without being released is still
+     * garbage collected, and its reference then shows up on the queue with the trace of its last acquire
+     */
+    private static final class LeakDetector {
+        private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+        // Keyed by identity hash code; a ByteBuffer's own hashCode depends on its contents
+        private final Map<Integer, List<Tracked>> tracked = new HashMap<>();
+        private final LongAdder leaks = new LongAdder();
+
+        synchronized void acquired(ByteBuffer buffer) {
+            reportCollected();
+            Tracked entry = find(buffer);
+            if (entry == null) {
+                entry = new Tracked(buffer, collected);
+                tracked.computeIfAbsent(System.identityHashCode(buffer), key -> new ArrayList<>(1)).add(entry);
+            }
+            entry.acquiredAt = new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here");
+        }
+
+        synchronized void released(ByteBuffer buffer) {
+            Tracked entry = find(buffer);
+            if (entry == null || entry.acquiredAt == null) {
+                throw new IllegalStateException("Buffer of " + buffer.capacity()
+                                                + " bytes released twice or not acquired from the pool");
+            }
+            entry.acquiredAt = null;
+        }
+
+        long getLeaks() {
+            synchronized (this) {
+                reportCollected();
+            }
+            return leaks.sum();
+        }
+
+        private Tracked find(ByteBuffer buffer) {
+            List<Tracked> candidates = tracked.get(System.identityHashCode(buffer));
+            if (candidates == null) return null;
+            for (Tracked candidate : candidates) {
+                if (candidate.get() == buffer) return candidate;
+            }
+            return null;
+        }
+
+        private void reportCollected() {
+            Tracked entry;
+            while ((entry = (Tracked) collected.poll()) != null) {
+                List<Tracked> candidates = tracked.get(entry.identity);
+                if (candidates != null && candidates.remove(entry) && candidates.isEmpty()) {
+                    tracked.remove(entry.identity);
+                }
+                if (entry.acquiredAt != null) {
+                    leaks.increment();
+                    System.err.println("Leak: a pooled buffer was garbage collected without being released");
+                    entry.acquiredAt.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Defines a class for one tracked buffer; acquiredAt is null while the buffer is back in the pool
+         */
+        private static final class Tracked extends WeakReference<ByteBuffer> {
+            private final int identity;
+            private Throwable acquiredAt;
+
+            Tracked(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+                super(buffer, queue);
+                this.identity = System.identityHashCode(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Defines a class for one satisfiable byte range of a resource, as requested with the Range header
+ * Also builds the multipart/byteranges framing used when a request asks for several ranges
+ */
+public final class ByteRange {
+    // Requests listing more ranges than this are answered with the whole resource
+    private static final int MAX_RANGES = 16;
+
+    // One boundary per process keeps the multipart Content-Type line constant
+    public static final String BOUNDARY = "BYTERANGE_" + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                                                         + Long.toHexString(System.nanoTime());
+    private static final byte[] CLOSING = ("--" + BOUNDARY + "--" + HttpUtil.END_LINE)
+                                                  .getBytes(StandardCharsets.US_ASCII);
+
+    private final long start;
+    private final long end;
+
+    /**
+     * Defines a constructor for a range
+     * @param start is the first byte of the range
+     * @param end is the last byte of the range (inclusive)
+     */
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Defines a method to get the first byte of the range
+     * @return the start offset
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Defines a method to get the last byte of the range
+     * @return the end offset (inclusive)
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Defines a method to get the number of bytes in the range
+     * @return the range length
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Defines a method that parses a Range header (ex. "bytes=0-499, -500") against the size of a resource
+     * Overlapping or adjacent ranges are merged and sorted
+     * @param header is the value of the Range header
+     * @param resourceLength is the size of the resource
+     * @return the satisfiable ranges, an empty list if none is satisfiable (416),
+     *         or null if the header is invalid or lists too many ranges and should be ignored (200)
+     */
+    public static List<ByteRange> parse(String header, long resourceLength) {
+        String prefix = "bytes=";
+        if (!header.regionMatches(true, 0, prefix, 0, prefix.length())) return null;
+
+        String[] specs = header.substring(prefix.length()).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+
+            try {
+                if (dash == 0) {
+                    // "-500" is the last 500 bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix > 0 && resourceLength > 0) {
+                        ranges.add(new ByteRange(Math.max(0, resourceLength - suffix), resourceLength - 1));
+                    }
+                    continue;
+                }
+
+                long first = Long.parseLong(spec.substring(0, dash));
+                long last = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (first < 0 || last < first) return null;
+                if (first < resourceLength) {
+                    ranges.add(new ByteRange(first, Math.min(last, resourceLength - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return merge(ranges);
+    }
+
+    /**
+     * Defines a method that sorts ranges and joins the ones that overlap or touch
+     */
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) return ranges;
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * Defines a method that builds the Content-Range value for this range
+     * @param resourceLength is the size of the whole resource
+     * @return the value (ex. "bytes 0-499/1234")
+     */
+    public String toContentRange(long resourceLength) {
+        return "bytes " + start + "-" + end + "/" + resourceLength;
+    }
+
+    /**
+     * Defines a method that builds the boundary and headers written before one part of a multipart body
+     * @param contentType is the media type of the resource, or null
+     * @param resourceLength is the size of the whole resource
+     * @return the part header bytes
+     */
+    public byte[] partHeader(String contentType, long resourceLength) {
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(BOUNDARY).append(HttpUtil.END_LINE);
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append(HttpUtil.END_LINE);
+        }
+        header.append("Content-Range: ").append(toContentRange(resourceLength)).append(HttpUtil.END_LINE);
+        header.append(HttpUtil.END_LINE);
+        return header.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Defines a method to get the closing boundary of a multipart body
+     * @return the closing boundary bytes, shared and never to be modified
+     */
+    public static byte[] closingBoundary() {
+        return CLOSING;
+    }
+
+    /**
+     * Defines a method that computes the exact size of a multipart/byteranges body
+     * Each part is its header, its bytes and a line break; the body ends with the closing boundary
+     * @param ranges are the ranges being sent
+     * @param contentType is the media type of the resource, or null
+     * @param resourceLength is the size of the whole resource
+     * @return the body length to send as Content-Length
+     */
+    public static long multipartLength(List<ByteRange> ranges, String contentType, long resourceLength) {
+        long length = CLOSING.length;
+        for (ByteRange range : ranges) {
+            length += range.partHeader(contentType, resourceLength).length + range.getLength()
+                      + HttpUtil.END_LINE.length();
+        }
+        return length;
+    }
+}
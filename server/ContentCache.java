@@ -0,0 +1,230 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines a class that keeps the bodies of small, frequently requested files in memory
+ * Entries are keyed by absolute path (and content coding, for compressed variants), checked against the
+ * file's last-modified time and size on every hit, and evicted least recently used first once the cache
+ * holds more than its byte budget
+ * Requests that miss on the same file at once share one read (and compression) instead of each doing their own
+ * Only bodies are cached: the header is serialized per response by HeaderEncoder from pre-encoded pieces,
+ * as its Date and Connection lines and, for ranges, its status and Content-Range change from one response to the next
+ */
+public class ContentCache {
+    private final long maxEntryBytes;
+    private final LruCache<Entry> entries;
+
+    // Reads in progress, which other requests missing on the same key wait for
+    private final ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<>();
+
+    // Statistics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Defines a constructor that sets the size limits of the cache
+     * @param maxBytes is the total number of body bytes the cache may hold
+     * @param maxEntryBytes is the largest file that will be cached
+     */
+    public ContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.entries = new LruCache<>(maxBytes, entry -> entry.body.length, null);
+    }
+
+    /**
+     * Defines a method that returns the body of a file, from memory if the cached copy is current
+     * A missing or stale entry is read from disk and cached
+     * @param file is the requested file, already checked to exist and be readable
+     * @param lastModified is the file's last-modified time
+     * @param length is the file's size
+     * @return the file contents, or null if the file is too large to cache or changed while being read
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] get(File file, long lastModified, long length) throws IOException {
+        return get(file.getPath(), file, lastModified, length, null);
+    }
+
+    /**
+     * Defines a method that returns a file compressed with a content coding, compressing it only on a miss
+     * @param file is the requested file, already checked to exist and be readable
+     * @param lastModified is the file's last-modified time
+     * @param length is the file's size
+     * @param encoding is the content coding, "gzip" or "deflate"
+     * @return the compressed contents, or null if the file is too large to cache or changed while being read
+     * @throws IOException if the file cannot be read or compressed
+     */
+    public byte[] get(File file, long lastModified, long length, String encoding) throws IOException {
+        return get(variantKey(file, encoding), file, lastModified, length, encoding);
+    }
+
+    /**
+     * Defines a method that builds the key a compressed variant is cached under
+     * Callers that serve the same file often (ex. FileMetadataCache) build it once and pass it to get
+     * @param file is the requested file
+     * @param encoding is the content coding, "gzip" or "deflate"
+     * @return the key
+     */
+    public static String variantKey(File file, String encoding) {
+        return file.getPath() + ";" + encoding;
+    }
+
+    /**
+     * Defines a method that returns a cached body, loading and encoding it on a miss
+     * @param key is the file path for the file as stored, or variantKey for a compressed variant
+     * @param file is the requested file, already checked to exist and be readable
+     * @param lastModified is the file's last-modified time
+     * @param length is the file's size
+     * @param encoding is the content coding, or null for the file as stored
+     * @return the body, or null if the file is too large to cache or changed while being read
+     * @throws IOException if the file cannot be read or compressed
+     */
+    public byte[] get(String key, File file, long lastModified, long length, String encoding) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.lastModified == lastModified && entry.sourceLength == length) {
+            hits.increment();
+            return entry.body;
+        }
+
+        // The file changed on disk since it was cached
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        if (length > maxEntryBytes) return null;
+
+        Load load = new Load(lastModified, length);
+        Load running = loads.putIfAbsent(key, load);
+        if (running != null) {
+            // Another request is reading the same version already; a different version is read without caching
+            return (running.lastModified == lastModified && running.sourceLength == length)
+                    ? running.await(file)
+                    : read(file, lastModified, length, encoding);
+        }
+        try {
+            byte[] body = read(file, lastModified, length, encoding);
+            if (body != null) {
+                entries.put(key, new Entry(body, lastModified, length));
+            }
+            load.body.complete(body);
+            return body;
+        } catch (IOException | RuntimeException e) {
+            load.body.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(key, load);
+        }
+    }
+
+    /**
+     * Defines a method that reads a file and encodes it
+     * @return the body, or null if the file changed while being read
+     */
+    private static byte[] read(File file, long lastModified, long length, String encoding) throws IOException {
+        byte[] body = Files.readAllBytes(file.toPath());
+        if (body.length != length || file.lastModified() != lastModified) return null;
+        return (encoding != null) ? HttpUtil.compress(body, encoding) : body;
+    }
+
+    /**
+     * Defines a method to get the largest file the cache accepts
+     * @return the size limit for a single file
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Defines a method that summarizes the cache statistics
+     * @return hits, misses, evictions, entry count and bytes held as a single line
+     */
+    public String getStats() {
+        return "hits=" + hits.sum() + " misses=" + misses.sum() + " evictions=" + entries.getEvictions()
+                + " entries=" + entries.size() + " bytes=" + entries.getBytesHeld();
+    }
+
+    /**
+     * Defines a method to get the number of requests answered from memory
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Defines a method to get the number of requests that had to read the file
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Defines a method to get the number of entries dropped to stay within the byte budget
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return entries.getEvictions();
+    }
+
+    /**
+     * Defines a method to get the number of body bytes currently cached
+     * @return the bytes held
+     */
+    public long getBytesHeld() {
+        return entries.getBytesHeld();
+    }
+
+    /**
+     * Defines a class for one cached file body, with the last-modified time and size of the file it came from
+     */
+    private static final class Entry {
+        private final byte[] body;
+        private final long lastModified;
+        private final long sourceLength;
+
+        Entry(byte[] body, long lastModified, long sourceLength) {
+            this.body = body;
+            this.lastModified = lastModified;
+            this.sourceLength = sourceLength;
+        }
+    }
+
+    /**
+     * Defines a class for a read in progress, with the last-modified time and size of the version being read
+     */
+    private static final class Load {
+        private final long lastModified;
+        private final long sourceLength;
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+
+        Load(long lastModified, long sourceLength) {
+            this.lastModified = lastModified;
+            this.sourceLength = sourceLength;
+        }
+
+        /**
+         * Defines a method that waits for the read to finish
+         * @param file is the file being read, named if the read failed
+         * @return the body, or null if the file changed while being read
+         * @throws IOException if the read failed or the waiting thread was interrupted
+         */
+        byte[] await(File file) throws IOException {
+            try {
+                return body.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Reading " + file + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + file);
+            }
+        }
+    }
+}
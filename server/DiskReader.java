@@ -0,0 +1,332 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Defines a class that reads file bodies on disk threads, so the thread sending a body never waits on the disk
+ * for more than the next chunk. Each region of a body is read in chunks of "-disk_read_bytes" into pooled buffers,
+ * and up to "-disk_read_ahead" chunks are read ahead of the one being sent, so a chunk is usually
+ * ready by the time the socket has taken the one before it
+ * Every disk (file store) has its own "-disk_max_reads" threads, which caps the reads outstanding on it; further
+ * reads queue for that disk only, so a slow disk delays its own files and not the files on other disks, nor
+ * an event loop serving cached files
+ */
+public class DiskReader {
+    // Directories whose disk is remembered; the map starts over once it holds more
+    private static final int MAX_DIRECTORIES = 4096;
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    private final BufferPool pool;
+    private final int maxReads;
+    private final int chunkBytes;
+    private final int readAhead;
+    private final ConcurrentHashMap<Path, ThreadPoolExecutor> diskByDirectory = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Object, ThreadPoolExecutor> disks = new ConcurrentHashMap<>();
+    private final AtomicInteger diskCount = new AtomicInteger();
+
+    // Statistics
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Defines a constructor for a reader with no disk threads started yet
+     * @param pool hands out the buffers chunks are read into
+     * @param maxReads is the number of reads each disk may have outstanding at once
+     * @param chunkBytes is the size of one read
+     * @param readAhead is the number of chunks of one region read before they are sent
+     */
+    public DiskReader(BufferPool pool, int maxReads, int chunkBytes, int readAhead) {
+        this.pool = pool;
+        this.maxReads = Math.max(1, maxReads);
+        this.chunkBytes = Math.max(4096, chunkBytes);
+        this.readAhead = Math.max(1, readAhead);
+    }
+
+    /**
+     * Defines a method that prepares a region of an open file to be read ahead, starting on its first poll
+     * The region does not own the file, which the caller closes after closing the region
+     * @param file is the open file
+     * @param path is the path of the file, which tells the disk it is on
+     * @param position is the offset of the first byte
+     * @param count is the number of bytes
+     * @param onReady is run on a disk thread when a chunk a poll found missing has been read, or null
+     * @return the region
+     */
+    public Region open(FileChannel file, String path, long position, long count, Runnable onReady) {
+        return new Region(file, diskOf(path), position, count, onReady);
+    }
+
+    /**
+     * Defines a method that summarizes the reader statistics
+     * A stall is a chunk that was not read yet when its turn to be sent came
+     * @return the number of disks, reads, bytes read, stalls, failed reads and queued reads as a single line
+     */
+    public String getStats() {
+        int queued = 0;
+        for (ThreadPoolExecutor disk : disks.values()) {
+            queued += disk.getQueue().size();
+        }
+        return "disks=" + disks.size() + " reads=" + reads.sum() + " bytes=" + bytesRead.sum()
+                + " stalls=" + stalls.sum() + " failed=" + failures.sum() + " queued=" + queued;
+    }
+
+    /**
+     * Defines a method that finds the threads of the disk holding a file, remembered by directory
+     * @param path is the path of the file
+     * @return the disk's executor
+     */
+    private ThreadPoolExecutor diskOf(String path) {
+        Path file = Paths.get(path);
+        Path directory = (file.getParent() != null) ? file.getParent() : file;
+        ThreadPoolExecutor disk = diskByDirectory.get(directory);
+        if (disk != null) return disk;
+
+        if (diskByDirectory.size() >= MAX_DIRECTORIES) {
+            diskByDirectory.clear();
+        }
+        Object store;
+        try {
+            store = Files.getFileStore(directory);
+        } catch (IOException e) {
+            // The file is still read, with the files whose disk is not known
+            store = "unknown";
+        }
+        disk = disks.computeIfAbsent(store, key -> newDisk());
+        diskByDirectory.put(directory, disk);
+        return disk;
+    }
+
+    private ThreadPoolExecutor newDisk() {
+        String name = "disk-" + diskCount.getAndIncrement() + "-reader-";
+        AtomicInteger threads = new AtomicInteger();
+        ThreadPoolExecutor disk = new ThreadPoolExecutor(maxReads, maxReads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, name + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A disk that is not being read keeps no threads
+        disk.allowCoreThreadTimeOut(true);
+        return disk;
+    }
+
+    /**
+     * Defines a class for one region of a file being read ahead, in order, by the threads of its disk
+     * The thread sending the body takes each chunk with poll (never waits) or next (waits for it); a chunk
+     * goes back to the pool once it has been sent and the following one is taken, which starts another read
+     * The region is guarded by a ReentrantLock rather than its monitor, so a virtual thread waiting in next for
+     * the disk unmounts instead of pinning its carrier thread
+     */
+    public final class Region {
+        private final FileChannel file;
+        private final ThreadPoolExecutor disk;
+        private final Runnable onReady;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition chunkReady = lock.newCondition();
+        private final long end;
+        private long nextPosition;
+        private boolean waiting;
+        private volatile boolean closed;
+
+        private Region(FileChannel file, ThreadPoolExecutor disk, long position, long count, Runnable onReady) {
+            this.file = file;
+            this.disk = disk;
+            this.onReady = onReady;
+            this.nextPosition = position;
+            this.end = position + count;
+        }
+
+        /**
+         * Defines a method to get the next bytes of the region without waiting for the disk
+         * The bytes handed out last are given back first if they have all been sent
+         * @return the next chunk, with bytes remaining, or null if it has not been read yet or the region is finished
+         * @throws IOException if reading the chunk failed or the file shrank
+         */
+        public ByteBuffer poll() throws IOException {
+            lock.lock();
+            try {
+                Chunk head = chunks.peek();
+                if (head != null && head.ready && head.failure == null && !head.buffer.hasRemaining()) {
+                    chunks.poll();
+                    pool.release(head.buffer);
+                }
+                readAhead();
+
+                head = chunks.peek();
+                if (head == null) return null;
+                if (!head.ready) {
+                    waiting = true;
+                    stalls.increment();
+                    return null;
+                }
+                if (head.failure != null) throw head.failure;
+                return head.buffer;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Defines a method to get the next bytes of the region, waiting for the disk if they have not been read yet
+         * @return the next chunk, with bytes remaining, or null if the region is finished
+         * @throws IOException if reading the chunk failed, the file shrank or the thread was interrupted
+         */
+        public ByteBuffer next() throws IOException {
+            lock.lock();
+            try {
+                while (true) {
+                    ByteBuffer buffer = poll();
+                    if (buffer != null || chunks.isEmpty()) return buffer;
+                    chunkReady.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Defines a method that checks whether every chunk of the region has been handed out and given back,
+         * which is the case once poll returns null for a region not waiting for the disk
+         * @return true if the region is finished, else false
+         */
+        public boolean isFinished() {
+            lock.lock();
+            try {
+                return nextPosition >= end && chunks.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Defines a method that checks whether the last poll found its chunk still being read
+         * Its onReady runs once that chunk is ready
+         * @return true if the region waits for the disk, else false
+         */
+        public boolean isWaiting() {
+            lock.lock();
+            try {
+                return waiting;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Defines a method that gives every chunk back to the pool, now for those already read and
+         * as soon as their read ends for the others
+         */
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                for (Chunk chunk : chunks) {
+                    if (chunk.ready) pool.release(chunk.buffer);
+                }
+                chunks.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Defines a method that starts reads until the region is read far enough ahead; called holding the lock
+         * Buffers are acquired on the thread sending the body, which is also the one giving them back
+         */
+        private void readAhead() {
+            while (!closed && chunks.size() < readAhead && nextPosition < end) {
+                int size = (int) Math.min(chunkBytes, end - nextPosition);
+                ByteBuffer buffer = pool.acquire(size);
+                buffer.limit(size);
+                Chunk chunk = new Chunk(buffer, nextPosition);
+                nextPosition += size;
+                chunks.add(chunk);
+                disk.execute(() -> read(chunk));
+            }
+        }
+
+        /**
+         * Defines a method that fills a chunk from the file; runs on a disk thread
+         * @param chunk is the chunk to fill
+         */
+        private void read(Chunk chunk) {
+            ByteBuffer buffer = chunk.buffer;
+            IOException failure = null;
+            if (!closed) {
+                try {
+                    long position = chunk.position;
+                    while (buffer.hasRemaining()) {
+                        int count = file.read(buffer, position);
+                        if (count < 0) throw new EOFException("File shrank while being sent");
+                        position += count;
+                    }
+                    reads.increment();
+                    bytesRead.add(buffer.position());
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            boolean wake;
+            lock.lock();
+            try {
+                if (closed) {
+                    // The region was closed while this chunk was being read, so nobody will take it; a read that
+                    // failed because the caller then closed the file (ClosedChannelException) is not a failure
+                    pool.release(buffer);
+                    return;
+                }
+                if (failure != null) failures.increment();
+                buffer.flip();
+                chunk.failure = failure;
+                chunk.ready = true;
+                wake = waiting && chunk == chunks.peek();
+                if (wake) {
+                    waiting = false;
+                    chunkReady.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (wake && onReady != null) onReady.run();
+        }
+    }
+
+    /**
+     * Defines a class for one read of a region: its buffer, and once ready, the bytes read or why the read failed
+     */
+    private static final class Chunk {
+        private final ByteBuffer buffer;
+        private final long position;
+        private boolean ready;
+        private IOException failure;
+
+        Chunk(ByteBuffer buffer, long position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Defines a class for a document root packed into one indexed file, served with "-archive file"
+ * The archive is memory mapped at startup (and read through once, so its pages are resident), every path
+ * is found with one hash lookup, and each response is written straight from the mapping, so a fresh server
+ * answers at full speed right away and holds one open file instead of one per request
+ * Media types, ETags and gzip variants of text files are worked out when the archive is packed
+ *
+ * Layout (big endian): the magic "WSARCH01", the entry count (int) and the index offset (long), then the file
+ * bodies and gzip variants, then the index. Each index entry is the path, media type (empty if unknown) and ETag
+ * (each a short length and UTF-8 bytes), the text flag (byte), the last-modified time, offset and length of the
+ * body (longs) and the offset and length of the gzip variant (longs, length -1 if there is none)
+ *
+ * Pack a document root with: java server.DocumentArchive -document_root files -archive site.archive
+ */
+public class DocumentArchive {
+    private static final byte[] MAGIC = "WSARCH01".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = MAGIC.length + Integer.BYTES + Long.BYTES;
+
+    private final Map<String, Entry> entries;
+    private final long archiveBytes;
+
+    private DocumentArchive(Map<String, Entry> entries, long archiveBytes) {
+        this.entries = entries;
+        this.archiveBytes = archiveBytes;
+    }
+
+    /**
+     * Defines the main method that packs a document root ("-document_root") into an archive ("-archive")
+     * Text files also get a gzip variant unless "-archive_gzip off" is given
+     * @param args are the "-name value" options
+     */
+    public static void main(String[] args) {
+        try {
+            ServerConfig config = ServerConfig.parse(args);
+            String archive = config.getString("archive", null);
+            if (archive == null) {
+                System.err.println("Usage: java server.DocumentArchive -document_root dir -archive file"
+                                   + " [-archive_gzip on|off]");
+                return;
+            }
+            boolean gzip = !"off".equalsIgnoreCase(config.getString("archive_gzip", "on"));
+            int count = pack(new File(config.getDocumentRoot()), new File(archive), gzip);
+            System.out.println("Packed " + count + " files into " + archive + " (" + new File(archive).length()
+                               + " bytes)");
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Defines a method that writes every regular file under a directory into a new archive
+     * @param documentRoot is the directory to pack
+     * @param archive is the file to write
+     * @param gzip is true to store a gzip variant of each text file that compresses
+     * @return the number of files packed
+     * @throws IOException if a file cannot be read, the archive cannot be written, or it would exceed 2 GB
+     */
+    public static int pack(File documentRoot, File archive, boolean gzip) throws IOException {
+        Path root = documentRoot.toPath().toAbsolutePath().normalize();
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+        }
+
+        // Bodies are written as they are read; the index is written after them, once every offset is known
+        List<IndexEntry> index = new ArrayList<>(files.size());
+        long offset = HEADER_BYTES;
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(archive), 64 * 1024))) {
+            output.write(new byte[HEADER_BYTES]);
+
+            for (Path path : files) {
+                byte[] body = Files.readAllBytes(path);
+                IndexEntry entry = new IndexEntry();
+                StringBuilder key = new StringBuilder();
+                for (Path part : root.relativize(path)) {
+                    key.append('/').append(part);
+                }
+                entry.path = key.toString();
+
+                String extension = HttpUtil.getExtension(path.getFileName().toString());
+                entry.contentType = HttpUtil.getContentType(extension);
+                entry.text = HttpUtil.getTextMimeMap().containsKey(extension);
+                entry.lastModified = Files.getLastModifiedTime(path).toMillis();
+                entry.eTag = HttpUtil.createETag(body.length, entry.lastModified);
+
+                entry.offset = offset;
+                entry.length = body.length;
+                output.write(body);
+                offset += body.length;
+
+                entry.gzipLength = -1;
+                if (gzip && entry.text && body.length > 0) {
+                    byte[] compressed = HttpUtil.compress(body, "gzip");
+                    if (compressed.length < body.length) {
+                        entry.gzipOffset = offset;
+                        entry.gzipLength = compressed.length;
+                        output.write(compressed);
+                        offset += compressed.length;
+                    }
+                }
+                index.add(entry);
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("The archive of " + root + " would be larger than 2 GB");
+                }
+            }
+
+            for (IndexEntry entry : index) {
+                writeString(output, entry.path);
+                writeString(output, (entry.contentType != null) ? entry.contentType : "");
+                writeString(output, entry.eTag);
+                output.writeByte(entry.text ? 1 : 0);
+                output.writeLong(entry.lastModified);
+                output.writeLong(entry.offset);
+                output.writeLong(entry.length);
+                output.writeLong(entry.gzipOffset);
+                output.writeLong(entry.gzipLength);
+            }
+            // size() stops counting at Integer.MAX_VALUE
+            if (output.size() == Integer.MAX_VALUE) {
+                throw new IOException("The archive of " + root + " would be larger than 2 GB");
+            }
+        }
+
+        try (RandomAccessFile header = new RandomAccessFile(archive, "rw")) {
+            header.write(MAGIC);
+            header.writeInt(index.size());
+            header.writeLong(offset);
+        }
+        return index.size();
+    }
+
+    /**
+     * Defines a method that maps an archive and reads its index
+     * @param archive is a file written by pack
+     * @param preload is true to read every page once, so the first requests do not wait on the disk
+     * @return the archive, ready to serve
+     * @throws IOException if the file cannot be mapped or is not a valid archive
+     */
+    public static DocumentArchive open(File archive, boolean preload) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(archive + " is larger than 2 GB");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (preload) {
+            buffer.load();
+        }
+
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(archive + " is not a document archive");
+            }
+            int count = buffer.getInt();
+            long indexOffset = buffer.getLong();
+            buffer.position((int) indexOffset);
+
+            Map<String, Entry> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = readString(buffer);
+                String contentType = readString(buffer);
+                if (contentType.isEmpty()) contentType = null;
+                String eTag = readString(buffer);
+                boolean text = buffer.get() != 0;
+                long lastModified = buffer.getLong();
+                long offset = buffer.getLong();
+                long length = buffer.getLong();
+                long gzipOffset = buffer.getLong();
+                long gzipLength = buffer.getLong();
+
+                MappedFileCache.Mapping body = region(buffer, offset, length, lastModified);
+                MappedFileCache.Mapping gzipBody = (gzipLength >= 0)
+                        ? region(buffer, gzipOffset, gzipLength, lastModified)
+                        : null;
+                entries.put(path, new Entry(contentType, text, lastModified, eTag, length, body,
+                                            gzipLength, gzipBody));
+            }
+            return new DocumentArchive(entries, buffer.capacity());
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException(archive + " is damaged: " + e);
+        }
+    }
+
+    /**
+     * Defines a method that looks up a request path
+     * Paths that are not spelled exactly as packed (ex. with dot segments) are not found
+     * @param requestPath is the path of the request, still URL encoded
+     * @return the entry, or null if the archive has no such file
+     */
+    public Entry get(String requestPath) {
+        return entries.get(FileMetadataCache.decode(requestPath));
+    }
+
+    /**
+     * Defines a method that summarizes the archive
+     * @return the file count and archive size as a single line
+     */
+    public String getStats() {
+        return "files=" + entries.size() + " bytes=" + archiveBytes;
+    }
+
+    /**
+     * Defines a method that makes a mapping over one region of the archive
+     * The archive keeps the only reference it starts with, so responses can retain and release it
+     * without the region ever being unmapped
+     */
+    private static MappedFileCache.Mapping region(MappedByteBuffer buffer, long offset, long length,
+                                                  long lastModified) {
+        return new MappedFileCache.Mapping(buffer.slice((int) offset, (int) length), lastModified, length);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Defines a class for one index entry while an archive is being packed
+     */
+    private static final class IndexEntry {
+        private String path;
+        private String contentType;
+        private String eTag;
+        private boolean text;
+        private long lastModified;
+        private long offset;
+        private long length;
+        private long gzipOffset;
+        private long gzipLength;
+    }
+
+    /**
+     * Defines a class for one file of an open archive
+     */
+    public static final class Entry {
+        private final String contentType;
+        private final boolean text;
+        private final long lastModified;
+        private final String eTag;
+        private final String gzipETag;
+        private final long length;
+        private final MappedFileCache.Mapping body;
+        private final long gzipLength;
+        private final MappedFileCache.Mapping gzipBody;
+
+        Entry(String contentType, boolean text, long lastModified, String eTag, long length,
+              MappedFileCache.Mapping body, long gzipLength, MappedFileCache.Mapping gzipBody) {
+            this.contentType = contentType;
+            this.text = text;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+            this.gzipETag = (gzipBody != null) ? HttpUtil.createETag(length, lastModified, "gzip") : null;
+            this.length = length;
+            this.body = body;
+            this.gzipLength = gzipLength;
+            this.gzipBody = gzipBody;
+        }
+
+        /**
+         * @return the media type of the file, or null if its extension is unknown
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return true if the file is a text type
+         */
+        public boolean isText() {
+            return text;
+        }
+
+        /**
+         * @return the last-modified time of the file when it was packed
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the entity tag of the file as stored
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @param gzip is true for the gzip variant
+         * @return the entity tag of the file as stored, or of its gzip variant
+         */
+        public String getETag(boolean gzip) {
+            return gzip ? gzipETag : eTag;
+        }
+
+        /**
+         * @return the size of the file
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return true if a gzip variant was packed
+         */
+        public boolean hasGzip() {
+            return gzipBody != null;
+        }
+
+        /**
+         * @return the size of the gzip variant
+         */
+        public long getGzipLength() {
+            return gzipLength;
+        }
+
+        /**
+         * Defines a method that takes a reference on the body (or gzip variant) for one response
+         * The writer releases it once the body has been sent
+         * @param gzip is true for the gzip variant
+         * @return the retained mapping
+         */
+        public MappedFileCache.Mapping retainBody(boolean gzip) {
+            MappedFileCache.Mapping mapping = gzip ? gzipBody : body;
+            mapping.retain();
+            return mapping;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines a class that remembers what the file behind a request path looks like, so a request does not
+ * stat the disk (exists, canRead, isDirectory, length, lastModified) or decode its path again
+ * Missing files are remembered too, so probes for files that do not exist cost one map lookup
+ * Entries are dropped as soon as a WatchService on the document root reports a change to their file;
+ * every entry also expires after "-stat_cache_ttl_ms", which covers file systems the WatchService
+ * cannot watch and changes made in the short time between a stat and its entry being stored
+ */
+public class FileMetadataCache {
+    private final Path rootPath;
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // Entries for existing files and for missing ones are kept apart, so a scan for missing
+    // files can only flush other missing-file entries
+    private final ConcurrentHashMap<String, Entry> found = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> missing = new ConcurrentHashMap<>();
+
+    // Incremented before every invalidation, so a lookup can tell that its fresh entry may already be stale
+    private final AtomicLong generation = new AtomicLong();
+    private final WatchService watchService;
+
+    // Statistics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Defines a constructor that starts watching the document root for changes
+     * If the directory cannot be watched, entries are only dropped when they expire
+     * @param documentRoot is the directory files are served from
+     * @param maxEntries is the number of existing files, and separately of missing files, remembered
+     * @param ttlMillis is how long an entry is trusted
+     */
+    public FileMetadataCache(String documentRoot, int maxEntries, long ttlMillis) {
+        this.rootPath = rootPathOf(documentRoot);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = Math.max(1, ttlMillis);
+        this.watchService = startWatching();
+    }
+
+    /**
+     * Defines a method that gets what a request path refers to, from memory when possible
+     * Paths with dot segments, doubled slashes or backslashes are not remembered, since a change event
+     * could not be matched to them; they are looked up on disk every time
+     * @param requestPath is the path of the request, still URL encoded
+     * @return the file metadata, or null if the path leads out of the document root
+     */
+    public Entry get(String requestPath) {
+        String path = decode(requestPath);
+        if (!isPlain(path)) {
+            return stat(rootPath, path);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = found.get(path);
+        if (entry == null) {
+            entry = missing.get(path);
+        }
+        if (entry != null && now - entry.checkedMillis < ttlMillis) {
+            if (entry.exists) {
+                hits.increment();
+            } else {
+                negativeHits.increment();
+            }
+            return entry;
+        }
+
+        misses.increment();
+        long before = generation.get();
+        entry = stat(rootPath, path);
+        if (entry == null) return null;
+        ConcurrentHashMap<String, Entry> entries = entry.exists ? found : missing;
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(path, entry);
+
+        // A change reported while the file was being checked may be older or newer than what was stored
+        if (generation.get() != before) {
+            entries.remove(path, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Defines a method that checks a file on disk without the cache
+     * @param rootPath is the directory files are served from, as given by rootPathOf
+     * @param path is the decoded request path
+     * @return the file metadata, or null if the path leads out of the document root, which is not checked on disk
+     */
+    public static Entry stat(Path rootPath, String path) {
+        File file = resolve(rootPath, path);
+        return (file != null) ? new Entry(file, System.currentTimeMillis()) : null;
+    }
+
+    /**
+     * Defines a method that turns a document root into the absolute, normalized path request paths are resolved in
+     * @param documentRoot is the directory files are served from
+     * @return the path
+     */
+    public static Path rootPathOf(String documentRoot) {
+        return new File(documentRoot).toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Defines a method that finds the file a decoded request path names, with its dot segments removed
+     * A path that leads out of the document root (ex. "/../../etc/hostname", also once decoded from "%2e%2e")
+     * or that no file could have (ex. a NUL byte) names no file
+     * @param rootPath is the directory files are served from, as given by rootPathOf
+     * @param path is the decoded request path
+     * @return the file, or null if the path does not name one under the document root
+     */
+    public static File resolve(Path rootPath, String path) {
+        int from = 0;
+        while (from < path.length() && path.charAt(from) == '/') {
+            from++;
+        }
+        Path resolved;
+        try {
+            resolved = rootPath.resolve(path.substring(from)).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return resolved.startsWith(rootPath) ? resolved.toFile() : null;
+    }
+
+    /**
+     * Defines a method that decodes a request path, skipping the decoder when there is nothing to decode
+     * @param requestPath is the URL encoded path
+     * @return the decoded path
+     */
+    public static String decode(String requestPath) {
+        if (requestPath.indexOf('%') < 0 && requestPath.indexOf('+') < 0) {
+            return requestPath;
+        }
+        return URLDecoder.decode(requestPath, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Defines a method that stops watching the document root
+     */
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Defines a method that summarizes the cache statistics
+     * @return hit, negative hit, miss and invalidation counts and the entry counts as a single line
+     */
+    public String getStats() {
+        return "hits=" + hits.sum() + " negative_hits=" + negativeHits.sum() + " misses=" + misses.sum()
+                + " invalidations=" + invalidations.sum() + " entries=" + found.size()
+                + " missing_entries=" + missing.size() + " watching=" + (watchService != null);
+    }
+
+    /**
+     * Defines a method that checks a decoded path has exactly one spelling, so an event can find its entry
+     */
+    private static boolean isPlain(String path) {
+        if (!path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf("//") >= 0) return false;
+        return !path.contains("/./") && !path.contains("/../") && !path.endsWith("/.") && !path.endsWith("/..");
+    }
+
+    /**
+     * Defines a method that registers every directory under the document root and starts the thread
+     * that drops entries as change events arrive
+     * @return the watch service, or null if the document root cannot be watched
+     */
+    private WatchService startWatching() {
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            registerTree(service, rootPath);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Not watching " + rootPath + " for changes, file metadata expires after "
+                               + ttlMillis + " ms: " + e.getMessage());
+            if (service != null) {
+                try {
+                    service.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+
+        WatchService watching = service;
+        Thread watcher = new Thread(() -> watch(watching), "stat-cache-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        return service;
+    }
+
+    private static void registerTree(WatchService service, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+                    throws IOException {
+                directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Defines the loop run by the watcher thread
+     */
+    private void watch(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so nothing remembered can be trusted
+                        invalidateAll();
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path) event.context());
+                    boolean isDirectory = Files.isDirectory(changed);
+                    // A deleted path may have been a directory, which can no longer be checked
+                    invalidate(changed, isDirectory || event.kind() == StandardWatchEventKinds.ENTRY_DELETE);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isDirectory) {
+                        try {
+                            registerTree(service, changed);
+                        } catch (IOException e) {
+                            System.err.println("Not watching " + changed + " for changes: " + e.getMessage());
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The server is stopping
+        }
+    }
+
+    /**
+     * Defines a method that drops the entries for a changed file, for files below it if it is a directory,
+     * and for the file a .gz copy belongs to
+     * @param changed is the changed path
+     * @param tree is true to also drop every entry below the path
+     */
+    private void invalidate(Path changed, boolean tree) {
+        StringBuilder key = new StringBuilder();
+        for (Path part : rootPath.relativize(changed)) {
+            key.append('/').append(part);
+        }
+        String path = key.toString();
+
+        generation.incrementAndGet();
+        invalidations.increment();
+        found.remove(path);
+        missing.remove(path);
+        if (path.endsWith(".gz")) {
+            found.remove(path.substring(0, path.length() - 3));
+        }
+        if (tree) {
+            String below = path + "/";
+            found.keySet().removeIf(entry -> entry.startsWith(below));
+            missing.keySet().removeIf(entry -> entry.startsWith(below));
+        }
+    }
+
+    private void invalidateAll() {
+        generation.incrementAndGet();
+        invalidations.increment();
+        found.clear();
+        missing.clear();
+    }
+
+    /**
+     * Defines a class for what the file behind one request path looked like when it was checked
+     */
+    public static final class Entry {
+        private final File file;
+        private final String absolutePath;
+        private final boolean exists;
+        private final boolean readable;
+        private final long length;
+        private final long lastModified;
+        private final String contentType;
+        private final boolean text;
+        private final String eTag;
+        private final String gzipETag;
+        private final String deflateETag;
+        private final String gzipFileETag;
+        private final String gzipCacheKey;
+        private final String deflateCacheKey;
+        private final File gzipFile;
+        private final String gzipAbsolutePath;
+        private final long gzipLength;
+        private final long gzipLastModified;
+        private final long checkedMillis;
+
+        Entry(File file, long checkedMillis) {
+            this.file = file;
+            this.absolutePath = file.getAbsolutePath();
+            this.checkedMillis = checkedMillis;
+            this.exists = file.exists();
+            this.readable = exists && file.canRead() && !file.isDirectory();
+            this.length = readable ? file.length() : 0;
+            this.lastModified = readable ? file.lastModified() : 0;
+
+            String extension = HttpUtil.getExtension(file.getName());
+            this.contentType = HttpUtil.getContentType(extension);
+            this.text = HttpUtil.getTextMimeMap().containsKey(extension);
+            this.eTag = readable ? HttpUtil.createETag(length, lastModified) : null;
+
+            // The tags and compressed cache keys of the encoded variants are built once, not per request
+            boolean compressible = readable && text;
+            this.gzipETag = compressible ? HttpUtil.createETag(length, lastModified, "gzip") : null;
+            this.deflateETag = compressible ? HttpUtil.createETag(length, lastModified, "deflate") : null;
+            this.gzipCacheKey = compressible ? ContentCache.variantKey(file, "gzip") : null;
+            this.deflateCacheKey = compressible ? ContentCache.variantKey(file, "deflate") : null;
+
+            // A precompressed copy (ex. style.css.gz next to style.css) is used if it is not older than the file
+            File gzip = null;
+            if (readable && text) {
+                gzip = new File(file.getPath() + ".gz");
+                if (!gzip.isFile() || !gzip.canRead() || gzip.lastModified() < lastModified) {
+                    gzip = null;
+                }
+            }
+            this.gzipFile = gzip;
+            this.gzipAbsolutePath = (gzip != null) ? gzip.getAbsolutePath() : null;
+            this.gzipLength = (gzip != null) ? gzip.length() : 0;
+            this.gzipLastModified = (gzip != null) ? gzip.lastModified() : 0;
+            // The .gz copy holds other bytes than the server would compress, so it is tagged from its own size and
+            // time, and marked apart, so it never shares a tag with the compressed variant (If-Range, If-None-Match)
+            this.gzipFileETag = (gzip != null) ? HttpUtil.createETag(gzipLength, gzipLastModified, "gzip-file") : null;
+        }
+
+        /**
+         * @return the file the path refers to
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the absolute path of the file
+         */
+        public String getAbsolutePath() {
+            return absolutePath;
+        }
+
+        /**
+         * @return true if something exists at the path
+         */
+        public boolean exists() {
+            return exists;
+        }
+
+        /**
+         * @return true if the path is a regular file the server may read
+         */
+        public boolean isReadable() {
+            return readable;
+        }
+
+        /**
+         * @return the file size in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the file's last-modified time in milliseconds
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the media type for the file extension
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return true if the file is a text type that may be sent compressed
+         */
+        public boolean isText() {
+            return text;
+        }
+
+        /**
+         * @return the entity tag of the file sent as stored
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @param encoding is "gzip", "deflate", or null for the file as stored
+         * @return the entity tag of the file sent with that content coding by the server (not the .gz copy)
+         */
+        public String getETag(String encoding) {
+            if (encoding == null) return eTag;
+            if (gzipETag != null && encoding.equals("gzip")) return gzipETag;
+            if (deflateETag != null && encoding.equals("deflate")) return deflateETag;
+            return HttpUtil.createETag(length, lastModified, encoding);
+        }
+
+        /**
+         * @param encoding is "gzip" or "deflate"
+         * @return the key of the file's variant in the compressed cache
+         */
+        public String getCacheKey(String encoding) {
+            if (gzipCacheKey != null && encoding.equals("gzip")) return gzipCacheKey;
+            if (deflateCacheKey != null && encoding.equals("deflate")) return deflateCacheKey;
+            return ContentCache.variantKey(file, encoding);
+        }
+
+        /**
+         * @return the precompressed .gz copy of the file, or null if there is none
+         */
+        public File getGzipFile() {
+            return gzipFile;
+        }
+
+        /**
+         * @return the entity tag of the precompressed .gz copy, or null if there is none
+         */
+        public String getGzipFileETag() {
+            return gzipFileETag;
+        }
+
+        /**
+         * @return the absolute path of the .gz copy, or null if there is none
+         */
+        public String getGzipAbsolutePath() {
+            return gzipAbsolutePath;
+        }
+
+        /**
+         * @return the size of the .gz copy
+         */
+        public long getGzipLength() {
+            return gzipLength;
+        }
+
+        /**
+         * @return the last-modified time of the .gz copy
+         */
+        public long getGzipLastModified() {
+            return gzipLastModified;
+        }
+    }
+}
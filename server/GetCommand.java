@@ -1,25 +1,61 @@
 package server;
 
 import java.io.File;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Defines a class which processes only HTTP GET requests
  */
 public class GetCommand implements Command {
-    private final String documentRoot;
+    private final Path rootPath;
+    private final ContentCache contentCache;
+    private final ContentCache compressedCache;
+    private final MappedFileCache mappedFileCache;
+    private final FileMetadataCache metadataCache;
+    private final DocumentArchive archive;
+    private final StatsCommand statsCommand;
 
     /**
      * Defines a constructor that sets the documentRoot to the correct path
      * @param documentRoot is set to the current directory if it is null
      */
     public GetCommand(String documentRoot) {
-        if (documentRoot != null) {
-            this.documentRoot = documentRoot;
-        } else {
-            this.documentRoot = ".";
-        }
+        this(documentRoot, null, null, null, null, null, null);
+    }
+
+    /**
+     * Defines a constructor that serves the document root of a running server, using its shared cache
+     * The server builds one for its ServerContext, which every connection uses (see ServerContext.getCommand)
+     * @param context holds the document root, the content caches and the metrics served on the stats path
+     */
+    public GetCommand(ServerContext context) {
+        this(context.getConfig().getDocumentRoot(), context.getContentCache(), context.getCompressedCache(),
+             context.getMappedFileCache(), context.getMetadataCache(), context.getArchive(),
+             (context.getMetrics() != null) ? new StatsCommand(context.getMetrics(), context.getStatsPath()) : null);
+    }
+
+    /**
+     * Defines a constructor that sets the documentRoot and the cache of file bodies
+     * @param documentRoot is set to the current directory if it is null
+     * @param contentCache holds small file bodies in memory, or null to always read from disk
+     * @param compressedCache holds gzip and deflate variants of text files, or null to only serve .gz files
+     * @param mappedFileCache keeps hot mid-size files memory mapped, or null to open them per request
+     * @param metadataCache remembers what each request path refers to, or null to check the disk per request
+     * @param archive serves every file from a packed archive instead of the document root, or null
+     * @param statsCommand answers the reserved stats path, or null if there is none
+     */
+    private GetCommand(String documentRoot, ContentCache contentCache, ContentCache compressedCache,
+                       MappedFileCache mappedFileCache, FileMetadataCache metadataCache, DocumentArchive archive,
+                       StatsCommand statsCommand) {
+        this.rootPath = FileMetadataCache.rootPathOf((documentRoot != null) ? documentRoot : ".");
+        this.contentCache = contentCache;
+        this.compressedCache = compressedCache;
+        this.mappedFileCache = mappedFileCache;
+        this.metadataCache = metadataCache;
+        this.archive = archive;
+        this.statsCommand = statsCommand;
     }
 
     @Override
@@ -30,20 +66,30 @@ public class GetCommand implements Command {
      * 
      */
     public void execute(HttpRequest request, HttpResponse response) throws Exception {
-        String textPath = URLDecoder.decode(request.getPath(), StandardCharsets.UTF_8);
-        File file = new File(documentRoot, textPath);
+        if (statsCommand != null && statsCommand.matches(request)) {
+            statsCommand.execute(request, response);
+            return;
+        }
+        if (archive != null) {
+            executeArchived(request, response);
+            return;
+        }
+
+        // The stat calls and path decoding are skipped when the metadata cache remembers the path
+        FileMetadataCache.Entry metadata = (metadataCache != null)
+                ? metadataCache.get(request.getPath())
+                : FileMetadataCache.stat(rootPath, FileMetadataCache.decode(request.getPath()));
 
         // Sets the HTTP version in the HTTP response to the HTTP version in the parsed request
         response.setVersion(request.getVersion());
 
-        final boolean fileNotFound = (!file.exists());
-        final boolean forbiddenFile = (!file.canRead() || file.isDirectory());
-
-        // Sends a 404 error back to the client
-        if (fileNotFound) {
+        // Sends a 404 error back to the client, also for a path leading out of the document root (no metadata)
+        if (metadata == null || !metadata.exists()) {
             ResponseWriter.sendNotFound(response);
             return;
         }
+        File file = metadata.getFile();
+        final boolean forbiddenFile = !metadata.isReadable();
 
         // Sends a 403 error back to the client
         if (forbiddenFile) {
@@ -52,21 +98,164 @@ public class GetCommand implements Command {
         }
 
         // Sends a valid response back to the client
-        String extension = HttpUtil.getExtension(file.getName());
-        String contentType = HttpUtil.getContentType(extension);
+        String contentType = metadata.getContentType();
+        boolean isText = metadata.isText();
 
         // Calls setters from HttpResponse.java
+        long length = metadata.getLength();
+        long lastModified = metadata.getLastModified();
+
+        // Text is sent compressed when the client accepts it, from a .gz file next to it or the compressed cache
+        String encoding = null;
+        File gzipFile = null;
+        if (isText) {
+            response.setVaryAcceptEncoding(true);
+            encoding = HttpUtil.negotiateEncoding(request.getHeaders());
+            if ("gzip".equals(encoding)) {
+                gzipFile = metadata.getGzipFile();
+            }
+            if (encoding != null && gzipFile == null
+                    && (compressedCache == null || length > compressedCache.getMaxEntryBytes())) {
+                encoding = null;
+            }
+        }
+
+        String eTag = (gzipFile != null) ? metadata.getGzipFileETag() : metadata.getETag(encoding);
+        response.setETag(eTag);
+        response.setLastModified(lastModified);
+        response.setAcceptRanges(true);
+
+        // Sends a 304 back to the client if its cached copy is still current
+        if (HttpUtil.isNotModified(request, eTag, lastModified)) {
+            ResponseWriter.sendNotModified(response);
+            return;
+        }
+
+        File servedFile = file;
+        String servedPath = metadata.getAbsolutePath();
+        long servedLastModified = lastModified;
+        byte[] body = null;
+        if (gzipFile != null) {
+            servedFile = gzipFile;
+            servedPath = metadata.getGzipAbsolutePath();
+            servedLastModified = metadata.getGzipLastModified();
+            length = metadata.getGzipLength();
+        } else if (encoding != null) {
+            body = compressedCache.get(metadata.getCacheKey(encoding), file, lastModified, length, encoding);
+            if (body == null) {
+                // The file changed while it was being compressed, so it is sent as stored
+                encoding = null;
+                response.setETag(metadata.getETag());
+            } else {
+                length = body.length;
+            }
+        }
+
+        // Small files are served from memory while their last-modified time and size are unchanged
+        if (encoding == null && contentCache != null) {
+            body = contentCache.get(file, lastModified, length);
+        }
+
         response.setStatus(200, "OK");
-        response.setContentLength(file.length());
+        response.setContentLength(length);
+        response.setResourceLength(length);
         response.setContentType(contentType);
-        response.setFilePath(file.getAbsolutePath());
+        response.setContentEncoding(encoding);
+        response.setFilePath(servedPath);
+        response.setCachedBody(body);
+        response.setText(isText);
 
-        if (HttpUtil.getTextMimeMap().containsKey(extension)) {
-            response.setText(true);
-        } else {
-            response.setText(false);
+        if (!applyRanges(request, response, lastModified)) {
+            return;
         }
 
+        // Hot files too large for the content cache are written from a memory mapping
+        if (body == null && mappedFileCache != null) {
+            response.setMapping(mappedFileCache.acquire(servedFile, servedLastModified, length));
+        }
+
+        ResponseWriter.writeSuccessResponse(response);
+    }
+
+    /**
+     * Defines a method that answers a request from the packed archive given with "-archive"
+     * Nothing touches the disk: the entry is found with one lookup and the body is written from the mapping
+     * @param request is the parsed request
+     * @param response is formatted with a header and a body (if applicable)
+     * @throws IOException if the send doesn't work
+     */
+    private void executeArchived(HttpRequest request, HttpResponse response) throws IOException {
+        response.setVersion(request.getVersion());
+        DocumentArchive.Entry entry = archive.get(request.getPath());
+        if (entry == null) {
+            ResponseWriter.sendNotFound(response);
+            return;
+        }
+
+        boolean gzip = false;
+        if (entry.isText()) {
+            response.setVaryAcceptEncoding(true);
+            gzip = entry.hasGzip() && "gzip".equals(HttpUtil.negotiateEncoding(request.getHeaders()));
+        }
+
+        long length = gzip ? entry.getGzipLength() : entry.getLength();
+        String eTag = entry.getETag(gzip);
+        response.setETag(eTag);
+        response.setLastModified(entry.getLastModified());
+        response.setAcceptRanges(true);
+
+        if (HttpUtil.isNotModified(request, eTag, entry.getLastModified())) {
+            ResponseWriter.sendNotModified(response);
+            return;
+        }
+
+        response.setStatus(200, "OK");
+        response.setContentLength(length);
+        response.setResourceLength(length);
+        response.setContentType(entry.getContentType());
+        response.setContentEncoding(gzip ? "gzip" : null);
+        response.setText(entry.isText());
+
+        if (!applyRanges(request, response, entry.getLastModified())) {
+            return;
+        }
+
+        if (length > 0) {
+            response.setMapping(entry.retainBody(gzip));
+        } else {
+            response.setCachedBody(new byte[0]);
+        }
         ResponseWriter.writeSuccessResponse(response);
     }
+
+    /**
+     * Defines a method that turns a 200 response into a 206 when the request asks for part of the body
+     * The response must already carry its ETag, content type and resource length
+     * @param request is the parsed request
+     * @param response is the 200 response being prepared
+     * @param lastModified is the resource's last-modified time
+     * @return false if a 416 was sent because no requested range overlaps the body, else true
+     * @throws IOException if the send doesn't work
+     */
+    private static boolean applyRanges(HttpRequest request, HttpResponse response, long lastModified)
+            throws IOException {
+        // Sends part of the body (206), or a 416 if no requested range overlaps it
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && HttpUtil.isRangeCurrent(request, response.getETag(), lastModified)) {
+            long length = response.getResourceLength();
+            List<ByteRange> ranges = ByteRange.parse(rangeHeader, length);
+            if (ranges != null && ranges.isEmpty()) {
+                ResponseWriter.sendRangeNotSatisfiable(response);
+                return false;
+            }
+            if (ranges != null) {
+                response.setStatus(206, "Partial Content");
+                response.setRanges(ranges);
+                response.setContentLength(ranges.size() == 1
+                        ? ranges.get(0).getLength()
+                        : ByteRange.multipartLength(ranges, response.getContentType(), length));
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,296 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Defines a class that serializes response headers straight into a reusable byte buffer
+ * Status lines, header names and content type lines are encoded once and copied on each response,
+ * and the Date value comes from HttpDate, so a typical header costs no allocation
+ * An encoder is not thread safe; each thread or connection keeps its own
+ */
+public final class HeaderEncoder {
+    private static final byte[] CRLF = ascii(HttpUtil.END_LINE);
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] DATE = ascii("Date: ");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive" + HttpUtil.END_LINE);
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close" + HttpUtil.END_LINE);
+    private static final byte[] ETAG = ascii("ETag: ");
+    private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes" + HttpUtil.END_LINE);
+    private static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+    private static final byte[] UNSATISFIED_RANGE = ascii("bytes */");
+    private static final byte[] CONTENT_ENCODING_GZIP = ascii("Content-Encoding: gzip" + HttpUtil.END_LINE);
+    private static final byte[] CONTENT_ENCODING_DEFLATE = ascii("Content-Encoding: deflate" + HttpUtil.END_LINE);
+    private static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+    private static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding" + HttpUtil.END_LINE);
+    private static final String MULTIPART_TYPE = "multipart/byteranges; boundary=" + ByteRange.BOUNDARY;
+
+    // Status lines for the codes this server sends, indexed by status code
+    private static final int MAX_STATUS = 600;
+    private static final String[] REASONS = new String[MAX_STATUS];
+    private static final byte[][] HTTP_10_STATUS_LINES = new byte[MAX_STATUS][];
+    private static final byte[][] HTTP_11_STATUS_LINES = new byte[MAX_STATUS][];
+
+    // "Content-Type: <type>\r\n" lines, one per media type
+    private static final ConcurrentHashMap<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<>();
+
+    static {
+        REASONS[200] = "OK";
+        REASONS[206] = "Partial Content";
+        REASONS[304] = "Not Modified";
+        REASONS[400] = "Bad Request";
+        REASONS[403] = "Forbidden";
+        REASONS[404] = "Not Found";
+        REASONS[416] = "Range Not Satisfiable";
+        REASONS[500] = "Internal Server Error";
+        REASONS[503] = "Service Unavailable";
+
+        for (int code = 0; code < MAX_STATUS; code++) {
+            if (REASONS[code] == null) continue;
+            HTTP_10_STATUS_LINES[code] = ascii("HTTP/1.0 " + code + " " + REASONS[code] + HttpUtil.END_LINE);
+            HTTP_11_STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + REASONS[code] + HttpUtil.END_LINE);
+        }
+    }
+
+    // Last-Modified values recently encoded, by second: a file's date is formatted once, not on every response
+    private static final int DATE_SLOTS = 64;
+
+    private byte[] buffer = new byte[256];
+    private int length;
+    private final long[] dateSeconds = new long[DATE_SLOTS];
+    private final byte[][] dateBytes = new byte[DATE_SLOTS][];
+
+    /**
+     * Defines a method that serializes a response header, replacing whatever the buffer held before
+     * @param statusCode represents the status of the request (200, 400, 404, etc.)
+     * @param description defines the status code (OK, Bad Request, Not Found, etc.)
+     * @param version is the HTTP version the client uses to send the request (HTTP 1.0 or HTTP 1.1)
+     * @param contentType is media type of the resource, or null
+     * @param len is the size of the resource
+     * @param keepAlive is true if the connection stays open after this response
+     * @return this encoder, holding the header bytes up to getLength()
+     */
+    public HeaderEncoder encode(int statusCode, String description, String version, String contentType,
+                                long len, boolean keepAlive) {
+        appendCommonHeaders(statusCode, description, version, contentType, len, keepAlive);
+        append(CRLF);
+        return this;
+    }
+
+    /**
+     * Defines a method that serializes a 503 header telling the client when to try again
+     * The connection is always closed after it
+     * @param retryAfterSeconds is sent as the Retry-After header
+     * @return this encoder, holding the header bytes up to getLength()
+     */
+    public HeaderEncoder encodeServiceUnavailable(int retryAfterSeconds) {
+        appendCommonHeaders(503, REASONS[503], "HTTP/1.1", null, 0, false);
+        append(RETRY_AFTER);
+        appendNumber(retryAfterSeconds);
+        append(CRLF);
+        append(CRLF);
+        return this;
+    }
+
+    /**
+     * Defines a method that serializes the header of a response, including its cache validators
+     * @param response is the HTTP response being sent
+     * @return this encoder, holding the header bytes up to getLength()
+     */
+    public HeaderEncoder encode(HttpResponse response) {
+        List<ByteRange> ranges = response.getRanges();
+        boolean multipart = ranges != null && ranges.size() > 1;
+        appendCommonHeaders(response.getStatusCode(), response.getStatusDescription(), response.getVersion(),
+                            multipart ? MULTIPART_TYPE : response.getContentType(),
+                            response.getContentLength(), response.isKeepAlive());
+
+        if ("gzip".equals(response.getContentEncoding())) {
+            append(CONTENT_ENCODING_GZIP);
+        } else if ("deflate".equals(response.getContentEncoding())) {
+            append(CONTENT_ENCODING_DEFLATE);
+        }
+        if (response.isVaryAcceptEncoding()) {
+            append(VARY_ACCEPT_ENCODING);
+        }
+        if (response.isAcceptRanges()) {
+            append(ACCEPT_RANGES);
+        }
+        if (response.getStatusCode() == 206 && ranges != null && ranges.size() == 1) {
+            append(CONTENT_RANGE);
+            appendAscii(ranges.get(0).toContentRange(response.getResourceLength()));
+            append(CRLF);
+        } else if (response.getStatusCode() == 416) {
+            append(CONTENT_RANGE);
+            append(UNSATISFIED_RANGE);
+            appendNumber(response.getResourceLength());
+            append(CRLF);
+        }
+
+        if (response.getETag() != null) {
+            append(ETAG);
+            appendAscii(response.getETag());
+            append(CRLF);
+        }
+        if (response.getLastModified() > 0) {
+            append(LAST_MODIFIED);
+            append(lastModifiedBytes(response.getLastModified()));
+            append(CRLF);
+        }
+
+        append(CRLF);
+        return this;
+    }
+
+    /**
+     * Defines a method that writes the status line and the headers every response carries
+     * A 304 response describes the client's cached copy, so it has no Content-Type or Content-Length
+     */
+    private void appendCommonHeaders(int statusCode, String description, String version, String contentType,
+                                     long len, boolean keepAlive) {
+        length = 0;
+
+        if (version == null) {
+            version = "HTTP/1.1";
+        }
+        if (description == null) {
+            description = "";
+        }
+        appendStatusLine(statusCode, description, version);
+
+        // Creating the content type
+        boolean notModified = (statusCode == 304);
+        if (contentType != null && !contentType.isEmpty() && len > 0 && !notModified) {
+            append(CONTENT_TYPE_LINES.computeIfAbsent(contentType,
+                    type -> ascii("Content-Type: " + type + HttpUtil.END_LINE)));
+        }
+
+        // Creating content length, date and connection
+        if (!notModified) {
+            append(CONTENT_LENGTH);
+            appendNumber(len);
+            append(CRLF);
+        }
+        append(DATE);
+        append(HttpDate.currentBytes());
+        append(CRLF);
+        append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    /**
+     * Defines a method that writes the encoded header to the client
+     * @param output is the socket output
+     * @throws IOException if the write fails
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(buffer, 0, length);
+    }
+
+    /**
+     * Defines a method to get the buffer holding the encoded header
+     * @return the internal buffer, valid from index 0 up to getLength()
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Defines a method to get the size of the encoded header
+     * @return the number of valid bytes in the buffer
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Defines a method that appends the status line, using a pre-encoded copy when one exists
+     */
+    private void appendStatusLine(int statusCode, String description, String version) {
+        if (statusCode >= 0 && statusCode < MAX_STATUS && description.equals(REASONS[statusCode])) {
+            if ("HTTP/1.1".equals(version)) {
+                append(HTTP_11_STATUS_LINES[statusCode]);
+                return;
+            }
+            if ("HTTP/1.0".equals(version)) {
+                append(HTTP_10_STATUS_LINES[statusCode]);
+                return;
+            }
+        }
+        appendAscii(version);
+        appendByte(' ');
+        appendNumber(statusCode);
+        appendByte(' ');
+        appendAscii(description);
+        append(CRLF);
+    }
+
+    /**
+     * Defines a method that gets a last-modified time formatted as an HTTP date, from the date slots if it was
+     * encoded recently
+     */
+    private byte[] lastModifiedBytes(long epochMillis) {
+        long seconds = Math.floorDiv(epochMillis, 1000);
+        int slot = (int) (seconds ^ (seconds >>> 16)) & (DATE_SLOTS - 1);
+        if (dateBytes[slot] == null || dateSeconds[slot] != seconds) {
+            dateBytes[slot] = ascii(HttpDate.format(epochMillis));
+            dateSeconds[slot] = seconds;
+        }
+        return dateBytes[slot];
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendByte(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    /**
+     * Defines a method that appends a String one char per byte, as header text is ASCII
+     */
+    private void appendAscii(String text) {
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    /**
+     * Defines a method that appends the decimal digits of a non-negative number without creating a String
+     */
+    private void appendNumber(long value) {
+        if (value < 0) {
+            appendAscii(Long.toString(value));
+            return;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] larger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,560 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Defines a class for HPACK, the header compression of HTTP/2 (RFC 7541)
+ * Each direction of a connection keeps a dynamic table of recent header fields, so a field sent before
+ * is repeated as a one byte index; names and values that are not in a table are sent as literals,
+ * Huffman coded when that is shorter
+ * A Decoder reads the header blocks the client sends and an Encoder writes the blocks of the responses;
+ * both belong to one connection and are used by one thread
+ */
+public final class Hpack {
+    // Size the dynamic tables start with and the decoder announces (SETTINGS_HEADER_TABLE_SIZE)
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    // Bytes an entry counts for on top of its name and value
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int EOS = 256;
+
+    // The static table (RFC 7541, appendix A); index 0 is unused
+    private static final String[][] STATIC_TABLE = {
+        null,
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""}
+    };
+    private static final int STATIC_COUNT = STATIC_TABLE.length - 1;
+    // First static index of each name; entries with the same name are next to each other
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    // The Huffman code (RFC 7541, appendix B): the code of each symbol, right aligned, and its length in bits
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    // Decoding tree: node n has its children at 2n and 2n + 1; a child is another node, or ~symbol for a leaf
+    private static final int[] HUFFMAN_TREE = new int[2 * 256];
+
+    static {
+        for (int i = STATIC_COUNT; i >= 1; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+        }
+
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    HUFFMAN_TREE[child] = ~symbol;
+                } else {
+                    if (HUFFMAN_TREE[child] == 0) HUFFMAN_TREE[child] = nodes++;
+                    node = HUFFMAN_TREE[child];
+                }
+            }
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Defines an interface for whatever receives the fields of a decoded header block
+     */
+    public interface HeaderListener {
+
+        /**
+         * Defines a method that receives one header field, in the order the block lists them
+         * @param name is the field name
+         * @param value is the field value
+         * @throws IOException if the field is rejected
+         */
+        void header(String name, String value) throws IOException;
+    }
+
+    /**
+     * Defines a class that decodes the header blocks sent by the client
+     */
+    public static final class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+
+        /**
+         * Defines a constructor for a decoder
+         * @param maxTableSize is the largest dynamic table the client may use, as announced in SETTINGS
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Defines a method that decodes a complete header block
+         * Every block must be decoded, even for a refused stream, or the dynamic table falls out of step
+         * @param block holds the block
+         * @param offset is the index of the first byte
+         * @param length is the number of bytes
+         * @param listener receives each field
+         * @throws IOException if the block is not valid HPACK, or the listener rejects a field
+         */
+        public void decode(byte[] block, int offset, int length, HeaderListener listener) throws IOException {
+            Reader reader = new Reader(block, offset, offset + length);
+            boolean fieldSeen = false;
+            while (reader.hasMore()) {
+                int b = reader.peek();
+                if ((b & 0x80) != 0) {
+                    // Indexed field
+                    int index = reader.readInteger(7);
+                    listener.header(nameAt(index), valueAt(index));
+                    fieldSeen = true;
+                } else if ((b & 0x40) != 0) {
+                    // Literal added to the dynamic table
+                    String name = readName(reader, 6);
+                    String value = reader.readString();
+                    table.add(name, value);
+                    listener.header(name, value);
+                    fieldSeen = true;
+                } else if ((b & 0x20) != 0) {
+                    // Dynamic table size update, only allowed before the first field
+                    int size = reader.readInteger(5);
+                    if (fieldSeen || size > maxTableSize) {
+                        throw new IOException("Invalid dynamic table size update to " + size);
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    // Literal not added to the table (0000) or never to be indexed (0001)
+                    String name = readName(reader, 4);
+                    listener.header(name, reader.readString());
+                    fieldSeen = true;
+                }
+            }
+        }
+
+        private String readName(Reader reader, int prefixBits) throws IOException {
+            int index = reader.readInteger(prefixBits);
+            return (index == 0) ? reader.readString() : nameAt(index);
+        }
+
+        private String nameAt(int index) throws IOException {
+            return entryAt(index)[0];
+        }
+
+        private String valueAt(int index) throws IOException {
+            return entryAt(index)[1];
+        }
+
+        private String[] entryAt(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_COUNT) return STATIC_TABLE[index];
+            String[] entry = (index > STATIC_COUNT) ? table.get(index - STATIC_COUNT - 1) : null;
+            if (entry == null) {
+                throw new IOException("Header index " + index + " is not in the tables");
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Defines a class that encodes the header blocks of responses into a reusable buffer
+     * Fields worth remembering (ex. content-type, date) are added to the dynamic table so later responses
+     * send them as an index; fields that change per response (ex. content-length, etag) are not, so they
+     * do not push the useful entries out
+     */
+    public static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private byte[] buffer = new byte[512];
+        private int length;
+        private int pendingSizeUpdate = -1;
+
+        /**
+         * Defines a method that applies the client's SETTINGS_HEADER_TABLE_SIZE
+         * The encoder never uses more than the default size; shrinking the table is announced
+         * at the start of the next block
+         * @param size is the largest table the client's decoder keeps
+         */
+        public void setMaxTableSize(int size) {
+            int newSize = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (newSize == table.maxSize) return;
+            table.setMaxSize(newSize);
+            pendingSizeUpdate = newSize;
+        }
+
+        /**
+         * Defines a method that starts a new header block, dropping the previous one
+         */
+        public void start() {
+            length = 0;
+            if (pendingSizeUpdate >= 0) {
+                writeInteger(0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+        }
+
+        /**
+         * Defines a method that appends one field to the block
+         * @param name is the field name, lower case
+         * @param value is the field value
+         * @param indexed is true to add the field to the dynamic table when it is not in a table yet
+         */
+        public void header(String name, String value, boolean indexed) {
+            Integer staticName = STATIC_NAMES.get(name);
+            int nameIndex = 0;
+            if (staticName != null) {
+                nameIndex = staticName;
+                for (int i = staticName; i <= STATIC_COUNT && STATIC_TABLE[i][0].equals(name); i++) {
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        writeInteger(0x80, 7, i);
+                        return;
+                    }
+                }
+            }
+            for (int i = 0; i < table.count; i++) {
+                String[] entry = table.get(i);
+                if (!entry[0].equals(name)) continue;
+                if (entry[1].equals(value)) {
+                    writeInteger(0x80, 7, STATIC_COUNT + 1 + i);
+                    return;
+                }
+                if (nameIndex == 0) nameIndex = STATIC_COUNT + 1 + i;
+            }
+
+            if (indexed) {
+                writeInteger(0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                writeInteger(0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) writeString(name);
+            writeString(value);
+        }
+
+        /**
+         * Defines a method to get the array the block is encoded into
+         * @return the buffer, valid up to getLength()
+         */
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Defines a method to get the size of the block
+         * @return the number of bytes encoded since start()
+         */
+        public int getLength() {
+            return length;
+        }
+
+        private void writeInteger(int pattern, int prefixBits, int value) {
+            ensureRoom(6);
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                buffer[length++] = (byte) (pattern | value);
+                return;
+            }
+            buffer[length++] = (byte) (pattern | max);
+            value -= max;
+            while (value >= 0x80) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeString(String text) {
+            long bits = 0;
+            for (int i = 0; i < text.length(); i++) {
+                bits += HUFFMAN_LENGTHS[text.charAt(i) & 0xFF];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= text.length()) {
+                writeInteger(0x00, 7, text.length());
+                ensureRoom(text.length());
+                for (int i = 0; i < text.length(); i++) {
+                    buffer[length++] = (byte) text.charAt(i);
+                }
+                return;
+            }
+
+            writeInteger(0x80, 7, huffmanLength);
+            ensureRoom(huffmanLength);
+            long pending = 0;
+            int pendingBits = 0;
+            for (int i = 0; i < text.length(); i++) {
+                int symbol = text.charAt(i) & 0xFF;
+                pending = (pending << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+                pendingBits += HUFFMAN_LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    buffer[length++] = (byte) (pending >>> pendingBits);
+                }
+            }
+            if (pendingBits > 0) {
+                // The last byte is padded with the most significant bits of EOS, which are all ones
+                buffer[length++] = (byte) ((pending << (8 - pendingBits)) | (0xFF >>> pendingBits));
+            }
+        }
+
+        private void ensureRoom(int count) {
+            if (length + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+        }
+    }
+
+    /**
+     * Defines a class for a dynamic table: a ring of entries, newest first, evicted oldest first
+     * once their size passes the maximum
+     */
+    private static final class DynamicTable {
+        private String[][] entries = new String[16][];
+        private int first;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Defines a method to get an entry by its position, 0 being the newest
+         * @return the name and value, or null if there is no such entry
+         */
+        String[] get(int position) {
+            if (position < 0 || position >= count) return null;
+            return entries[(first + position) & (entries.length - 1)];
+        }
+
+        void add(String name, String value) {
+            int entrySize = ENTRY_OVERHEAD + name.length() + value.length();
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                // An entry larger than the table empties it and is not added
+                return;
+            }
+            if (count == entries.length) {
+                String[][] larger = new String[entries.length * 2][];
+                for (int i = 0; i < count; i++) {
+                    larger[i] = get(i);
+                }
+                entries = larger;
+                first = 0;
+            }
+            first = (first - 1) & (entries.length - 1);
+            entries[first] = new String[] {name, value};
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (count > 0 && size > targetSize) {
+                int last = (first + count - 1) & (entries.length - 1);
+                size -= ENTRY_OVERHEAD + entries[last][0].length() + entries[last][1].length();
+                entries[last] = null;
+                count--;
+            }
+        }
+    }
+
+    /**
+     * Defines a class that reads the integers and strings of a header block
+     */
+    private static final class Reader {
+        private final byte[] block;
+        private int position;
+        private final int end;
+
+        Reader(byte[] block, int position, int end) {
+            this.block = block;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        int peek() {
+            return block[position] & 0xFF;
+        }
+
+        int readInteger(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) return value;
+
+            for (int shift = 0; shift <= 28; shift += 7) {
+                if (position == end) throw new IOException("Header block ends inside an integer");
+                int b = block[position++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if (value < 0) break;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Integer in header block is too large");
+        }
+
+        String readString() throws IOException {
+            if (position == end) throw new IOException("Header block ends before a string");
+            boolean huffman = (peek() & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) throw new IOException("String runs past the end of the header block");
+
+            String text = huffman
+                    ? decodeHuffman(block, position, length)
+                    : new String(block, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return text;
+        }
+    }
+
+    /**
+     * Defines a method that decodes a Huffman coded string
+     * The padding after the last symbol must be fewer than 8 bits, all ones (RFC 7541, section 5.2)
+     */
+    private static String decodeHuffman(byte[] bytes, int offset, int length) throws IOException {
+        StringBuilder text = new StringBuilder(length + length / 2);
+        int node = 0;
+        int bitsSinceSymbol = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + value];
+                bitsSinceSymbol++;
+                allOnes &= (value == 1);
+                if (child < 0) {
+                    int symbol = ~child;
+                    if (symbol == EOS) throw new IOException("Huffman string contains EOS");
+                    text.append((char) symbol);
+                    node = 0;
+                    bitsSinceSymbol = 0;
+                    allOnes = true;
+                } else {
+                    node = child;
+                }
+            }
+        }
+        if (bitsSinceSymbol > 7 || !allOnes) {
+            throw new IOException("Invalid padding in Huffman string");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,1082 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Defines a class that serves one HTTP/2 connection, on the thread of its ThreadHandler
+ * A client starts HTTP/2 either by sending the connection preface instead of a request line (with prior knowledge
+ * in cleartext, or over TLS once ALPN picked "h2"), or in cleartext (h2c) by asking an HTTP/1.1 GET to switch
+ * with "Upgrade: h2c", in which case that request becomes stream 1
+ *
+ * Many requests (streams) are open at once on the connection. Each is run through the same Command as an
+ * HTTP/1.x request as soon as its header block has arrived; the HTTP/1.x header is discarded, the response
+ * fields are sent as an HPACK coded HEADERS frame, and the body is queued as pieces of memory, mapping or file.
+ * Queued bodies are sent in DATA frames of at most 16 KB, taking turns between streams and within the flow
+ * control windows the client grants (with "-disk_io async" file regions are read ahead on the DiskReader's threads
+ * meanwhile); incoming frames are read between two DATA frames whenever bytes are waiting, so a large download does
+ * not hold up the requests that arrive behind it
+ */
+public class Http2Connection {
+    // The bytes a client sends before its first frame (RFC 9113, section 3.4)
+    static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols" + HttpUtil.END_LINE
+            + "Connection: Upgrade" + HttpUtil.END_LINE
+            + "Upgrade: h2c" + HttpUtil.END_LINE + HttpUtil.END_LINE).getBytes(StandardCharsets.US_ASCII);
+    private static final String MULTIPART_TYPE = "multipart/byteranges; boundary=" + ByteRange.BOUNDARY;
+
+    // Frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // Frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // Settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // Error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int FRAME_HEADER_BYTES = 9;
+    // The frame size and window every connection starts with; the server keeps both for what it receives
+    private static final int DEFAULT_FRAME_SIZE = 16 * 1024;
+    private static final int DEFAULT_WINDOW = 65_535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+    // Trailer fields are decoded to keep the HPACK table in step and then dropped
+    private static final Hpack.HeaderListener TRAILERS = (name, value) -> { };
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final Command command;
+    private final KeepAliveTimer keepAliveTimer;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final DiskReader diskReader;
+    // Request header limits, the same as for HTTP/1.x ("-max_header_bytes", "-max_header_count")
+    private final int maxHeaderBytes;
+    private final int maxHeaderCount;
+    private final byte[] remoteAddress;
+    private final int maxStreams;
+
+    // Bytes read from the socket and not handled yet
+    private final byte[] inBuffer = new byte[FRAME_HEADER_BYTES + DEFAULT_FRAME_SIZE];
+    private int inPosition;
+    private int inLimit;
+
+    // The frame being handled
+    private final byte[] frameHeader = new byte[FRAME_HEADER_BYTES];
+    private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+    private int frameLength;
+    private int frameType;
+    private int frameFlags;
+    private int frameStream;
+
+    // A header block still waiting for its CONTINUATION frames
+    private byte[] headerBlock = new byte[1024];
+    private int headerBlockLength;
+    private int headerBlockStream;
+    private boolean headerBlockEndsStream;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    // Streams whose request is still arriving or whose response is still being sent
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // Streams with body bytes to send, in the order they take turns
+    private final ArrayDeque<Stream> sending = new ArrayDeque<>();
+    private int lastStreamId;
+    private boolean goAwayReceived;
+    private boolean settingsReceived;
+
+    // What the client allows the server to send
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW;
+    // Bytes received on the connection since its window was last opened again
+    private int receivedSinceUpdate;
+
+    // Lazily made array for copying file regions when the output is not pooled
+    private byte[] copyBuffer;
+
+    /**
+     * Defines a constructor for a connection taken over from a ThreadHandler
+     * @param socket is the client connection
+     * @param input is the connection's input, the socket's stream or the decrypted stream of a TlsChannel
+     * @param output is the connection's buffered output
+     * @param context holds the shared components and the "-http2_max_streams" option
+     * @param keepAliveTimer is the connection's keep-alive timer, already open
+     */
+    public Http2Connection(Socket socket, InputStream input, OutputStream output, ServerContext context,
+                           KeepAliveTimer keepAliveTimer) {
+        this.socket = socket;
+        this.input = input;
+        this.output = output;
+        this.command = context.getCommand();
+        this.keepAliveTimer = keepAliveTimer;
+        this.metrics = context.getMetrics();
+        this.accessLog = context.getAccessLog();
+        this.diskReader = context.getDiskReader();
+        this.maxHeaderBytes = context.getSlowClientGuard().getMaxHeaderBytes();
+        this.maxHeaderCount = context.getSlowClientGuard().getMaxHeaderCount();
+        this.remoteAddress = (accessLog != null) ? HttpUtil.remoteAddress(socket) : null;
+        this.maxStreams = context.getHttp2MaxStreams();
+    }
+
+    /**
+     * Defines a method that checks whether an HTTP/1.1 request asks to switch to h2c
+     * The request must list both "Upgrade" and "HTTP2-Settings" in Connection and carry valid HTTP2-Settings
+     * @param request is the parsed HTTP/1.x request
+     * @return true if the connection can be upgraded, else false
+     */
+    public static boolean isUpgrade(HttpRequest request) {
+        HttpHeaders headers = request.getHeaders();
+        return "HTTP/1.1".equals(request.getVersion())
+                && headers.containsToken("Upgrade", "h2c")
+                && headers.containsToken("Connection", "Upgrade")
+                && headers.containsToken("Connection", "HTTP2-Settings")
+                && decodeSettings(request.getHeader("HTTP2-Settings")) != null;
+    }
+
+    /**
+     * Defines a method that serves a client that sent the connection preface instead of a request line
+     * @param buffered are the bytes the HTTP/1.x parser had read, starting with the preface
+     * @throws IOException if the client disconnects or reading fails
+     */
+    public void serve(byte[] buffered) throws IOException {
+        run(null, buffered);
+    }
+
+    /**
+     * Defines a method that switches the connection to h2c and answers the upgrade request on stream 1
+     * @param request is the HTTP/1.1 request that asked for the upgrade, checked with isUpgrade
+     * @param buffered are the bytes the HTTP/1.x parser had read past the request
+     * @throws IOException if the client disconnects or reading fails
+     */
+    public void serveUpgrade(HttpRequest request, byte[] buffered) throws IOException {
+        output.write(SWITCHING_PROTOCOLS);
+        run(request, buffered);
+    }
+
+    /**
+     * Defines the loop of the connection: queued DATA frames are written while no input is waiting,
+     * then the next frame is read and handled, until the client or the keep-alive timeout ends the connection
+     */
+    private void run(HttpRequest upgradeRequest, byte[] buffered) throws IOException {
+        System.arraycopy(buffered, 0, inBuffer, 0, buffered.length);
+        inLimit = buffered.length;
+
+        try {
+            writeFrameHeader(6 * 2, SETTINGS, 0, 0);
+            writeSetting(SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+            writeSetting(SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderBytes);
+
+            if (upgradeRequest != null) {
+                // The HTTP2-Settings header stands in for the client's first SETTINGS frame
+                byte[] settings = decodeSettings(upgradeRequest.getHeader("HTTP2-Settings"));
+                applySettings(settings, settings.length);
+                Stream stream = new Stream(1);
+                lastStreamId = 1;
+                streams.put(1, stream);
+                respond(stream, upgradeRequest);
+            }
+            output.flush();
+            readPreface();
+
+            while (true) {
+                while (hasSendableData() && !isInputReady()) {
+                    writeData();
+                }
+                if (goAwayReceived && streams.isEmpty()) {
+                    output.flush();
+                    return;
+                }
+                if (!hasSendableData()) {
+                    output.flush();
+                    socket.setSoTimeout(keepAliveTimer.calculateTimeout());
+                    if (streams.isEmpty()) keepAliveTimer.markIdle();
+                }
+
+                readFrame();
+                if (!keepAliveTimer.markBusy()) return;
+                handleFrame();
+            }
+        } catch (ConnectionError e) {
+            writeGoAway(e.code, e.getMessage());
+        } catch (SocketTimeoutException e) {
+            // Idle past the keep-alive timeout, or the client stopped reading
+            writeGoAway(NO_ERROR, "idle");
+        } catch (RuntimeException e) {
+            writeGoAway(INTERNAL_ERROR, "internal error");
+        } finally {
+            for (Stream stream : streams.values()) {
+                stream.release();
+            }
+            streams.clear();
+            sending.clear();
+        }
+    }
+
+    /**
+     * Defines a method that reads the client connection preface and checks every byte of it
+     */
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[CLIENT_PREFACE.length];
+        readFully(preface, 0, preface.length);
+        for (int i = 0; i < preface.length; i++) {
+            if (preface[i] != CLIENT_PREFACE[i]) {
+                throw new ConnectionError(PROTOCOL_ERROR, "invalid connection preface");
+            }
+        }
+    }
+
+    /**
+     * Defines a method that reads one frame header and its payload, blocking until both have arrived
+     */
+    private void readFrame() throws IOException {
+        readFully(frameHeader, 0, FRAME_HEADER_BYTES);
+        frameLength = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+        frameType = frameHeader[3] & 0xFF;
+        frameFlags = frameHeader[4] & 0xFF;
+        frameStream = readInt(frameHeader, 5) & 0x7FFFFFFF;
+        if (frameLength > DEFAULT_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + frameLength + " bytes");
+        }
+        readFully(payload, 0, frameLength);
+    }
+
+    /**
+     * Defines a method that acts on the frame just read
+     */
+    private void handleFrame() throws IOException {
+        if (!settingsReceived && frameType != SETTINGS) {
+            throw new ConnectionError(PROTOCOL_ERROR, "first frame is not SETTINGS");
+        }
+        if (headerBlockStream != 0 && (frameType != CONTINUATION || frameStream != headerBlockStream)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "header block interrupted");
+        }
+
+        switch (frameType) {
+            case DATA:
+                handleData();
+                break;
+            case HEADERS:
+                handleHeaders();
+                break;
+            case CONTINUATION:
+                if (headerBlockStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+                appendHeaderBlock(payload, 0, frameLength);
+                if ((frameFlags & FLAG_END_HEADERS) != 0) endHeaderBlock();
+                break;
+            case PRIORITY:
+                // Priorities are not used: streams take equal turns
+                if (frameStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if (frameLength != 5) throw new ConnectionError(FRAME_SIZE_ERROR, "PRIORITY length");
+                break;
+            case RST_STREAM:
+                handleReset();
+                break;
+            case SETTINGS:
+                handleSettings();
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING:
+                if (frameStream != 0) throw new ConnectionError(PROTOCOL_ERROR, "PING on a stream");
+                if (frameLength != 8) throw new ConnectionError(FRAME_SIZE_ERROR, "PING length");
+                if ((frameFlags & FLAG_ACK) == 0) {
+                    writeFrameHeader(8, PING, FLAG_ACK, 0);
+                    output.write(payload, 0, 8);
+                }
+                break;
+            case GOAWAY:
+                if (frameStream != 0) throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+                goAwayReceived = true;
+                break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate();
+                break;
+            default:
+                // Unknown frame types are ignored (RFC 9113, section 4.1)
+                break;
+        }
+    }
+
+    private void handleSettings() throws IOException {
+        if (frameStream != 0) throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((frameFlags & FLAG_ACK) != 0) {
+            if (frameLength != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+            return;
+        }
+        if (frameLength % 6 != 0) throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS length");
+        applySettings(payload, frameLength);
+        settingsReceived = true;
+        writeFrameHeader(0, SETTINGS, FLAG_ACK, 0);
+    }
+
+    /**
+     * Defines a method that applies the parameters of a SETTINGS payload from the client
+     */
+    private void applySettings(byte[] settings, int length) throws ConnectionError {
+        for (int i = 0; i + 6 <= length; i += 6) {
+            int id = ((settings[i] & 0xFF) << 8) | (settings[i + 1] & 0xFF);
+            long value = readInt(settings, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) throw new ConnectionError(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+                    }
+                    // The change applies to the windows of the open streams too (RFC 9113, section 6.9.2)
+                    long delta = value - peerInitialWindow;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > MAX_WINDOW) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "stream window overflow");
+                        }
+                    }
+                    peerInitialWindow = (int) value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS only limits pushed streams, and unknown settings are ignored
+                    break;
+            }
+        }
+    }
+
+    private void handleWindowUpdate() throws IOException {
+        if (frameLength != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE length");
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        if (frameStream == 0) {
+            if (increment == 0) throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            sendWindow += increment;
+            if (sendWindow > MAX_WINDOW) throw new ConnectionError(FLOW_CONTROL_ERROR, "connection window overflow");
+            return;
+        }
+
+        checkNotIdle();
+        Stream stream = streams.get(frameStream);
+        if (stream == null) return;
+        stream.sendWindow += increment;
+        if (increment == 0) {
+            resetStream(stream, PROTOCOL_ERROR);
+        } else if (stream.sendWindow > MAX_WINDOW) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private void handleReset() throws IOException {
+        if (frameStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        if (frameLength != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM length");
+        checkNotIdle();
+        Stream stream = streams.remove(frameStream);
+        if (stream != null) {
+            // The client no longer wants the response, so nothing more is sent on the stream
+            sending.remove(stream);
+            stream.release();
+        }
+    }
+
+    /**
+     * Defines a method that takes in request body bytes, which a GET does not use, and gives the
+     * client its window back so a stream sending a body cannot stall the connection
+     */
+    private void handleData() throws IOException {
+        if (frameStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        checkNotIdle();
+        receivedSinceUpdate += frameLength;
+        if (receivedSinceUpdate > DEFAULT_WINDOW) {
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "connection window exceeded");
+        }
+        if (receivedSinceUpdate >= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(0, receivedSinceUpdate);
+            receivedSinceUpdate = 0;
+        }
+        if ((frameFlags & FLAG_PADDED) != 0 && (frameLength == 0 || (payload[0] & 0xFF) >= frameLength)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "invalid padding");
+        }
+
+        Stream stream = streams.get(frameStream);
+        if (stream == null || stream.requestComplete) {
+            writeReset(frameStream, STREAM_CLOSED);
+            return;
+        }
+        stream.receivedSinceUpdate += frameLength;
+        if (stream.receivedSinceUpdate > DEFAULT_WINDOW) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        if ((frameFlags & FLAG_END_STREAM) != 0) {
+            stream.requestComplete = true;
+            dispatch(stream);
+        } else if (stream.receivedSinceUpdate >= DEFAULT_WINDOW / 2) {
+            writeWindowUpdate(frameStream, stream.receivedSinceUpdate);
+            stream.receivedSinceUpdate = 0;
+        }
+    }
+
+    private void handleHeaders() throws IOException {
+        if (frameStream == 0) throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int offset = 0;
+        int end = frameLength;
+        if ((frameFlags & FLAG_PADDED) != 0) {
+            if (frameLength == 0) throw new ConnectionError(PROTOCOL_ERROR, "invalid padding");
+            end -= payload[0] & 0xFF;
+            offset = 1;
+        }
+        if ((frameFlags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset > end) throw new ConnectionError(PROTOCOL_ERROR, "invalid padding");
+
+        headerBlockStream = frameStream;
+        headerBlockEndsStream = (frameFlags & FLAG_END_STREAM) != 0;
+        headerBlockLength = 0;
+        appendHeaderBlock(payload, offset, end - offset);
+        if ((frameFlags & FLAG_END_HEADERS) != 0) endHeaderBlock();
+    }
+
+    private void appendHeaderBlock(byte[] bytes, int offset, int length) throws ConnectionError {
+        if (headerBlockLength + length > maxHeaderBytes) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "header block larger than " + maxHeaderBytes + " bytes");
+        }
+        if (headerBlockLength + length > headerBlock.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerBlockLength + length));
+        }
+        System.arraycopy(bytes, offset, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    /**
+     * Defines a method that decodes a complete header block and opens its stream, or finishes the request
+     * of an open stream when the block is a trailer
+     * Every block is decoded, even for a stream that is refused, so the HPACK table stays in step
+     */
+    private void endHeaderBlock() throws IOException {
+        int id = headerBlockStream;
+        boolean endsStream = headerBlockEndsStream;
+        headerBlockStream = 0;
+
+        Stream stream = streams.get(id);
+        boolean opening = (stream == null);
+        if (opening) {
+            if (id <= lastStreamId || (id & 1) == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "stream " + id + " cannot be opened");
+            }
+            lastStreamId = id;
+            stream = new Stream(id);
+        } else if (stream.requestComplete) {
+            throw new ConnectionError(STREAM_CLOSED, "HEADERS on half-closed stream " + id);
+        }
+
+        try {
+            decoder.decode(headerBlock, 0, headerBlockLength, opening ? stream : TRAILERS);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        if (opening) {
+            if (goAwayReceived || streams.size() >= maxStreams) {
+                writeReset(id, REFUSED_STREAM);
+                return;
+            }
+            streams.put(id, stream);
+        } else if (!endsStream) {
+            // A trailer must end the stream
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        if (endsStream) {
+            stream.requestComplete = true;
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * Defines a method that answers a stream whose request has fully arrived
+     */
+    private void dispatch(Stream stream) throws IOException {
+        HttpRequest request = stream.toRequest();
+        if (request == null) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        respond(stream, request);
+    }
+
+    /**
+     * Defines a method that runs a request through the command and sends the response HEADERS,
+     * queuing the body for DATA frames
+     * @param stream is the stream the request arrived on
+     * @param request is a GET request, or any other method, which is answered with 400
+     */
+    private void respond(Stream stream, HttpRequest request) throws IOException {
+        HttpResponse response = new HttpResponse(OutputStream.nullOutputStream());
+        stream.response = response;
+        if ("GET".equals(request.getMethod())) {
+            execute(stream, request, response);
+        } else {
+            response.setStatus(400, "Bad Request");
+            if (metrics != null) metrics.recordRejected(400);
+            if (accessLog != null) accessLog.log(remoteAddress, request, 400, 0);
+        }
+
+        writeResponseHeaders(stream, response);
+        if (stream.pieces.isEmpty()) {
+            streams.remove(stream.id);
+            stream.release();
+        } else {
+            sending.add(stream);
+        }
+    }
+
+    /**
+     * Defines a method that runs a GET request through the command and queues the body of the response
+     * The command writes an HTTP/1.x header to a discarding stream and leaves the body to this connection
+     */
+    private void execute(Stream stream, HttpRequest request, HttpResponse response) {
+        response.setKeepAlive(true);
+        response.setBodyDeferred(true);
+        response.setTimed(metrics != null && metrics.sampleNext());
+        long started = response.isTimed() ? System.nanoTime() : 0;
+        try {
+            command.execute(HttpUtil.resolveDefaultPage(request), response);
+            if (response.getContentLength() > 0 && response.getStatusCode() != 304) {
+                stream.queueBody(response);
+            } else if (response.getMapping() != null) {
+                response.getMapping().release();
+            }
+        } catch (Exception e) {
+            stream.release();
+            response.reset();
+            response.setStatus(500, "Internal Server Error");
+            if (metrics != null) metrics.recordRejected(500);
+            if (accessLog != null) accessLog.log(remoteAddress, request, 500, 0);
+            return;
+        }
+        if (metrics != null) metrics.recordRequest(0, started, response);
+        if (accessLog != null) {
+            accessLog.log(remoteAddress, request, response.getStatusCode(), response.getContentLength());
+        }
+    }
+
+    /**
+     * Defines a method that encodes the response fields, the HTTP/2 version of HeaderEncoder.encode,
+     * and writes them as a HEADERS frame followed by CONTINUATION frames if the block is larger than a frame
+     * The stream is ended here when there is no body
+     */
+    private void writeResponseHeaders(Stream stream, HttpResponse response) throws IOException {
+        int statusCode = response.getStatusCode();
+        List<ByteRange> ranges = response.getRanges();
+        boolean multipart = ranges != null && ranges.size() > 1;
+        String contentType = multipart ? MULTIPART_TYPE : response.getContentType();
+        long length = response.getContentLength();
+
+        encoder.start();
+        encoder.header(":status", Integer.toString(statusCode), false);
+        // A 304 response describes the client's cached copy, so it has no content-type or content-length
+        if (statusCode != 304) {
+            if (contentType != null && !contentType.isEmpty() && length > 0) {
+                encoder.header("content-type", contentType, true);
+            }
+            encoder.header("content-length", Long.toString(length), false);
+        }
+        encoder.header("date", HttpDate.current(), true);
+        if (response.getContentEncoding() != null) {
+            encoder.header("content-encoding", response.getContentEncoding(), true);
+        }
+        if (response.isVaryAcceptEncoding()) {
+            encoder.header("vary", "accept-encoding", true);
+        }
+        if (response.isAcceptRanges()) {
+            encoder.header("accept-ranges", "bytes", true);
+        }
+        if (statusCode == 206 && ranges != null && ranges.size() == 1) {
+            encoder.header("content-range", ranges.get(0).toContentRange(response.getResourceLength()), false);
+        } else if (statusCode == 416) {
+            encoder.header("content-range", "bytes */" + response.getResourceLength(), false);
+        }
+        if (response.getETag() != null) {
+            encoder.header("etag", response.getETag(), false);
+        }
+        if (response.getLastModified() > 0) {
+            encoder.header("last-modified", HttpDate.format(response.getLastModified()), false);
+        }
+
+        byte[] block = encoder.getBuffer();
+        int blockLength = encoder.getLength();
+        int endStream = stream.pieces.isEmpty() ? FLAG_END_STREAM : 0;
+        int type = HEADERS;
+        int offset = 0;
+        do {
+            int count = Math.min(blockLength - offset, peerMaxFrameSize);
+            boolean last = offset + count == blockLength;
+            writeFrameHeader(count, type, (last ? FLAG_END_HEADERS : 0) | (type == HEADERS ? endStream : 0), stream.id);
+            output.write(block, offset, count);
+            offset += count;
+            type = CONTINUATION;
+        } while (offset < blockLength);
+    }
+
+    /**
+     * Defines a method that checks whether a stream has body bytes it is allowed to send
+     * @return true if the connection window is open and a queued stream's window is too, else false
+     */
+    private boolean hasSendableData() {
+        if (sendWindow <= 0) return false;
+        for (Stream stream : sending) {
+            if (stream.sendWindow > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Defines a method that writes one DATA frame for the next stream in turn whose window is open
+     * The stream goes to the back of the queue, or leaves it with END_STREAM once its body has been sent
+     */
+    private void writeData() throws IOException {
+        for (int turns = sending.size(); turns > 0; turns--) {
+            Stream stream = sending.poll();
+            if (stream.sendWindow <= 0) {
+                // Waits for a WINDOW_UPDATE from the client
+                sending.add(stream);
+                continue;
+            }
+
+            Piece piece = stream.pieces.peek();
+            // Frames stay at the default size whatever the client allows, so streams interleave finely
+            int count = (int) Math.min(Math.min(piece.remaining, DEFAULT_FRAME_SIZE),
+                                       Math.min(sendWindow, stream.sendWindow));
+            boolean lastPiece = stream.pieces.size() == 1 && count == piece.remaining;
+            writeFrameHeader(count, DATA, lastPiece ? FLAG_END_STREAM : 0, stream.id);
+            piece.writeTo(count);
+            sendWindow -= count;
+            stream.sendWindow -= count;
+
+            if (piece.remaining == 0) stream.pieces.poll().close();
+            if (lastPiece) {
+                streams.remove(stream.id);
+                stream.release();
+            } else {
+                sending.add(stream);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Defines a method that checks whether the client has sent bytes that have not been handled
+     * @return true if bytes are buffered or waiting on the socket, else false
+     */
+    private boolean isInputReady() throws IOException {
+        return inPosition < inLimit || input.available() > 0;
+    }
+
+    private void readFully(byte[] destination, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (inPosition == inLimit) {
+                int count = input.read(inBuffer, 0, inBuffer.length);
+                if (count == -1) throw new EOFException("Connection closed");
+                inPosition = 0;
+                inLimit = count;
+            }
+            int count = Math.min(length, inLimit - inPosition);
+            System.arraycopy(inBuffer, inPosition, destination, offset, count);
+            inPosition += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Defines a method that makes sure a frame does not refer to a stream the client has not opened yet
+     */
+    private void checkNotIdle() throws ConnectionError {
+        if (frameStream > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "frame on idle stream " + frameStream);
+        }
+    }
+
+    private void resetStream(Stream stream, int errorCode) throws IOException {
+        streams.remove(stream.id);
+        sending.remove(stream);
+        stream.release();
+        writeReset(stream.id, errorCode);
+    }
+
+    private void writeReset(int streamId, int errorCode) throws IOException {
+        writeFrameHeader(4, RST_STREAM, 0, streamId);
+        writeInt(errorCode);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrameHeader(4, WINDOW_UPDATE, 0, streamId);
+        writeInt(increment);
+    }
+
+    /**
+     * Defines a method that tells the client the connection is ending and which streams were handled
+     */
+    private void writeGoAway(int errorCode, String reason) {
+        try {
+            byte[] debug = (reason == null) ? new byte[0] : reason.getBytes(StandardCharsets.US_ASCII);
+            writeFrameHeader(8 + debug.length, GOAWAY, 0, 0);
+            writeInt(lastStreamId);
+            writeInt(errorCode);
+            output.write(debug);
+            output.flush();
+        } catch (IOException ignored) {
+            // The client is already gone
+        }
+    }
+
+    private void writeSetting(int id, int value) throws IOException {
+        output.write(id >>> 8);
+        output.write(id);
+        writeInt(value);
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        frameHeader[0] = (byte) (length >>> 16);
+        frameHeader[1] = (byte) (length >>> 8);
+        frameHeader[2] = (byte) length;
+        frameHeader[3] = (byte) type;
+        frameHeader[4] = (byte) flags;
+        frameHeader[5] = (byte) (streamId >>> 24);
+        frameHeader[6] = (byte) (streamId >>> 16);
+        frameHeader[7] = (byte) (streamId >>> 8);
+        frameHeader[8] = (byte) streamId;
+        output.write(frameHeader, 0, FRAME_HEADER_BYTES);
+    }
+
+    private void writeInt(int value) throws IOException {
+        output.write(value >>> 24);
+        output.write(value >>> 16);
+        output.write(value >>> 8);
+        output.write(value);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Defines a method that decodes the HTTP2-Settings header of an upgrade request
+     * @return the SETTINGS payload, or null if the value is not base64url or not whole settings
+     */
+    private static byte[] decodeSettings(String value) {
+        if (value == null) return null;
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(value.trim());
+            return (settings.length % 6 == 0) ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Defines an exception for an error that ends the whole connection with a GOAWAY frame
+     */
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * Defines a class for one request and response exchange on the connection
+     * It collects the request fields as the header block is decoded, then holds the body pieces still to send
+     */
+    private final class Stream implements Hpack.HeaderListener, ResponseWriter.BodySink {
+        private final int id;
+        private long sendWindow = peerInitialWindow;
+        private int receivedSinceUpdate;
+        private boolean requestComplete;
+
+        private final HttpHeaders headers = new HttpHeaders();
+        private String method;
+        private String path;
+        private String scheme;
+        private String authority;
+        private boolean regularSeen;
+        private boolean malformed;
+        private int headerBytes;
+
+        private HttpResponse response;
+        private final ArrayDeque<Piece> pieces = new ArrayDeque<>();
+        private byte[] cachedBody;
+        private MappedFileCache.Mapping mapping;
+        private FileChannel file;
+        private String filePath;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Defines a method that checks and stores one request field (RFC 9113, section 8.2)
+         * Problems only mark the request malformed: the rest of the block must still be decoded
+         */
+        public void header(String name, String value) {
+            headerBytes += name.length() + value.length() + 32;
+            if (headerBytes > maxHeaderBytes || headers.size() >= maxHeaderCount) {
+                malformed = true;
+                return;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    malformed = true;
+                    return;
+                }
+            }
+
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    malformed = true;
+                } else if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else if (name.equals(":scheme") && scheme == null) {
+                    scheme = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else {
+                    malformed = true;
+                }
+                return;
+            }
+
+            regularSeen = true;
+            if (name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+                    || name.equals("transfer-encoding") || name.equals("upgrade")
+                    || (name.equals("te") && !value.equals("trailers"))) {
+                malformed = true;
+                return;
+            }
+            headers.add(name, value);
+        }
+
+        /**
+         * Defines a method that builds the request from the decoded fields
+         * @return the request, or null if it is malformed
+         */
+        HttpRequest toRequest() {
+            if (malformed || method == null || scheme == null || path == null || !path.startsWith("/")) {
+                return null;
+            }
+            if (authority != null && !headers.contains("Host")) {
+                headers.add("host", authority);
+            }
+            return new HttpRequest(method, path, "HTTP/2.0", headers);
+        }
+
+        /**
+         * Defines a method that queues the pieces of the response body, from the content cache, a mapping or the file
+         */
+        void queueBody(HttpResponse response) throws IOException {
+            cachedBody = response.getCachedBody();
+            mapping = response.getMapping();
+            if (cachedBody == null && mapping == null) {
+                filePath = response.getFilePath();
+                if (filePath == null) return;
+                file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+            }
+            ResponseWriter.writeBodyParts(response, this);
+        }
+
+        public void writeBytes(byte[] bytes) {
+            pieces.add(new Piece(ByteBuffer.wrap(bytes)));
+        }
+
+        public void writeRegion(long position, long count) {
+            if (cachedBody != null) {
+                pieces.add(new Piece(ByteBuffer.wrap(cachedBody, (int) position, (int) count)));
+            } else if (mapping != null) {
+                pieces.add(new Piece(mapping.slice(position, count)));
+            } else {
+                pieces.add(new Piece(file, position, count,
+                        (diskReader != null) ? diskReader.open(file, filePath, position, count, null) : null));
+            }
+        }
+
+        /**
+         * Defines a method that closes the file or releases the mapping the body was coming from
+         */
+        void release() {
+            for (Piece piece : pieces) {
+                piece.close();
+            }
+            pieces.clear();
+            cachedBody = null;
+            if (mapping != null) {
+                mapping.release();
+                mapping = null;
+            }
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+                file = null;
+            }
+            filePath = null;
+        }
+    }
+
+    /**
+     * Defines a class for one piece of a queued body: bytes in memory (a cached body, a mapping slice
+     * or a multipart boundary) or a region of an open file, read ahead by the disk threads with "-disk_io async"
+     */
+    private final class Piece {
+        private final ByteBuffer bytes;
+        private final FileChannel file;
+        private final DiskReader.Region region;
+        private long position;
+        private long remaining;
+
+        Piece(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.file = null;
+            this.region = null;
+            this.remaining = bytes.remaining();
+        }
+
+        Piece(FileChannel file, long position, long count, DiskReader.Region region) {
+            this.bytes = null;
+            this.file = file;
+            this.region = region;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        /**
+         * Defines a method that writes the next bytes of the piece as a DATA frame payload
+         * @param count is the number of bytes, at most what remains
+         */
+        void writeTo(int count) throws IOException {
+            if (bytes != null) {
+                writeBuffer(bytes, count);
+            } else if (region != null) {
+                // A frame may end inside a chunk or take the end of one and the start of the next
+                int left = count;
+                while (left > 0) {
+                    ByteBuffer chunk = region.next();
+                    if (chunk == null) throw new EOFException("File shrank while being sent");
+                    int part = Math.min(left, chunk.remaining());
+                    writeBuffer(chunk, part);
+                    left -= part;
+                }
+            } else if (output instanceof PooledOutputStream) {
+                // The file is read straight into the output buffer
+                ((PooledOutputStream) output).writeFrom(file, position, count);
+            } else {
+                byte[] chunk = scratch(count);
+                ByteBuffer view = ByteBuffer.wrap(chunk, 0, count);
+                while (view.hasRemaining()) {
+                    if (file.read(view, position + view.position()) <= 0) {
+                        throw new EOFException("File shrank while being sent");
+                    }
+                }
+                output.write(chunk, 0, count);
+            }
+            position += count;
+            remaining -= count;
+        }
+
+        /**
+         * Defines a method that closes the region being read ahead, giving its chunks back to the pool
+         */
+        void close() {
+            if (region != null) region.close();
+        }
+
+        /**
+         * Defines a method that writes the next bytes of a buffer to the output
+         * @param buffer is read from its position
+         * @param count is the number of bytes, at most what remains
+         */
+        private void writeBuffer(ByteBuffer buffer, int count) throws IOException {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + count);
+            if (output instanceof PooledOutputStream) {
+                ((PooledOutputStream) output).write(buffer);
+            } else if (buffer.hasArray()) {
+                output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                buffer.position(buffer.limit());
+            } else {
+                byte[] chunk = scratch(count);
+                buffer.get(chunk, 0, count);
+                output.write(chunk, 0, count);
+            }
+            buffer.limit(limit);
+        }
+
+        private byte[] scratch(int count) {
+            if (copyBuffer == null || copyBuffer.length < count) {
+                copyBuffer = new byte[DEFAULT_FRAME_SIZE];
+            }
+            return copyBuffer;
+        }
+    }
+}
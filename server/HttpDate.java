@@ -0,0 +1,73 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines a class that keeps the current time formatted as an HTTP date (RFC 7231 IMF-fixdate)
+ * A single daemon ticker reformats the value once per second and every thread shares the result,
+ * so responses never format dates themselves
+ */
+public final class HttpDate {
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile Value current = new Value(System.currentTimeMillis());
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "http-date-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> current = new Value(System.currentTimeMillis()),
+                                   1000 - System.currentTimeMillis() % 1000, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    private HttpDate() {
+    }
+
+    /**
+     * Defines a method to get the current date
+     * @return the current date as an IMF-fixdate String (ex. Sun, 06 Nov 1994 08:49:37 GMT)
+     */
+    public static String current() {
+        return current.text;
+    }
+
+    /**
+     * Defines a method to get the current date already encoded for a header
+     * @return the ASCII bytes of the current date, shared and never to be modified
+     */
+    static byte[] currentBytes() {
+        return current.bytes;
+    }
+
+    /**
+     * Defines a method that formats any time as an HTTP date
+     * @param epochMillis is the time in milliseconds since the epoch
+     * @return the time as an IMF-fixdate String
+     */
+    public static String format(long epochMillis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * Defines a class that pairs the date text with its encoded bytes so both are swapped in together
+     */
+    private static final class Value {
+        private final String text;
+        private final byte[] bytes;
+
+        Value(long epochMillis) {
+            this.text = format(epochMillis);
+            this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Defines a class that holds request header fields as offsets into a byte array
+ * Tables filled by HttpRequestParser point into the parser's buffer, so reading a request
+ * does not allocate anything per header; a value becomes a String only when someone asks for it
+ * Names are matched case insensitively
+ */
+public final class HttpHeaders {
+    // Each header uses four slots: name start, name end, value start, value end
+    private static final int SLOTS = 4;
+
+    private byte[] data;
+    private int base;
+    private int end;
+    private boolean owned;
+    private int[] ranges;
+    private int count;
+
+    /**
+     * Defines a constructor for an empty table that headers can be added to
+     */
+    public HttpHeaders() {
+        this.data = new byte[0];
+        this.owned = true;
+        this.ranges = new int[SLOTS * 8];
+    }
+
+    /**
+     * Defines a method that empties the table and points it at a parser buffer
+     * @param buffer is the array the header bytes live in
+     * @param base is the index offsets are relative to
+     */
+    void wrap(byte[] buffer, int base) {
+        this.data = buffer;
+        this.base = base;
+        this.end = 0;
+        this.owned = false;
+        this.count = 0;
+    }
+
+    /**
+     * Defines a method that follows the header bytes after the parser moved them within its buffer
+     * @param base is the new index offsets are relative to
+     */
+    void rebase(int base) {
+        if (!owned) {
+            this.base = base;
+        }
+    }
+
+    /**
+     * Defines a method that records a header whose name and value are already in the wrapped buffer
+     * Offsets are relative to the base given to wrap
+     */
+    void addRange(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if ((count + 1) * SLOTS > ranges.length) {
+            ranges = Arrays.copyOf(ranges, ranges.length * 2);
+        }
+        int slot = count * SLOTS;
+        ranges[slot] = nameStart;
+        ranges[slot + 1] = nameEnd;
+        ranges[slot + 2] = valueStart;
+        ranges[slot + 3] = valueEnd;
+        end = Math.max(end, valueEnd);
+        count++;
+    }
+
+    /**
+     * Defines a method that adds a header built in code rather than parsed (ex. from another protocol)
+     * @param name is the header name
+     * @param value is the header value
+     */
+    public void add(String name, String value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
+
+        // A table that points into a parser buffer is copied out before it is changed
+        if (!owned || end + nameBytes.length + valueBytes.length > data.length - base) {
+            byte[] copy = new byte[Math.max(64, (end + nameBytes.length + valueBytes.length) * 2)];
+            System.arraycopy(data, base, copy, 0, end);
+            data = copy;
+            base = 0;
+            owned = true;
+        }
+
+        int nameStart = end;
+        System.arraycopy(nameBytes, 0, data, nameStart, nameBytes.length);
+        int valueStart = nameStart + nameBytes.length;
+        System.arraycopy(valueBytes, 0, data, valueStart, valueBytes.length);
+        addRange(nameStart, valueStart, valueStart, valueStart + valueBytes.length);
+    }
+
+    /**
+     * Defines a method to get the number of headers in the table
+     * @return the header count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Defines a method to get the name of a header by position
+     * @param index is the position of the header, in the order it was received
+     * @return the header name as received
+     */
+    public String getName(int index) {
+        return string(ranges[index * SLOTS], ranges[index * SLOTS + 1]);
+    }
+
+    /**
+     * Defines a method to get the value of a header by position
+     * @param index is the position of the header, in the order it was received
+     * @return the header value with surrounding whitespace removed
+     */
+    public String getValue(int index) {
+        return string(ranges[index * SLOTS + 2], ranges[index * SLOTS + 3]);
+    }
+
+    /**
+     * Defines a method to get the value of a header
+     * Repeated headers are combined into a comma separated list
+     * @param name is the header name (case insensitive)
+     * @return the header value, or null if the header is not present
+     */
+    public String get(String name) {
+        String value = null;
+        for (int i = 0; i < count; i++) {
+            if (!nameEquals(i, name)) continue;
+            value = (value == null) ? getValue(i) : value + ", " + getValue(i);
+        }
+        return value;
+    }
+
+    /**
+     * Defines a method that checks whether a header is present
+     * @param name is the header name (case insensitive)
+     * @return true if the header was received, else false
+     */
+    public boolean contains(String name) {
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Defines a method that checks whether a comma separated header lists a token, without creating Strings
+     * @param name is the header name (case insensitive)
+     * @param token is the token to look for (case insensitive)
+     * @return true if any header with that name lists the token, else false
+     */
+    public boolean containsToken(String name, String token) {
+        for (int i = 0; i < count; i++) {
+            if (!nameEquals(i, name)) continue;
+
+            int slot = i * SLOTS;
+            int position = ranges[slot + 2];
+            int valueEnd = ranges[slot + 3];
+            while (position <= valueEnd) {
+                int comma = position;
+                while (comma < valueEnd && data[base + comma] != ',') comma++;
+
+                int partStart = position;
+                int partEnd = comma;
+                while (partStart < partEnd && isWhitespace(data[base + partStart])) partStart++;
+                while (partEnd > partStart && isWhitespace(data[base + partEnd - 1])) partEnd--;
+                if (regionEqualsIgnoreCase(partStart, partEnd, token)) return true;
+
+                position = comma + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Defines a method that copies the raw bytes of a header value into a caller's array, without creating a String
+     * Only the first header with the name is copied, cut off at max bytes
+     * @param name is the header name (case insensitive)
+     * @param destination receives the value bytes
+     * @param max is the largest number of bytes copied
+     * @return the number of bytes copied, or -1 if the header is not present
+     */
+    int copyValue(String name, byte[] destination, int max) {
+        for (int i = 0; i < count; i++) {
+            if (!nameEquals(i, name)) continue;
+            int slot = i * SLOTS;
+            int length = Math.min(max, ranges[slot + 3] - ranges[slot + 2]);
+            System.arraycopy(data, base + ranges[slot + 2], destination, 0, length);
+            return length;
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int index, String name) {
+        return regionEqualsIgnoreCase(ranges[index * SLOTS], ranges[index * SLOTS + 1], name);
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int stop, String text) {
+        if (stop - start != text.length()) return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (toLower(data[base + start + i]) != toLower(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private String string(int start, int stop) {
+        return new String(data, base + start, stop - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int toLower(int c) {
+        c &= 0xFF;
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -1,5 +1,6 @@
 package server;
 
+
 /**
  * Defines a class which delineates the three parts of a HTTP GET request line
  */
@@ -7,6 +8,9 @@ public class HttpRequest {
    private final String requestMethod;
    private final String path;
    private final String version; 
+   private final HttpHeaders headers;
+   // The same request for the default page, kept since the parser reuses a request whose path repeats
+   private HttpRequest defaultPage;
 
    /**
     * Defines a constructor which sets the method, path, and version of a request
@@ -15,9 +19,21 @@ public class HttpRequest {
     * @param version is the HTTP version that the client used to send the request (HTTP 1.0 or HTTP 1.1)
     */
    public HttpRequest(String requestMethod, String path, String version) {
+        this(requestMethod, path, version, new HttpHeaders());
+   }
+
+   /**
+    * Defines a constructor which sets the method, path, version, and header fields of a request
+    * @param requestMethod is the type of HTTP request the client makes (ex. GET)
+    * @param path is the path to the request file
+    * @param version is the HTTP version that the client used to send the request (HTTP 1.0 or HTTP 1.1)
+    * @param headers holds the header fields sent with the request
+    */
+   public HttpRequest(String requestMethod, String path, String version, HttpHeaders headers) {
         this.requestMethod = requestMethod;
         this.path = path;
         this.version = version;
+        this.headers = headers;
    }
 
    /**
@@ -43,4 +59,48 @@ public class HttpRequest {
    public String getVersion() { 
       return version; 
    }
+
+   /**
+    * Defines a method to get the value of a request header
+    * @param name is the header name (case insensitive)
+    * @return the header value as a String, or null if the client did not send it
+    */
+   public String getHeader(String name) {
+      return headers.get(name);
+   }
+
+   /**
+    * Defines a method to get all the request headers
+    * @return the header table
+    */
+   public HttpHeaders getHeaders() {
+      return headers;
+   }
+
+   /**
+    * Defines a method to get this request with its path replaced by a default page
+    * @param page is the path of the default page (ex. /index.html)
+    * @return the request for the page, built on the first call and reused while the page is the same
+    */
+   HttpRequest withDefaultPage(String page) {
+      HttpRequest resolved = defaultPage;
+      if (resolved == null || !resolved.path.equals(page)) {
+         resolved = new HttpRequest(requestMethod, page, version, headers);
+         defaultPage = resolved;
+      }
+      return resolved;
+   }
+
+   /**
+    * Defines a method which decides whether the connection should stay open after this request
+    * HTTP/1.1 connections are persistent unless the client sends "Connection: close"
+    * HTTP/1.0 connections close unless the client sends "Connection: keep-alive"
+    * @return true if the connection should be kept alive, else false
+    */
+   public boolean isKeepAlive() {
+      if ("HTTP/1.1".equalsIgnoreCase(version)) {
+         return !headers.containsToken("Connection", "close");
+      }
+      return headers.containsToken("Connection", "keep-alive");
+   }
 }
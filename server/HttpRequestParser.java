@@ -1,68 +1,501 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Defines a class that parses the incoming HTTP request from the client
+ * The parser owns a reusable byte buffer and is an incremental state machine: bytes can arrive in
+ * any number of reads and parsing resumes where it stopped. The request line and header fields are
+ * recorded as offsets into the buffer (see HttpHeaders), so nothing is allocated per header
+ * One parser serves one connection; pipelined requests are parsed one after another from the same buffer
  */
 public class HttpRequestParser {
-    
+    public static final int DEFAULT_MAX_HEADER_BYTES = 16 * 1024;
+    public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+    private static final int MAX_METHOD_LENGTH = 16;
+
+    /**
+     * Defines the outcomes of a parse attempt
+     */
+    public enum Result {
+        /** More bytes are needed */
+        INCOMPLETE,
+        /** A full request is available from getRequest() */
+        COMPLETE,
+        /** The request is not valid HTTP or is not a GET for HTTP/1.0 or HTTP/1.1 */
+        MALFORMED,
+        /** The request line or header block is larger than the limits allow */
+        TOO_LARGE
+    }
+
+    // States of the parser
+    private static final int LINE_START = 0;
+    private static final int METHOD = 1;
+    private static final int BEFORE_PATH = 2;
+    private static final int PATH = 3;
+    private static final int BEFORE_VERSION = 4;
+    private static final int VERSION = 5;
+    private static final int REQUEST_LINE_LF = 6;
+    private static final int HEADER_START = 7;
+    private static final int HEADER_NAME = 8;
+    private static final int BEFORE_VALUE = 9;
+    private static final int VALUE = 10;
+    private static final int HEADER_LF = 11;
+    private static final int END_LF = 12;
+
+    // Characters allowed in a request path, the same set the previous pattern accepted
+    private static final boolean[] PATH_CHARS = new boolean[128];
+    // Characters allowed in a method or header name (RFC 7230 tchar)
+    private static final boolean[] TOKEN_CHARS = new boolean[128];
+
+    static {
+        String pathSymbols = "._~!$&'()*+,;=:@%/?#[]-{}\"";
+        String tokenSymbols = "!#$%&'*+-.^_`|~";
+        for (char c = '0'; c <= 'z'; c++) {
+            boolean alphanumeric = Character.isLetterOrDigit(c);
+            PATH_CHARS[c] = alphanumeric || pathSymbols.indexOf(c) >= 0;
+            TOKEN_CHARS[c] = alphanumeric || tokenSymbols.indexOf(c) >= 0;
+        }
+        for (char c : pathSymbols.toCharArray()) PATH_CHARS[c] = true;
+        for (char c : tokenSymbols.toCharArray()) TOKEN_CHARS[c] = true;
+    }
+
+    private final int maxHeaderCount;
+    private final byte[] buffer;
+    private final ByteBuffer channelView;
+    private final HttpHeaders headers = new HttpHeaders();
+
+    // The current request occupies buffer[start, limit); bytes in [start, position) are already parsed
+    private int start;
+    private int position;
+    private int limit;
+
+    private int state = LINE_START;
+    private int methodEnd;
+    private int pathStart;
+    private int pathEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+    private HttpRequest request;
+    private HttpRequest lastRequest;
+
+    private boolean tooLarge;
+
+    // Time spent in parse() on the current request, for ServerMetrics
+    private boolean timed;
+    private long parseNanos;
+
+    /**
+     * Defines a constructor for a parser with the default size limits
+     */
+    public HttpRequestParser() {
+        this(DEFAULT_MAX_HEADER_BYTES, DEFAULT_MAX_HEADER_COUNT);
+    }
+
+    /**
+     * Defines a constructor for a parser with explicit size limits
+     * @param maxHeaderBytes is the largest request line plus header block accepted, which is also the buffer size
+     * @param maxHeaderCount is the largest number of header fields accepted
+     */
+    public HttpRequestParser(int maxHeaderBytes, int maxHeaderCount) {
+        this.maxHeaderCount = maxHeaderCount;
+        this.buffer = new byte[maxHeaderBytes];
+        this.channelView = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Defines a method which reads the client request, blocking until a whole request has arrived
+     * and parses the request line into three parts along with the header fields that follow it
+     * @param input is the input stream from the client
+     * @return a validated HttpRequest with all the essential parts, or null if the request is malformed or too large
+     * @throws EOFException if the client closed the connection before a whole request arrived
+     * @throws IOException if reading from the client fails (including a socket timeout)
+     */
+    public HttpRequest parseRequest(InputStream input) throws IOException {
+        return parseRequest(input, null);
+    }
+
+    /**
+     * Defines a method which reads the client request like parseRequest(input), arming the header deadline
+     * of the connection once part of a request has arrived, so a client trickling a header is dropped
+     * @param input is the input stream from the client
+     * @param deadline is the connection's deadline, finished when the request is complete, or null
+     * @return a validated HttpRequest, or null if the request is malformed or too large (see isTooLarge)
+     * @throws EOFException if the client closed the connection before a whole request arrived
+     * @throws IOException if reading from the client fails, or the socket was closed by the watchdog
+     */
+    public HttpRequest parseRequest(InputStream input, SlowClientGuard.Deadline deadline) throws IOException {
+        Result result;
+        while ((result = parse()) == Result.INCOMPLETE) {
+            if (deadline != null && hasPartialRequest()) deadline.startHeader();
+            if (read(input) == -1) throw new EOFException("Connection closed before a whole request arrived");
+        }
+        if (deadline != null) deadline.finish();
+        return (result == Result.COMPLETE) ? getRequest() : null;
+    }
+
+    /**
+     * Defines a method that reads whatever the stream has into the free part of the buffer
+     * @param input is the input stream from the client
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if reading fails
+     */
+    public int read(InputStream input) throws IOException {
+        makeRoom();
+        if (limit == buffer.length) return 0;
+        int count = input.read(buffer, limit, buffer.length - limit);
+        if (count > 0) limit += count;
+        return count;
+    }
+
     /**
-     * Defines a method which reads the client request line by line
-     * and parses the client request line into three parts
-     * @param input is the BufferedReader input from the client
-     * @return a validated HttpRequest with all the essential parts
+     * Defines a method that reads whatever the channel has into the free part of the buffer
+     * @param channel is the client connection, usually non-blocking
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if reading fails
      */
-    public HttpRequest parseRequest(BufferedReader input) {
-        try {
-            String message = input.readLine();
-            if (message == null || message.isEmpty()) return null;
+    public int read(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        if (limit == buffer.length) return 0;
+        channelView.limit(buffer.length).position(limit);
+        int count = channel.read(channelView);
+        if (count > 0) limit += count;
+        return count;
+    }
 
-            String[] tokens = message.trim().split("\\s+");
+    /**
+     * Defines a method that continues parsing the bytes read so far
+     * After COMPLETE, the next call moves on to the following pipelined request
+     * @return the outcome of parsing
+     */
+    public Result parse() {
+        if (request != null) {
+            nextRequest();
+        }
+        Result result;
+        if (!timed) {
+            result = parseBytes();
+        } else {
+            long began = System.nanoTime();
+            result = parseBytes();
+            parseNanos += System.nanoTime() - began;
+        }
+        tooLarge = (result == Result.TOO_LARGE);
+        return result;
+    }
 
-            // If tokens does not contain the method, path, and version, then it is not a valid request
-            if (tokens.length < 3) return null;
+    /**
+     * Defines a method that runs the state machine over the buffered bytes of the current request
+     * @return the outcome of parsing
+     */
+    @SuppressWarnings("fallthrough")
+    private Result parseBytes() {
 
-            String method = tokens[0];
-            String path = tokens[1];
-            String version = tokens[2];
+        while (position < limit) {
+            int b = buffer[position] & 0xFF;
+            int offset = position - start;
+            position++;
 
-            if (!isValidMethod(method) || !isValidVersion(version) || !isValidPath(path)) {
-                return null;
+            switch (state) {
+                case LINE_START:
+                    // Ignores empty lines sent between pipelined requests (RFC 7230, section 3.5)
+                    if (b == '\r' || b == '\n') {
+                        start = position;
+                        break;
+                    }
+                    state = METHOD;
+                    // Falls through to read the first method character
+                case METHOD:
+                    if (b == ' ') {
+                        methodEnd = offset;
+                        state = BEFORE_PATH;
+                    } else if (!isToken(b) || offset >= MAX_METHOD_LENGTH) {
+                        return Result.MALFORMED;
+                    }
+                    break;
+                case BEFORE_PATH:
+                    if (b == ' ') break;
+                    pathStart = offset;
+                    state = PATH;
+                    // Falls through to read the first path character
+                case PATH:
+                    if (b == ' ') {
+                        pathEnd = offset;
+                        state = BEFORE_VERSION;
+                    } else if (b >= 128 || !PATH_CHARS[b]) {
+                        return Result.MALFORMED;
+                    }
+                    break;
+                case BEFORE_VERSION:
+                    if (b == ' ') break;
+                    versionStart = offset;
+                    state = VERSION;
+                    // Falls through to read the first version character
+                case VERSION:
+                    if (b == '\r' || b == '\n') {
+                        versionEnd = offset;
+                        if (!isValidMethod() || !isValidVersion()) return Result.MALFORMED;
+                        headers.wrap(buffer, start);
+                        state = (b == '\r') ? REQUEST_LINE_LF : HEADER_START;
+                    } else if (b == ' ' || b < 0x21 || b > 0x7E) {
+                        return Result.MALFORMED;
+                    }
+                    break;
+                case REQUEST_LINE_LF:
+                case HEADER_LF:
+                    if (b != '\n') return Result.MALFORMED;
+                    state = HEADER_START;
+                    break;
+                case HEADER_START:
+                    if (b == '\r') {
+                        state = END_LF;
+                        break;
+                    }
+                    if (b == '\n') {
+                        return complete();
+                    }
+                    if (headers.size() >= maxHeaderCount) return Result.TOO_LARGE;
+                    nameStart = offset;
+                    state = HEADER_NAME;
+                    // Falls through to read the first name character
+                case HEADER_NAME:
+                    if (b == ':') {
+                        nameEnd = offset;
+                        if (nameEnd == nameStart) return Result.MALFORMED;
+                        state = BEFORE_VALUE;
+                    } else if (!isToken(b)) {
+                        // Includes whitespace before the colon and obsolete line folding
+                        return Result.MALFORMED;
+                    }
+                    break;
+                case BEFORE_VALUE:
+                    if (b == ' ' || b == '\t') break;
+                    valueStart = offset;
+                    valueEnd = offset;
+                    state = VALUE;
+                    // Falls through to read the first value character
+                case VALUE:
+                    if (b == '\r' || b == '\n') {
+                        headers.addRange(nameStart, nameEnd, valueStart, valueEnd);
+                        state = (b == '\r') ? HEADER_LF : HEADER_START;
+                    } else if (b == ' ' || b == '\t') {
+                        // Trailing whitespace is not part of the value
+                    } else if (b < 0x20 || b == 0x7F) {
+                        return Result.MALFORMED;
+                    } else {
+                        valueEnd = offset + 1;
+                    }
+                    break;
+                case END_LF:
+                    if (b != '\n') return Result.MALFORMED;
+                    return complete();
+                default:
+                    throw new IllegalStateException("Unknown parser state " + state);
             }
+        }
 
-            return new HttpRequest(method, path, version);
-        } catch (IOException e) {
-            return null;
+        // The buffer is full and the request is still not complete
+        if (start == 0 && limit == buffer.length) {
+            return Result.TOO_LARGE;
         }
+        return Result.INCOMPLETE;
     }
 
     /**
-     * Defines a method which checks whether the client made a GET request or not
-     * @param method is the type of HTTP method the client makes
-     * @return true if method is GET, else false
+     * Defines a method to get the request completed by the last call to parse
+     * The request's headers point into this parser's buffer and are valid until parse is called again
+     * @return the parsed request
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Defines a method to turn on timing of parse() for ServerMetrics
+     * Set between requests, it applies from the next request on
+     * @param timed is true to add up the time parse() spends on each request
      */
-    private boolean isValidMethod(String method) {
-        return "GET".equalsIgnoreCase(method);
+    public void setTimed(boolean timed) {
+        this.timed = timed;
     }
 
     /**
-     * Defines a method which checks whether the path is valid or malformed
-     * @param path the uri of the resource
-     * @return true if path is valid, else false
+     * Defines a method to check whether parse() is being timed
+     * @return true if the current request is timed, else false
      */
-    private boolean isValidPath(String path) {
-        String pattern = ("^[a-zA-Z0-9._~!$&'()*+,;=:@%/?#\\[\\]\\-{}\"']+$");
-        return path.matches(pattern);
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Defines a method to get the time parse() has spent on the current request
+     * Waiting for bytes to arrive is not included
+     * @return the time in nanoseconds, or 0 if timing is off
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * Defines a method that checks whether bytes of another pipelined request are already buffered
+     * @return true if unparsed bytes are waiting, else false
+     */
+    public boolean hasBufferedInput() {
+        return position < limit;
+    }
+
+    /**
+     * Defines a method that checks whether some bytes of a request have arrived but not the whole header
+     * @return true if the request being parsed is incomplete and not empty, else false
+     */
+    public boolean hasPartialRequest() {
+        return request == null && limit > start;
+    }
+
+    /**
+     * Defines a method that checks why the last parse rejected a request
+     * @return true if the request line or header block was larger than the limits, else false
+     */
+    public boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    /**
+     * Defines a method that checks whether a malformed request is really the start of an HTTP/2 connection,
+     * which opens with "PRI * HTTP/2.0" where an HTTP/1.x request line would be
+     * @return true if the buffered bytes of the request match the HTTP/2 connection preface so far
+     */
+    public boolean isHttp2Preface() {
+        byte[] preface = Http2Connection.CLIENT_PREFACE;
+        int count = Math.min(limit - start, preface.length);
+        if (count < "PRI *".length()) return false;
+        for (int i = 0; i < count; i++) {
+            if (buffer[start + i] != preface[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Defines a method that hands over the buffered bytes not yet used, when the connection stops speaking HTTP/1.x
+     * After a complete request they are the bytes past it; after a malformed one they start at that request,
+     * so an HTTP/2 connection preface is included. The parser is left empty
+     * @return a copy of the bytes
+     */
+    public byte[] takeBuffered() {
+        int from = (request != null) ? position : start;
+        byte[] buffered = Arrays.copyOfRange(buffer, from, limit);
+        start = 0;
+        position = 0;
+        limit = 0;
+        state = LINE_START;
+        request = null;
+        return buffered;
+    }
+
+    /**
+     * Defines a method that builds the request once the blank line ending the header block is seen
+     */
+    private Result complete() {
+        String method = methodEnd == 3 ? "GET" : text(0, methodEnd);
+        String version = (buffer[start + versionEnd - 1] == '0') ? "HTTP/1.0" : "HTTP/1.1";
+
+        // Clients often ask for the same path again on a connection; the headers are shared, so the
+        // previous request object describes the new request exactly and the path is not copied again
+        HttpRequest previous = lastRequest;
+        if (previous != null && previous.getMethod().equals(method) && previous.getVersion().equals(version)
+                && pathEquals(previous.getPath())) {
+            request = previous;
+        } else {
+            request = new HttpRequest(method, text(pathStart, pathEnd), version, headers);
+            lastRequest = request;
+        }
+        return Result.COMPLETE;
+    }
+
+    /**
+     * Defines a method that checks whether the path of the current request is spelled the same as a String
+     */
+    private boolean pathEquals(String path) {
+        if (path.length() != pathEnd - pathStart) return false;
+        for (int i = 0; i < path.length(); i++) {
+            if ((buffer[start + pathStart + i] & 0xFF) != path.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Defines a method that forgets the completed request so the next one can be parsed
+     */
+    private void nextRequest() {
+        request = null;
+        parseNanos = 0;
+        start = position;
+        state = LINE_START;
+        if (start == limit) {
+            start = 0;
+            position = 0;
+            limit = 0;
+        }
+    }
+
+    /**
+     * Defines a method that moves the unfinished request to the front of the buffer when the buffer is full
+     * Offsets are relative to the start of the request, so moving the bytes leaves them valid
+     */
+    private void makeRoom() {
+        if (request != null) {
+            nextRequest();
+        }
+        if (limit < buffer.length || start == 0) return;
+
+        System.arraycopy(buffer, start, buffer, 0, limit - start);
+        position -= start;
+        limit -= start;
+        start = 0;
+        headers.rebase(0);
+    }
+
+    /**
+     * Defines a method which checks whether the client made a GET request or not
+     * @return true if method is GET, else false
+     */
+    private boolean isValidMethod() {
+        return methodEnd == 3 && regionEqualsIgnoreCase(0, "GET");
     }
 
     /**
      * Defines a method which checks for a valid HTTP version in the request
-     * @param version is the HTTP version the client uses
      * @return true if the version is HTTP 1.0 or HTTP 1.1, else false
      */
-    private boolean isValidVersion(String version) {
-        return "HTTP/1.0".equalsIgnoreCase(version) || "HTTP/1.1".equalsIgnoreCase(version);
+    private boolean isValidVersion() {
+        return versionEnd - versionStart == 8
+                && (regionEqualsIgnoreCase(versionStart, "HTTP/1.0")
+                    || regionEqualsIgnoreCase(versionStart, "HTTP/1.1"));
+    }
+
+    private boolean regionEqualsIgnoreCase(int offset, String expected) {
+        for (int i = 0; i < expected.length(); i++) {
+            int c = buffer[start + offset + i];
+            if (Character.toUpperCase(c) != expected.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String text(int from, int to) {
+        return new String(buffer, start + from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isToken(int b) {
+        return b < 128 && TOKEN_CHARS[b];
     }
 }
@@ -1,6 +1,8 @@
 package server;
 
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 /**
  * Defines a class that outlines the various aspects of an HTTP response 
@@ -9,6 +11,8 @@ import java.io.OutputStream;
 public class HttpResponse {
     // Private variables
     private final OutputStream output;
+    private WritableByteChannel channel;
+    private DiskReader diskReader;
 
     private int statusCode;
     private String description;
@@ -18,6 +22,24 @@ public class HttpResponse {
 
     private String filePath;
     private boolean isText;
+    private boolean keepAlive;
+    private boolean bodyDeferred;
+    private byte[] cachedBody;
+    private String eTag;
+    private long lastModified;
+    private boolean acceptRanges;
+    private List<ByteRange> ranges;
+    private long resourceLength;
+    private String contentEncoding;
+    private boolean varyAcceptEncoding;
+    private MappedFileCache.Mapping mapping;
+
+    // Stamped by ResponseWriter for ServerMetrics when the response is timed
+    private boolean timed;
+    private long headerStartNanos;
+    private long bodyStartNanos;
+    private long bodyEndNanos;
+    private long bytesWritten;
 
     /**
      * Defines a constructor to build an HTTP response
@@ -27,6 +49,36 @@ public class HttpResponse {
         this.output = output;
     }
 
+    /**
+     * Defines a method that clears everything set for the previous request, so one response object
+     * can serve every request on a connection; the output, channel and disk reader are kept
+     */
+    public void reset() {
+        statusCode = 0;
+        description = null;
+        version = "HTTP/1.1";
+        contentLength = 0L;
+        contentType = null;
+        filePath = null;
+        isText = false;
+        keepAlive = false;
+        bodyDeferred = false;
+        cachedBody = null;
+        eTag = null;
+        lastModified = 0;
+        acceptRanges = false;
+        ranges = null;
+        resourceLength = 0;
+        contentEncoding = null;
+        varyAcceptEncoding = false;
+        mapping = null;
+        timed = false;
+        headerStartNanos = 0;
+        bodyStartNanos = 0;
+        bodyEndNanos = 0;
+        bytesWritten = 0;
+    }
+
     /**
      * Defines a method to get the output that will write the response
      * @return output as an OutputStream
@@ -35,6 +87,39 @@ public class HttpResponse {
         return output;
     }
 
+    /**
+     * Defines a method to get the socket channel behind the output, if there is one
+     * @return the channel file bodies can be transferred to directly, or null
+     */
+    public WritableByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Defines a method to set the socket channel behind the output
+     * Bytes written to the channel bypass the output buffer, so the output must be flushed first
+     * @param channel is the client connection, or null if only the stream is available
+     */
+    public void setChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Defines a method to get the disk threads large file regions are read ahead on
+     * @return the disk reader, or null if the file is read by the thread writing the response
+     */
+    public DiskReader getDiskReader() {
+        return diskReader;
+    }
+
+    /**
+     * Defines a method to set the disk threads large file regions are read ahead on
+     * @param diskReader is the server's disk reader, or null to read files inline
+     */
+    public void setDiskReader(DiskReader diskReader) {
+        this.diskReader = diskReader;
+    }
+
     /**
      * Defines a method to get the status code of the response (400, 403, etc)
      * @return status code as an integer
@@ -144,4 +229,260 @@ public class HttpResponse {
     public boolean isText() {
         return isText;
     }
+
+    /**
+     * Defines a method that flags whether the connection stays open after this response
+     * @param keepAlive is true for a persistent connection, or false if it closes after the response
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Defines a method that maintains whether the connection stays open after this response
+     * @return true if the connection is persistent, else false
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Defines a method that flags whether the file body is sent by the caller instead of ResponseWriter
+     * The nio engine sets this so only the header is written and the file is streamed when the socket is writable
+     * @param bodyDeferred is true if ResponseWriter should stop after the header
+     */
+    public void setBodyDeferred(boolean bodyDeferred) {
+        this.bodyDeferred = bodyDeferred;
+    }
+
+    /**
+     * Defines a method that maintains whether the file body is sent by the caller
+     * @return true if only the header is written by ResponseWriter, else false
+     */
+    public boolean isBodyDeferred() {
+        return bodyDeferred;
+    }
+
+    /**
+     * Defines a method to get the body already held in memory by the content cache
+     * @return the body bytes, or null if the body must be read from the file
+     */
+    public byte[] getCachedBody() {
+        return cachedBody;
+    }
+
+    /**
+     * Defines a method to set the body already held in memory by the content cache
+     * @param cachedBody is the complete body, shared with the cache and never modified
+     */
+    public void setCachedBody(byte[] cachedBody) {
+        this.cachedBody = cachedBody;
+    }
+
+    /**
+     * Defines a method to get the entity tag that identifies this version of the resource
+     * @return the quoted ETag, or null if the response has none
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Defines a method to set the entity tag that identifies this version of the resource
+     * @param eTag is the quoted strong ETag (ex. "1f4-18b2c3d4e5f")
+     */
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    /**
+     * Defines a method to get when the resource last changed
+     * @return the last-modified time in milliseconds, or 0 if the response has none
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Defines a method to set when the resource last changed
+     * @param lastModified is the file's last-modified time in milliseconds
+     */
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Defines a method that flags whether the response advertises support for Range requests
+     * @param acceptRanges is true for file responses that can be served in parts
+     */
+    public void setAcceptRanges(boolean acceptRanges) {
+        this.acceptRanges = acceptRanges;
+    }
+
+    /**
+     * Defines a method that maintains whether the response advertises support for Range requests
+     * @return true if "Accept-Ranges: bytes" is sent, else false
+     */
+    public boolean isAcceptRanges() {
+        return acceptRanges;
+    }
+
+    /**
+     * Defines a method to get the parts of the resource a 206 response carries
+     * @return the ranges in the order they are sent, or null if the whole resource is sent
+     */
+    public List<ByteRange> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Defines a method to set the parts of the resource a 206 response carries
+     * @param ranges are the satisfiable ranges; several ranges are sent as multipart/byteranges
+     */
+    public void setRanges(List<ByteRange> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Defines a method to get the size of the whole resource, used in Content-Range
+     * @return the resource size
+     */
+    public long getResourceLength() {
+        return resourceLength;
+    }
+
+    /**
+     * Defines a method to set the size of the whole resource, used in Content-Range
+     * @param resourceLength is the size of the file
+     */
+    public void setResourceLength(long resourceLength) {
+        this.resourceLength = resourceLength;
+    }
+
+    /**
+     * Defines a method to get the content coding applied to the body
+     * @return "gzip" or "deflate", or null if the body is sent as stored
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Defines a method to set the content coding applied to the body
+     * @param contentEncoding is "gzip" or "deflate", or null if the body is sent as stored
+     */
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Defines a method that flags whether the body depends on the client's Accept-Encoding
+     * @param varyAcceptEncoding is true for compressible resources, so caches keep one copy per coding
+     */
+    public void setVaryAcceptEncoding(boolean varyAcceptEncoding) {
+        this.varyAcceptEncoding = varyAcceptEncoding;
+    }
+
+    /**
+     * Defines a method that maintains whether the body depends on the client's Accept-Encoding
+     * @return true if "Vary: Accept-Encoding" is sent, else false
+     */
+    public boolean isVaryAcceptEncoding() {
+        return varyAcceptEncoding;
+    }
+
+    /**
+     * Defines a method to get the memory mapping the body is written from
+     * @return the retained mapping, or null if the body comes from the file or the content cache
+     */
+    public MappedFileCache.Mapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * Defines a method to set the memory mapping the body is written from
+     * Whoever writes the body releases the mapping once it is done
+     * @param mapping is a mapping retained for this response, or null
+     */
+    public void setMapping(MappedFileCache.Mapping mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * Defines a method to check whether ResponseWriter records when each stage of this response happens
+     * @return true if the response is timed, else false
+     */
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Defines a method to turn on timing of the header and body stages for ServerMetrics
+     * @param timed is true to stamp the stage times
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
+    /**
+     * Defines a method that stamps the moment the response header starts being built
+     */
+    void markHeaderStart() {
+        if (timed) headerStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Defines a method that stamps the moment the header is done and the body starts
+     * The body end is stamped too, so a response without a body has an empty body stage
+     */
+    void markBodyStart() {
+        if (timed) bodyStartNanos = bodyEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Defines a method that stamps the moment the body has been written (or queued, when deferred)
+     */
+    void markBodyEnd() {
+        if (timed) bodyEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Defines a method to get when the header started being built
+     * @return the System.nanoTime() stamp, or 0 if no header was written or the response is not timed
+     */
+    public long getHeaderStartNanos() {
+        return headerStartNanos;
+    }
+
+    /**
+     * Defines a method to get when the body started being written
+     * @return the System.nanoTime() stamp
+     */
+    public long getBodyStartNanos() {
+        return bodyStartNanos;
+    }
+
+    /**
+     * Defines a method to get when the body was done
+     * @return the System.nanoTime() stamp
+     */
+    public long getBodyEndNanos() {
+        return bodyEndNanos;
+    }
+
+    /**
+     * Defines a method to get the number of bytes this response is made of, header included
+     * @return the byte count
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Defines a method that counts bytes written (or queued) for this response
+     * @param count is the number of bytes
+     */
+    void addBytesWritten(long count) {
+        bytesWritten += count;
+    }
 }
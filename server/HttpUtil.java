@@ -1,8 +1,18 @@
 package server;
 
-import java.util.Date;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Defines a class that holds all the utility methods for generating an HTTP response
@@ -50,10 +60,10 @@ public class HttpUtil {
 
     /**
      * Defines a method to get the current date
-     * @return the current date as a String
+     * @return the current date as an HTTP date String (ex. Sun, 06 Nov 1994 08:49:37 GMT)
      */
     public static String getDate() {
-        return new Date().toString();
+        return HttpDate.current();
     }
 
     /**
@@ -84,6 +94,207 @@ public class HttpUtil {
         return extension;
     }
 
+    /**
+     * Defines a method that builds a strong entity tag from the size and last-modified time of a file
+     * Both change whenever the file is rewritten, so the tag changes with the content
+     * @param length is the size of the file
+     * @param lastModified is the file's last-modified time in milliseconds
+     * @return the quoted ETag (ex. "1f4-18b2c3d4e5f")
+     */
+    public static String createETag(long length, long lastModified) {
+        return createETag(length, lastModified, null);
+    }
+
+    /**
+     * Defines a method that builds a strong entity tag for one content coding of a file
+     * Each coding is a different representation, so it gets its own tag
+     * @param length is the size of the file
+     * @param lastModified is the file's last-modified time in milliseconds
+     * @param encoding is the content coding, or null for the file as stored
+     * @return the quoted ETag (ex. "1f4-18b2c3d4e5f-gzip")
+     */
+    public static String createETag(long length, long lastModified, String encoding) {
+        String tag = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+        return "\"" + (encoding == null ? tag : tag + "-" + encoding) + "\"";
+    }
+
+    /**
+     * Defines a method that checks whether the client's cached copy of a resource is still current
+     * If-None-Match is used when present; otherwise If-Modified-Since is compared at one second precision
+     * @param request is the parsed HTTP request from a client
+     * @param eTag is the current ETag of the resource
+     * @param lastModified is the resource's last-modified time in milliseconds
+     * @return true if a 304 Not Modified response can be sent, else false
+     */
+    public static boolean isNotModified(HttpRequest request, String eTag, long lastModified) {
+        HttpHeaders headers = request.getHeaders();
+        if (headers.contains("If-None-Match")) {
+            // GET uses the weak comparison, so W/"tag" also matches
+            return headers.containsToken("If-None-Match", eTag)
+                    || headers.containsToken("If-None-Match", "W/" + eTag)
+                    || headers.containsToken("If-None-Match", "*");
+        }
+
+        String since = headers.get("If-Modified-Since");
+        if (since == null) return false;
+
+        // An invalid date is ignored (RFC 7232, section 3.3)
+        long sinceSeconds = parseHttpDate(since);
+        return sinceSeconds >= 0 && lastModified / 1000 <= sinceSeconds;
+    }
+
+    /**
+     * Defines a method that checks whether a Range request may be answered with part of the resource
+     * With If-Range, the ranges only apply if the client's validator still matches exactly;
+     * otherwise the whole resource is sent
+     * @param request is the parsed HTTP request from a client
+     * @param eTag is the current ETag of the resource
+     * @param lastModified is the resource's last-modified time in milliseconds
+     * @return true if the Range header should be honored, else false
+     */
+    public static boolean isRangeCurrent(HttpRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) return true;
+
+        // If-Range uses the strong comparison, so weak tags never match
+        if (ifRange.startsWith("\"")) return ifRange.equals(eTag);
+        if (ifRange.startsWith("W/")) return false;
+
+        long dateSeconds = parseHttpDate(ifRange);
+        return dateSeconds >= 0 && lastModified / 1000 == dateSeconds;
+    }
+
+    /**
+     * Defines a method that parses an HTTP date
+     * @param date is the date text (ex. Sun, 06 Nov 1994 08:49:37 GMT)
+     * @return the time in seconds since the epoch, or -1 if the date is invalid
+     */
+    public static long parseHttpDate(String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Defines a method that picks the content coding for a compressible response from Accept-Encoding
+     * gzip is preferred over deflate when the client rates them equally; a q-value of 0 refuses a coding
+     * @param headers are the request headers
+     * @return "gzip", "deflate", or null if the response should not be compressed
+     */
+    public static String negotiateEncoding(HttpHeaders headers) {
+        String accept = headers.get("Accept-Encoding");
+        if (accept == null) return null;
+
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        // The list is scanned in place rather than split into Strings
+        int partStart = 0;
+        while (partStart <= accept.length()) {
+            int partEnd = accept.indexOf(',', partStart);
+            if (partEnd < 0) partEnd = accept.length();
+
+            int codingEnd = accept.indexOf(';', partStart);
+            if (codingEnd < 0 || codingEnd > partEnd) codingEnd = partEnd;
+            double quality = 1;
+            for (int paramStart = codingEnd + 1; paramStart < partEnd; ) {
+                int paramEnd = accept.indexOf(';', paramStart);
+                if (paramEnd < 0 || paramEnd > partEnd) paramEnd = partEnd;
+                int from = skipSpaces(accept, paramStart, paramEnd);
+                if (accept.regionMatches(true, from, "q=", 0, 2)) {
+                    try {
+                        quality = Double.parseDouble(accept.substring(from + 2, paramEnd).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+                paramStart = paramEnd + 1;
+            }
+
+            int from = skipSpaces(accept, partStart, codingEnd);
+            int to = codingEnd;
+            while (to > from && accept.charAt(to - 1) <= ' ') to--;
+            if (isCoding(accept, from, to, "gzip") || isCoding(accept, from, to, "x-gzip")) {
+                gzip = quality;
+            } else if (isCoding(accept, from, to, "deflate")) {
+                deflate = quality;
+            } else if (isCoding(accept, from, to, "*")) {
+                any = quality;
+            }
+            partStart = partEnd + 1;
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        if (deflate > 0) return "deflate";
+        return null;
+    }
+
+    private static int skipSpaces(String text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        return from;
+    }
+
+    private static boolean isCoding(String text, int from, int to, String coding) {
+        return to - from == coding.length() && text.regionMatches(true, from, coding, 0, coding.length());
+    }
+
+    /**
+     * Defines a method that compresses a body with a content coding
+     * The best compression level is used since each variant is compressed once and then cached
+     * @param body is the uncompressed body
+     * @param encoding is "gzip" or "deflate" (the zlib format, as HTTP defines it)
+     * @return the compressed body
+     * @throws IOException if compression fails
+     */
+    public static byte[] compress(byte[] body, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 3));
+        if ("gzip".equals(encoding)) {
+            try (GZIPOutputStream output = new GZIPOutputStream(compressed) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                output.write(body);
+            }
+        } else {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (DeflaterOutputStream output = new DeflaterOutputStream(compressed, deflater)) {
+                output.write(body);
+            } finally {
+                deflater.end();
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Defines a method that gets the client address of a connection for logging
+     * @param socket is the client connection
+     * @return the address as ASCII bytes (ex. 127.0.0.1), or "-" if it is unknown
+     */
+    public static byte[] remoteAddress(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        String text = (address != null) ? address.getHostAddress() : "-";
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Defines a method that maps a request for the site root onto index.html
+     * @param request is the parsed HTTP request from a client
+     * @return a request for /index.html if the path is /, else the request unchanged
+     */
+    public static HttpRequest resolveDefaultPage(HttpRequest request) {
+        // getPath() returns the uri from HttpRequest.java
+        if ("/".equals(request.getPath())) {
+            return request.withDefaultPage("/index.html");
+        }
+        return request;
+    }
+
     /**
      * Defines a method to build the HTTP response header
      * @param statusCode represents the status of the request (200, 400, 404, etc.)
@@ -91,34 +302,15 @@ public class HttpUtil {
      * @param version is the HTTP version the client uses to send the request (HTTP 1.0 or HTTP 1.1)
      * @param contentType is media type of the resource (jpg, jpeg, css, js, etc.);
      * @param len is the size of the resource
+     * @param keepAlive is true if the connection stays open after this response
      * @return the HTTP response header as a String
+     * @see HeaderEncoder for the allocation free form used when writing responses
      */
     public static String constructHeader(int statusCode, String description, String version, String contentType,
-                                                                                             long len) {
-        StringBuilder header = new StringBuilder();
-
-        if (version == null) {
-            version = "HTTP/1.1";
-        }
-
-        if (description == null) {
-            description = "";
-        }
-        header.append(version)
-              .append(" ").append(statusCode).append(" ").append(description)
-              .append(END_LINE);
-
-        // Creating the content type
-        if (contentType != null && !contentType.isEmpty() && len > 0) {
-            header.append("Content-Type: ").append(contentType).append(END_LINE);
-        }
+                                                                             long len, boolean keepAlive) {
+        HeaderEncoder header = new HeaderEncoder()
+                .encode(statusCode, description, version, contentType, len, keepAlive);
 
-        // Creating content length, and date
-        header.append("Content-Length: ").append(len).append(END_LINE);
-        header.append("Date: ").append(getDate()).append(END_LINE);
-              
-        header.append(END_LINE);
-        
-        return header.toString();
+        return new String(header.getBuffer(), 0, header.getLength(), StandardCharsets.ISO_8859_1);
     }
 }
@@ -0,0 +1,163 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Defines a class that decides how long idle keep-alive connections stay open, shared by every connection
+ * Each connection's timeout starts from twice the moving average (EWMA) of its own gaps between requests,
+ * and shrinks towards "-keepalive_min_ms" as the server fills up: pressure is the open connections plus
+ * the connections waiting for a thread, divided by the connections the server can serve at once
+ * Once pressure passes "-keepalive_reap_at", a reaper thread closes idle connections, longest idle first,
+ * so clients with requests to send get the threads idle clients were holding. Connections idle for less than
+ * "-keepalive_reap_idle_ms" are left alone, since a client sending requests back to back is not idle
+ */
+public class KeepAlivePolicy {
+    private static final long REAP_INTERVAL_MS = 200;
+
+    private final int defaultMillis;
+    private final int minMillis;
+    private final int maxMillis;
+    private final double reapAt;
+    private final long reapIdleMillis;
+    private volatile int capacity;
+    private volatile IntSupplier waiting = () -> 0;
+
+    private final Set<KeepAliveTimer> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder reaped = new LongAdder();
+
+    /**
+     * Defines a constructor that sets the timeout bounds and starts the reaper
+     * @param defaultMillis is the timeout before a connection has sent two requests
+     * @param minMillis is the timeout under full pressure
+     * @param maxMillis is the longest timeout
+     * @param reapAt is the pressure (0 to 1) at which idle connections start being closed, 0 to never reap
+     * @param reapIdleMillis is how long a connection must have been idle before it can be reaped
+     * @param capacity is the number of connections the server can serve at once
+     */
+    public KeepAlivePolicy(int defaultMillis, int minMillis, int maxMillis, double reapAt, long reapIdleMillis,
+                           int capacity) {
+        this.minMillis = Math.max(1, minMillis);
+        this.maxMillis = Math.max(this.minMillis, maxMillis);
+        this.defaultMillis = Math.min(Math.max(defaultMillis, this.minMillis), this.maxMillis);
+        this.reapAt = reapAt;
+        this.reapIdleMillis = reapIdleMillis;
+        this.capacity = Math.max(1, capacity);
+
+        if (reapAt > 0) {
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "keepalive-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleWithFixedDelay(this::reap, REAP_INTERVAL_MS, REAP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Defines a method that sets the number of connections the server can serve at once
+     * (ex. the pool size of the threads engine, whose idle connections each hold a thread)
+     * @param capacity is the connection count at full pressure
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Defines a method to set where the number of connections waiting for a thread is read from
+     * @param waiting returns the current queue length
+     */
+    public void setWaiting(IntSupplier waiting) {
+        this.waiting = waiting;
+    }
+
+    /**
+     * Defines a method that gets how full the server is
+     * @return the open and waiting connections over the capacity, capped at 1
+     */
+    public double getPressure() {
+        return Math.min(1.0, (open.get() + waiting.getAsInt()) / (double) capacity);
+    }
+
+    /**
+     * Defines a method that works out the idle timeout of a connection under the current pressure
+     * @param averageGapMillis is the connection's average gap between requests, or a negative number if unknown
+     * @return the timeout in milliseconds
+     */
+    int timeoutFor(double averageGapMillis) {
+        double base = (averageGapMillis < 0)
+                ? defaultMillis
+                : Math.min(Math.max(averageGapMillis * 2, defaultMillis), maxMillis);
+        double timeout = minMillis + (base - minMillis) * (1.0 - getPressure());
+        return (int) Math.max(minMillis, timeout);
+    }
+
+    /**
+     * Defines a method that starts tracking a newly opened connection
+     * @param timer is the connection's timer
+     */
+    void opened(KeepAliveTimer timer) {
+        connections.add(timer);
+        open.incrementAndGet();
+    }
+
+    /**
+     * Defines a method that stops tracking a closed connection
+     * @param timer is the connection's timer
+     */
+    void closed(KeepAliveTimer timer) {
+        if (connections.remove(timer)) {
+            open.decrementAndGet();
+        }
+    }
+
+    /**
+     * Defines a method that summarizes the policy state
+     * @return the open connections, pressure, current default timeout and reaped count as a single line
+     */
+    public String getStats() {
+        return "open=" + open.get() + " pressure=" + Math.round(getPressure() * 100) / 100.0
+                + " timeout_ms=" + timeoutFor(-1) + " reaped=" + reaped.sum();
+    }
+
+    /**
+     * Defines a method to get the number of idle connections closed by the reaper
+     * @return the reaped count
+     */
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * Defines the reaper task: while pressure is past the threshold, close the longest idle connections
+     * until enough capacity is free again
+     */
+    private void reap() {
+        int excess = open.get() + waiting.getAsInt() - (int) Math.ceil(reapAt * capacity);
+        if (excess <= 0) return;
+
+        long idleBefore = System.currentTimeMillis() - reapIdleMillis;
+        List<KeepAliveTimer> idle = new ArrayList<>();
+        for (KeepAliveTimer timer : connections) {
+            long since = timer.getIdleSince();
+            if (since > 0 && since <= idleBefore) idle.add(timer);
+        }
+        idle.sort(Comparator.comparingLong(KeepAliveTimer::getIdleSince));
+        for (int i = 0; i < idle.size() && excess > 0; i++) {
+            if (idle.get(i).reap()) {
+                reaped.increment();
+                excess--;
+            }
+        }
+    }
+}
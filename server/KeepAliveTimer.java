@@ -0,0 +1,109 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Defines a class that follows one keep-alive connection for the KeepAlivePolicy
+ * It keeps a moving average of the gaps between the connection's requests and whether it is idle
+ * (waiting for its next request) or busy; only idle connections can be reaped
+ */
+public class KeepAliveTimer {
+    // Weight of the newest gap in the moving average
+    private static final double ALPHA = 0.3;
+    private static final long BUSY = 0;
+    private static final long REAPED = -1;
+
+    private final KeepAlivePolicy policy;
+    private final Runnable closer;
+    private final AtomicLong idleSince = new AtomicLong(BUSY);
+    private double averageGapMillis = -1;
+    private boolean answered;
+
+    /**
+     * Defines a constructor for the timer of one connection
+     * @param policy is the server's keep-alive policy
+     * @param closer is run on the reaper thread to close the connection once it has been reaped
+     */
+    KeepAliveTimer(KeepAlivePolicy policy, Runnable closer) {
+        this.policy = policy;
+        this.closer = closer;
+    }
+
+    /**
+     * Defines a method that registers the connection with the policy once it is being served
+     * (a connection still waiting in the queue is counted as waiting, not open)
+     */
+    void open() {
+        policy.opened(this);
+    }
+
+    /**
+     * Defines a method called when the connection starts waiting for its next request
+     */
+    void markIdle() {
+        idleSince.compareAndSet(BUSY, System.currentTimeMillis());
+    }
+
+    /**
+     * Defines a method called when a request arrives; the idle time since the last response
+     * is added to the moving average
+     * @return false if the reaper closed the connection first, else true
+     */
+    boolean markBusy() {
+        long since = idleSince.get();
+        if (since == REAPED) return false;
+        if (since == BUSY) return true;
+        if (!idleSince.compareAndSet(since, BUSY)) return false;
+
+        // The wait for the first request is connection setup, not a gap between requests
+        if (answered) {
+            long gap = System.currentTimeMillis() - since;
+            averageGapMillis = (averageGapMillis < 0) ? gap : ALPHA * gap + (1 - ALPHA) * averageGapMillis;
+        }
+        answered = true;
+        return true;
+    }
+
+    /**
+     * Defines a method that gets the idle timeout for the connection under the current pressure
+     * @return the timeout in milliseconds
+     */
+    int calculateTimeout() {
+        return policy.timeoutFor(averageGapMillis);
+    }
+
+    /**
+     * Defines a method to get when the connection became idle
+     * @return the time in milliseconds, or 0 or less if it is busy or already reaped
+     */
+    long getIdleSince() {
+        return idleSince.get();
+    }
+
+    /**
+     * Defines a method that checks whether the reaper closed the connection
+     * @return true if the connection was reaped
+     */
+    boolean isReaped() {
+        return idleSince.get() == REAPED;
+    }
+
+    /**
+     * Defines a method called by the reaper; closes the connection if it is still idle
+     * @return true if the connection was reaped, false if a request arrived first
+     */
+    boolean reap() {
+        long since = idleSince.get();
+        if (since <= 0 || !idleSince.compareAndSet(since, REAPED)) return false;
+        policy.closed(this);
+        closer.run();
+        return true;
+    }
+
+    /**
+     * Defines a method that stops tracking the connection once it is closed
+     */
+    void close() {
+        policy.closed(this);
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Defines a class that holds values within a byte budget, dropping the least recently used ones once it is exceeded
+ * Values are kept in a LinkedHashMap in access order behind one lock, so a lookup, an insert and each eviction
+ * cost O(1) however many values are held; the caches of file bodies and of mapped files both keep their values here
+ * Values that leave the cache (evicted, replaced or removed) are handed to a callback after the lock is released
+ * @param <V> is the type of the cached values
+ */
+public final class LruCache<V> {
+    private final long maxBytes;
+    private final ToLongFunction<V> sizeOf;
+    private final Consumer<V> onRemoved;
+    private final LinkedHashMap<String, V> values = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Written under the lock, read without it for statistics
+    private volatile long bytesHeld;
+    private volatile long evictions;
+
+    /**
+     * Defines a constructor that sets the budget and how values are measured
+     * @param maxBytes is the total size the values may have
+     * @param sizeOf gives the size of a value in bytes
+     * @param onRemoved is given every value that leaves the cache, or null
+     */
+    public LruCache(long maxBytes, ToLongFunction<V> sizeOf, Consumer<V> onRemoved) {
+        this.maxBytes = maxBytes;
+        this.sizeOf = sizeOf;
+        this.onRemoved = onRemoved;
+    }
+
+    /**
+     * Defines a method that looks up a value and marks it as the most recently used
+     * @param key is the key the value was stored under
+     * @return the value, or null if there is none
+     */
+    public V get(String key) {
+        lock.lock();
+        try {
+            return values.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Defines a method that stores a value, replacing the one held under its key, and evicts least recently used
+     * values until the cache fits its budget again
+     * A value larger than the whole budget is stored and evicted right away
+     * @param key is the key to store the value under
+     * @param value is the value
+     */
+    public void put(String key, V value) {
+        List<V> removed = new ArrayList<>(1);
+        lock.lock();
+        try {
+            V previous = values.put(key, value);
+            long bytes = bytesHeld + sizeOf.applyAsLong(value);
+            if (previous != null) {
+                bytes -= sizeOf.applyAsLong(previous);
+                removed.add(previous);
+            }
+
+            // Iteration starts at the least recently used value
+            Iterator<V> oldest = values.values().iterator();
+            while (bytes > maxBytes && oldest.hasNext()) {
+                V evicted = oldest.next();
+                oldest.remove();
+                bytes -= sizeOf.applyAsLong(evicted);
+                removed.add(evicted);
+                evictions++;
+            }
+            bytesHeld = bytes;
+        } finally {
+            lock.unlock();
+        }
+        notifyRemoved(removed);
+    }
+
+    /**
+     * Defines a method that drops a value, unless its key has been given another value meanwhile
+     * @param key is the key the value was stored under
+     * @param value is the value to drop
+     * @return true if the value was dropped, else false
+     */
+    public boolean remove(String key, V value) {
+        lock.lock();
+        try {
+            if (!values.remove(key, value)) return false;
+            bytesHeld -= sizeOf.applyAsLong(value);
+        } finally {
+            lock.unlock();
+        }
+        if (onRemoved != null) onRemoved.accept(value);
+        return true;
+    }
+
+    /**
+     * Defines a method to get the number of values held
+     * @return the value count
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return values.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Defines a method to get the total size of the values held
+     * @return the bytes held
+     */
+    public long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    /**
+     * Defines a method to get the number of values dropped to stay within the budget
+     * @return the eviction count
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private void notifyRemoved(List<V> removed) {
+        if (onRemoved == null) return;
+        for (V value : removed) {
+            onRemoved.accept(value);
+        }
+    }
+}
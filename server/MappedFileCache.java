@@ -0,0 +1,199 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines a class that keeps hot mid-size files memory mapped, so serving them needs no open or read per request
+ * A file is mapped once it has been requested a few times, remapped when its last-modified time or size changes,
+ * and the least recently used mappings are dropped once the total mapped size exceeds its budget
+ * Mappings are reference counted: the cache holds one reference and every response writing from a mapping
+ * holds another, so a mapping is only unmapped after the last response using it has finished
+ */
+public class MappedFileCache {
+    // Candidates are forgotten once this many files have been counted, so scans cannot grow the map forever
+    private static final int MAX_CANDIDATES = 10_000;
+
+    private final long minFileBytes;
+    private final long maxFileBytes;
+    private final int minHits;
+    // The cache's reference to a mapping is released once the mapping leaves it
+    private final LruCache<Mapping> mappings;
+    private final ConcurrentHashMap<String, AtomicInteger> candidates = new ConcurrentHashMap<>();
+
+    // Statistics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Defines a constructor that sets which files are mapped and how much may be mapped at once
+     * @param maxMappedBytes is the total size of all mappings
+     * @param minFileBytes is the smallest file worth mapping
+     * @param maxFileBytes is the largest file that will be mapped
+     * @param minHits is the number of requests for a file before it is mapped
+     */
+    public MappedFileCache(long maxMappedBytes, long minFileBytes, long maxFileBytes, int minHits) {
+        this.minFileBytes = minFileBytes;
+        this.maxFileBytes = Math.min(Math.min(maxFileBytes, maxMappedBytes), Integer.MAX_VALUE);
+        this.minHits = Math.max(1, minHits);
+        this.mappings = new LruCache<>(maxMappedBytes, mapping -> mapping.length, Mapping::release);
+    }
+
+    /**
+     * Defines a method that returns a current mapping of a file, taking a reference the caller must release
+     * @param file is the file being served
+     * @param lastModified is the file's last-modified time
+     * @param length is the file's size
+     * @return a retained mapping, or null if the file is not mapped (yet)
+     * @throws IOException if mapping the file fails
+     */
+    public Mapping acquire(File file, long lastModified, long length) throws IOException {
+        if (length < minFileBytes || length > maxFileBytes) return null;
+
+        String key = file.getPath();
+        Mapping mapping = mappings.get(key);
+        if (mapping != null && mapping.lastModified == lastModified && mapping.length == length && mapping.retain()) {
+            hits.increment();
+            return mapping;
+        }
+        misses.increment();
+
+        // The file changed on disk since it was mapped
+        if (mapping != null) {
+            mappings.remove(key, mapping);
+        }
+        if (!isHot(key)) return null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != length) return null;
+            mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), lastModified, length);
+        }
+        mapping.retain();
+        mappings.put(key, mapping);
+        return mapping;
+    }
+
+    /**
+     * Defines a method that counts a request for a file that is not mapped
+     * @return true once the file has been requested often enough to map
+     */
+    private boolean isHot(String key) {
+        if (candidates.size() > MAX_CANDIDATES) {
+            candidates.clear();
+        }
+        int count = candidates.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (count < minHits) return false;
+        candidates.remove(key);
+        return true;
+    }
+
+    /**
+     * Defines a method that summarizes the cache statistics
+     * @return hits, misses, evictions, mapping count and bytes mapped as a single line
+     */
+    public String getStats() {
+        return "hits=" + hits.sum() + " misses=" + misses.sum() + " evictions=" + mappings.getEvictions()
+                + " mappings=" + mappings.size() + " bytes=" + mappings.getBytesHeld();
+    }
+
+    /**
+     * Defines a method to get the number of bytes currently mapped
+     * @return the mapped bytes
+     */
+    public long getMappedBytes() {
+        return mappings.getBytesHeld();
+    }
+
+    /**
+     * Defines a class for one mapped file
+     */
+    public static final class Mapping {
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private final long length;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Mapping(MappedByteBuffer buffer, long lastModified, long length) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Defines a method that takes a reference, unless the mapping was already unmapped
+         * @return true if the reference was taken, else false
+         */
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) return false;
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        /**
+         * Defines a method that gives back a reference; the last one unmaps the file
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                Unmapper.unmap(buffer);
+            }
+        }
+
+        /**
+         * Defines a method that creates an independent view of part of the mapping for one write
+         * @param position is the offset of the first byte
+         * @param count is the number of bytes
+         * @return a buffer positioned over the region
+         */
+        public ByteBuffer slice(long position, long count) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit((int) (position + count)).position((int) position);
+            return view;
+        }
+    }
+
+    /**
+     * Defines a class that unmaps a buffer right away instead of waiting for garbage collection
+     * Uses sun.misc.Unsafe.invokeCleaner when the runtime offers it; otherwise the mapping is left to the collector
+     */
+    private static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                unsafe = null;
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException ignored) {
+                // The collector unmaps the buffer once it is unreachable
+            }
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Defines a class that adapts one non-blocking connection to the blocking request pipeline
+ * Bytes are fed to the incremental HttpRequestParser as they arrive; each complete request goes through
+ * GetCommand and ResponseWriter as usual, the response header is captured in memory and the file body
+ * is streamed from a FileChannel whenever the socket can take more data
+ * File bodies are sent with transferTo; with "-disk_io async" they are read on the DiskReader's threads instead, so
+ * the loop never waits on the disk: a connection whose next chunk is not read yet stops asking for writes until its
+ * event loop is told the chunk is ready
+ * With "-tls_keystore" the bytes go through a TlsChannel instead; ALPN only offers HTTP/1.1 on this engine
+ * The event loop drops a connection that breaks a limit of the SlowClientGuard: no request byte within the first
+ * byte timeout, a header that takes longer than the header timeout, or responses taken slower than the minimum
+ * send rate from when the socket first stopped taking them
+ */
+public class NioConnection {
+    // Limits how many pipelined responses may wait to be written before reading pauses
+    private static final int MAX_PENDING_RESPONSES = 16;
+    private static final int MAX_GATHERED_BUFFERS = 64;
+    private static final int CAPTURE_BUFFER_BYTES = 4096;
+
+    private final SocketChannel channel;
+    // The socket itself, or the TlsChannel over it
+    private final TlsChannel tls;
+    private final ReadableByteChannel reader;
+    private final GatheringByteChannel writer;
+    private final SelectionKey key;
+    private final Command command;
+    private final HttpRequestParser parser;
+    private final SlowClientGuard guard;
+    private final KeepAliveTimer keepAliveTimer;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final byte[] remoteAddress;
+    private final DiskReader diskReader;
+    private final Runnable onDiskReady;
+    private final NioEventLoop loop;
+
+    private final BufferPool bufferPool;
+    private final PooledOutputStream headerBytes;
+    private final HttpResponse httpResponse;
+    private final RegionQueue regionQueue = new RegionQueue();
+    private final ArrayDeque<Outbound> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+    private boolean closeAfterWrite;
+    private boolean closed;
+    private long lastActivity = System.currentTimeMillis();
+
+    // Checked against the SlowClientGuard's limits by the event loop
+    private final long openedAt = lastActivity;
+    private boolean requestSeen;
+    // When the request being parsed started arriving, 0 if none has
+    private long headerStartedAt;
+    // When the socket last stopped taking the queued responses, 0 while it takes them; and the bytes sent since
+    private long sendStartedAt;
+    private long sendBytes;
+
+    /**
+     * Defines a constructor for a connection registered with an event loop
+     * @param channel is the non-blocking client connection
+     * @param key is the selection key of the channel
+     * @param context holds the document root and the content cache
+     * @param loop is the event loop serving the connection, told when a chunk read from disk is ready
+     * @throws IOException if the TLS channel cannot be set up
+     */
+    NioConnection(SocketChannel channel, SelectionKey key, ServerContext context, NioEventLoop loop)
+            throws IOException {
+        this.channel = channel;
+        this.key = key;
+        this.command = context.getCommand();
+        this.guard = context.getSlowClientGuard();
+        this.parser = guard.newParser();
+        // Captured bytes go into pooled direct buffers, which the socket reads without another copy
+        this.bufferPool = context.getBufferPool();
+        TlsContext tlsContext = context.getTlsContext();
+        this.tls = (tlsContext != null) ? tlsContext.open(channel, bufferPool, false) : null;
+        this.reader = (tls != null) ? tls : channel;
+        this.writer = (tls != null) ? tls : channel;
+        this.headerBytes = new PooledOutputStream(bufferPool, null, CAPTURE_BUFFER_BYTES);
+        this.httpResponse = new HttpResponse(headerBytes);
+        // The reaper runs on its own thread, so it only flags the connection and wakes the loop to close it
+        this.keepAliveTimer = new KeepAliveTimer(context.getKeepAlivePolicy(), () -> key.selector().wakeup());
+        keepAliveTimer.open();
+        keepAliveTimer.markIdle();
+        this.metrics = context.getMetrics();
+        this.accessLog = context.getAccessLog();
+        this.remoteAddress = (accessLog != null) ? HttpUtil.remoteAddress(channel.socket()) : null;
+        this.diskReader = context.getDiskReader();
+        this.onDiskReady = () -> loop.diskReady(this);
+        this.loop = loop;
+        parser.setTimed(metrics != null && metrics.sampleNext());
+        if (metrics != null) metrics.connectionOpened();
+    }
+
+    /**
+     * Defines a method that reads available bytes and answers every complete request among them
+     * @throws IOException if reading from or writing to the client fails
+     */
+    void onReadable() throws IOException {
+        int count = parser.read(reader);
+        if (count == -1) {
+            // The client finished sending, answer what is already queued and then close
+            closeAfterWrite = true;
+            flush();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        if (!keepAliveTimer.markBusy()) {
+            close();
+            return;
+        }
+        processRequests();
+        flush();
+    }
+
+    /**
+     * Defines a method that continues writing a response the socket could not take at once
+     * @throws IOException if writing to the client fails
+     */
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Defines a method that continues writing a response whose next chunk has been read from disk
+     * @throws IOException if writing to the client fails
+     */
+    void onDiskReady() throws IOException {
+        if (!closed) flush();
+    }
+
+    /**
+     * Defines a method that checks whether a TLS connection holds input the selector cannot see, because it was
+     * read from the socket already; the event loop reads it before waiting for the selector again
+     * @return true if onReadable should run again, else false
+     */
+    boolean hasBufferedInput() {
+        return tls != null && !closed && !closeAfterWrite && outbound.isEmpty() && tls.hasBufferedInput();
+    }
+
+    /**
+     * Defines a method that checks whether the connection has been idle longer than its keep-alive timeout
+     * The timeout is worked out again on every check, so it shrinks as the server fills up
+     * @param now is the current time in milliseconds
+     * @return true if the connection should be closed, else false
+     */
+    boolean isIdleExpired(long now) {
+        if (keepAliveTimer.isReaped()) return true;
+        return outbound.isEmpty() && now - lastActivity > keepAliveTimer.calculateTimeout();
+    }
+
+    /**
+     * Defines a method that checks whether the client is too slow to keep: it sent no request byte within the first
+     * byte timeout, has been sending a header for longer than the header timeout, or since the socket stopped taking
+     * responses has not read what the grace period plus the minimum send rate allow
+     * A connection found too slow is counted by the guard; the caller closes it
+     * @param now is the current time in milliseconds
+     * @return true if the connection should be closed, else false
+     */
+    boolean isTooSlow(long now) {
+        SlowClientGuard.Reason reason = null;
+        long sendMillis = guard.sendMillis(sendBytes);
+        if (sendStartedAt != 0 && sendMillis > 0 && now - sendStartedAt > sendMillis) {
+            reason = SlowClientGuard.Reason.SEND_RATE;
+        } else if (headerStartedAt != 0 && guard.getHeaderMillis() > 0
+                && now - headerStartedAt > guard.getHeaderMillis()) {
+            reason = SlowClientGuard.Reason.HEADER;
+        } else if (!requestSeen && guard.getFirstByteMillis() > 0 && now - openedAt > guard.getFirstByteMillis()) {
+            reason = SlowClientGuard.Reason.FIRST_BYTE;
+        }
+        if (reason == null) return false;
+        guard.record(reason);
+        return true;
+    }
+
+    /**
+     * Defines a method that closes the connection and any files still queued for writing
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        if (metrics != null) metrics.connectionClosed();
+        loop.connectionClosed();
+        keepAliveTimer.close();
+        key.cancel();
+        for (Outbound pending : outbound) {
+            pending.close();
+        }
+        outbound.clear();
+        headerBytes.close();
+        if (tls != null) {
+            // Sends close_notify if the socket takes it and gives the record buffer back to the pool
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // This ignores exceptions if the socket has closed
+        }
+    }
+
+    /**
+     * Defines a method that handles each complete request in the input buffer, in arrival order
+     * @throws IOException if a response header cannot be captured
+     */
+    private void processRequests() throws IOException {
+        while (!closeAfterWrite && outbound.size() < MAX_PENDING_RESPONSES) {
+            HttpRequestParser.Result result = parser.parse();
+            if (result == HttpRequestParser.Result.INCOMPLETE) {
+                if (parser.hasPartialRequest() && headerStartedAt == 0) {
+                    requestSeen = true;
+                    headerStartedAt = System.currentTimeMillis();
+                }
+                break;
+            }
+            requestSeen = true;
+            headerStartedAt = 0;
+
+            if (result == HttpRequestParser.Result.COMPLETE) {
+                handleRequest(parser.getRequest());
+            } else if (result == HttpRequestParser.Result.TOO_LARGE) {
+                ResponseWriter.sendHeaderTooLarge(headerBytes);
+                guard.record(SlowClientGuard.Reason.HEADER_TOO_LARGE);
+                if (metrics != null) metrics.recordRejected(431);
+                if (accessLog != null) accessLog.log(remoteAddress, null, 431, 0);
+                closeAfterWrite = true;
+            } else {
+                ResponseWriter.sendBadRequest(headerBytes);
+                if (metrics != null) metrics.recordRejected(400);
+                if (accessLog != null) accessLog.log(remoteAddress, null, 400, 0);
+                closeAfterWrite = true;
+            }
+        }
+        queueHeaderBytes();
+    }
+
+    /**
+     * Defines a method that runs one parsed request through the command
+     * @param parsedRequest is the request just completed by the parser
+     * @throws IOException if a response header cannot be captured
+     */
+    private void handleRequest(HttpRequest parsedRequest) throws IOException {
+        boolean keepAlive = parsedRequest.isKeepAlive();
+
+        httpResponse.reset();
+        httpResponse.setKeepAlive(keepAlive);
+        httpResponse.setBodyDeferred(true);
+        httpResponse.setTimed(parser.isTimed());
+        long started = parser.isTimed() ? System.nanoTime() : 0;
+        try {
+            command.execute(HttpUtil.resolveDefaultPage(parsedRequest), httpResponse);
+        } catch (Exception e) {
+            ResponseWriter.sendInternalServerError(headerBytes);
+            if (metrics != null) metrics.recordRejected(500);
+            if (accessLog != null) accessLog.log(remoteAddress, parsedRequest, 500, 0);
+            closeAfterWrite = true;
+            return;
+        }
+        if (metrics != null) {
+            metrics.recordRequest(parser.getParseNanos(), started, httpResponse);
+            parser.setTimed(metrics.sampleNext());
+        }
+        if (accessLog != null) {
+            accessLog.log(remoteAddress, parsedRequest, httpResponse.getStatusCode(), httpResponse.getContentLength());
+        }
+
+        if (httpResponse.getMapping() != null) {
+            queueMappedBody(httpResponse);
+        } else if (httpResponse.isBodyDeferred() && httpResponse.getCachedBody() == null
+                && httpResponse.getFilePath() != null && httpResponse.getContentLength() > 0) {
+            queueFileBody(httpResponse);
+        }
+
+        if (!keepAlive) {
+            closeAfterWrite = true;
+        }
+    }
+
+    /**
+     * Defines a method that queues the body of a file response, one file region per requested range
+     * The file is opened once and closed when its last region has been written
+     * @param httpResponse is the response whose header has just been captured
+     * @throws IOException if the file cannot be opened
+     */
+    private void queueFileBody(HttpResponse httpResponse) throws IOException {
+        String path = httpResponse.getFilePath();
+        FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        regionQueue.start(file, path, null);
+        try {
+            ResponseWriter.writeBodyParts(httpResponse, regionQueue);
+        } finally {
+            if (!regionQueue.finish()) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that queues the body of a response served from a memory mapping
+     * Each region is a slice of the mapping; the mapping is released when the last slice has been written
+     * @param httpResponse is the response whose header has just been captured
+     * @throws IOException if a part header cannot be captured
+     */
+    private void queueMappedBody(HttpResponse httpResponse) throws IOException {
+        MappedFileCache.Mapping mapping = httpResponse.getMapping();
+        regionQueue.start(null, null, mapping);
+        try {
+            ResponseWriter.writeBodyParts(httpResponse, regionQueue);
+        } finally {
+            if (!regionQueue.finish()) {
+                mapping.release();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that moves captured header bytes onto the write queue
+     * Headers of consecutive bodiless responses share one buffer so they go out in one write
+     */
+    private void queueHeaderBytes() {
+        ByteBuffer captured = headerBytes.take();
+        if (captured == null) return;
+        outbound.add(new Outbound(captured, bufferPool));
+    }
+
+    /**
+     * Defines a method that writes queued responses until the socket would block
+     * Consecutive in-memory pieces (headers and mapped bodies) go out in one gathering write
+     * @throws IOException if writing to the client fails
+     */
+    private void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            Outbound pending = outbound.peek();
+            boolean written;
+            if (pending.bytes != null) {
+                written = writeGathered();
+            } else {
+                long sentBefore = pending.sent;
+                written = pending.writeTo(writer);
+                sendBytes += pending.sent - sentBefore;
+            }
+            if (!written) {
+                lastActivity = System.currentTimeMillis();
+                if (pending.isWaitingForDisk()) {
+                    // A region waiting for the disk is resumed by onDiskReady, not by the socket becoming writable,
+                    // and the time it waits is not held against the client
+                    sendStartedAt = 0;
+                    key.interestOps(0);
+                } else {
+                    startSendWindow();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            if (pending.file != null) {
+                outbound.poll().close();
+            }
+
+            // Reading may have paused because too many responses were waiting
+            if (outbound.isEmpty()) {
+                processRequests();
+            }
+        }
+        lastActivity = System.currentTimeMillis();
+
+        if (tls != null && !tls.flushPending()) {
+            // Encrypted records (or handshake messages) are still waiting for the socket
+            startSendWindow();
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        sendStartedAt = 0;
+        if (closeAfterWrite) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+            keepAliveTimer.markIdle();
+        }
+    }
+
+    /**
+     * Defines a method that starts timing the send rate when the socket stops taking bytes, unless it already is
+     */
+    private void startSendWindow() {
+        if (sendStartedAt != 0) return;
+        sendStartedAt = lastActivity;
+        sendBytes = 0;
+    }
+
+    /**
+     * Defines a method that writes the in-memory pieces at the head of the queue with one gathering write
+     * Pieces that were written completely are removed from the queue
+     * @return true if every gathered piece was written, else false
+     * @throws IOException if writing to the client fails
+     */
+    private boolean writeGathered() throws IOException {
+        int count = 0;
+        for (Outbound pending : outbound) {
+            if (pending.bytes == null || count == gathered.length) break;
+            gathered[count++] = pending.bytes;
+        }
+        sendBytes += writer.write(gathered, 0, count);
+        Arrays.fill(gathered, 0, count, null);
+
+        while (!outbound.isEmpty() && outbound.peek().bytes != null) {
+            if (outbound.peek().bytes.hasRemaining()) return false;
+            outbound.poll().close();
+        }
+        return true;
+    }
+
+    /**
+     * Defines a class that queues the regions of one response body, reused for every response on the connection
+     * Multipart boundaries are captured with the header bytes; each region becomes a file region or a mapping slice
+     */
+    private final class RegionQueue implements ResponseWriter.BodySink {
+        private FileChannel file;
+        private String path;
+        private MappedFileCache.Mapping mapping;
+        private Outbound lastRegion;
+
+        void start(FileChannel file, String path, MappedFileCache.Mapping mapping) {
+            this.file = file;
+            this.path = path;
+            this.mapping = mapping;
+            this.lastRegion = null;
+        }
+
+        public void writeBytes(byte[] bytes) throws IOException {
+            headerBytes.write(bytes);
+        }
+
+        public void writeRegion(long position, long count) {
+            queueHeaderBytes();
+            if (file == null) {
+                lastRegion = new Outbound(mapping.slice(position, count), mapping);
+            } else {
+                // The disk threads start reading once the region reaches the head of the queue
+                lastRegion = new Outbound(file, position, count,
+                        (diskReader != null) ? diskReader.open(file, path, position, count, onDiskReady) : null);
+            }
+            outbound.add(lastRegion);
+        }
+
+        /**
+         * Defines a method that hands the file or mapping to the last queued region, which releases it once written
+         * @return false if no region was queued, so the caller still owns the file or mapping
+         */
+        boolean finish() {
+            boolean queued = lastRegion != null;
+            if (queued) {
+                lastRegion.releasesResource = true;
+            }
+            start(null, null, null);
+            return queued;
+        }
+    }
+
+    /**
+     * Defines a class for one queued piece of a response: captured bytes, a slice of a mapping, or a file region
+     * The last piece of a body owns the file or mapping it came from and releases it when it is done
+     */
+    private static final class Outbound {
+        private final ByteBuffer bytes;
+        private final FileChannel file;
+        private final DiskReader.Region region;
+        private final MappedFileCache.Mapping mapping;
+        private BufferPool pool;
+        private long position;
+        private final long end;
+        private boolean releasesResource;
+        // Bytes of the region written so far
+        private long sent;
+
+        Outbound(ByteBuffer bytes, BufferPool pool) {
+            this.bytes = bytes;
+            this.file = null;
+            this.region = null;
+            this.mapping = null;
+            this.pool = pool;
+            this.end = 0;
+        }
+
+        Outbound(ByteBuffer bytes, MappedFileCache.Mapping mapping) {
+            this.bytes = bytes;
+            this.file = null;
+            this.region = null;
+            this.mapping = mapping;
+            this.end = 0;
+        }
+
+        Outbound(FileChannel file, long position, long count, DiskReader.Region region) {
+            this.bytes = null;
+            this.file = file;
+            this.region = region;
+            this.mapping = null;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        /**
+         * Defines a method that writes as much of this file region as transferTo reads, or with "-disk_io async" as
+         * much of the chunks read ahead as the socket accepts; over TLS transferTo copies the file through a small
+         * buffer, as the bytes must be encrypted
+         * @param channel is the client connection
+         * @return true once the whole region has been written, else false
+         * @throws IOException if writing fails, reading the file failed or the file shrank while being sent
+         */
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (region != null) {
+                ByteBuffer chunk;
+                while ((chunk = region.poll()) != null) {
+                    sent += channel.write(chunk);
+                    if (chunk.hasRemaining()) return false;
+                }
+                return region.isFinished();
+            }
+            while (position < end) {
+                long count = file.transferTo(position, end - position, channel);
+                if (count == 0) {
+                    if (file.size() <= position) throw new IOException("File shrank while being sent");
+                    return false;
+                }
+                position += count;
+                this.sent += count;
+            }
+            return true;
+        }
+
+        /**
+         * Defines a method that checks whether writing stopped because the next chunk is still being read
+         * @return true if the region waits for the disk, else false
+         */
+        boolean isWaitingForDisk() {
+            return region != null && region.isWaiting();
+        }
+
+        /**
+         * Defines a method called once this piece is done with, either written or dropped because the
+         * connection closed; captured bytes and chunks read ahead go back to the pool, and the piece owning
+         * the file or mapping releases it exactly once
+         */
+        void close() {
+            if (region != null) {
+                region.close();
+            }
+            if (pool != null) {
+                pool.release(bytes);
+                pool = null;
+            }
+            if (!releasesResource) return;
+            releasesResource = false;
+            if (mapping != null) {
+                mapping.release();
+            }
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Defines a class that owns one selector and serves every connection registered with it
+ * All reads, request handling and writes for those connections happen on this loop's thread
+ */
+public class NioEventLoop implements Runnable {
+    // Upper bound on how long idle connections can outlive their timeout
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final Selector selector;
+    private final ServerContext context;
+    private final Runnable onClosed;
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> diskReady = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * Defines a constructor that opens the selector for this loop
+     * @param context holds the document root and cache passed to each connection
+     * @param onClosed is run once for each connection handed to the loop, when it is closed
+     * @throws IOException if the selector cannot be opened
+     */
+    NioEventLoop(ServerContext context, Runnable onClosed) throws IOException {
+        this.selector = Selector.open();
+        this.context = context;
+        this.onClosed = onClosed;
+    }
+
+    /**
+     * Defines a method that hands a newly accepted connection to this loop
+     * Can be called from any thread, the channel is registered on the loop thread
+     * @param channel is the accepted client connection
+     */
+    void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Defines a method that hands back a connection whose next chunk the disk threads have read
+     * Called from a disk thread; the connection continues writing on the loop thread
+     * @param connection is the connection waiting for the chunk
+     */
+    void diskReady(NioConnection connection) {
+        diskReady.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Defines a method called by a connection of this loop when it closes, which frees its connection slot
+     */
+    void connectionClosed() {
+        onClosed.run();
+    }
+
+    /**
+     * Defines a method that stops the loop and closes its connections
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    /**
+     * Defines the run method that dispatches readiness events until the loop is shut down
+     */
+    public void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                registerNewChannels();
+                resumeDiskReady();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection == null) {
+                        // Left by a connection that failed to open, whose key is cancelled at the next select
+                        continue;
+                    }
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        // A TLS connection may have read more records than it answered, which the selector does not see
+                        while (connection.hasBufferedInput()) {
+                            connection.onReadable();
+                        }
+                    } catch (IOException e) {
+                        // The client reset the connection or the file could not be read mid response
+                        connection.close();
+                    }
+                }
+
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection != null) connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Defines a method that registers the connections queued by the acceptor
+     */
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            SelectionKey key = null;
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, context, this));
+            } catch (ClosedChannelException e) {
+                // The client went away before the loop picked up the connection
+                onClosed.run();
+            } catch (IOException | RuntimeException e) {
+                // The connection could not be set up (ex. the TLS engine failed), so its key must not stay registered
+                if (key != null) key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                onClosed.run();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that continues the connections whose chunk has been read from disk
+     */
+    private void resumeDiskReady() {
+        NioConnection connection;
+        while ((connection = diskReady.poll()) != null) {
+            try {
+                connection.onDiskReady();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that closes connections which stayed idle past their keep-alive timeout,
+     * or which the SlowClientGuard finds too slow
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && (connection.isIdleExpired(now) || connection.isTooSlow(now))) {
+                connection.close();
+            }
+        }
+    }
+}
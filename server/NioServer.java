@@ -0,0 +1,118 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Defines a class that runs the non-blocking engine
+ * One acceptor thread hands new connections round robin to a small set of selector event loops,
+ * so idle keep-alive connections cost a registered channel instead of a blocked thread
+ * With "-acceptors N" there are N listening sockets sharing the port (SO_REUSEPORT), each with its own
+ * acceptor thread feeding its own share of the event loops
+ * At most "-max_connections" connections are open at once across all acceptors, as with the blocking engines
+ */
+public class NioServer {
+    private final int port;
+    private final ServerContext context;
+    private final NioEventLoop[] loops;
+    private final Semaphore connectionSlots;
+
+    /**
+     * Defines a constructor that creates one event loop per configured io thread
+     * @param port is the port the server listens on
+     * @param context holds the document root and the number of io threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioServer(int port, ServerContext context) throws IOException {
+        this.port = port;
+        this.context = context;
+        this.connectionSlots = new Semaphore(context.getConfig().getMaxConnections());
+        this.loops = new NioEventLoop[context.getConfig().getIoThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(context, connectionSlots::release);
+        }
+    }
+
+    /**
+     * Defines a method that starts the event loops and accepts connections until the server stops
+     * @throws IOException if the listening socket cannot be opened
+     * @throws InterruptedException if the accepting thread is interrupted while waiting for a free slot
+     */
+    public void run() throws IOException, InterruptedException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+
+        int shards = context.getConfig().getAcceptors();
+        if (context.getMetrics() != null) context.getMetrics().setShards(shards);
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                listeners.add(Server.openListener(context.getConfig(), port, shards > 1));
+            }
+            for (int shard = 1; shard < shards; shard++) {
+                ServerSocketChannel listener = listeners.get(shard);
+                int index = shard;
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        accept(listener, index, shards);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "nio-acceptor-" + shard);
+                acceptor.start();
+            }
+            accept(listeners.get(0), 0, shards);
+        } finally {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that accepts connections on one listening socket until it is closed
+     * Acceptor i hands its connections round robin to loops i, i + shards, i + 2 * shards, ...
+     * or to every loop if there are fewer loops than acceptors
+     * Once "-max_connections" connections are open the acceptor stops accepting, and new clients wait in the
+     * listen backlog until a loop closes one
+     * @param listener is the listening socket of this acceptor
+     * @param shard is the index of this acceptor
+     * @param shards is the number of acceptors
+     * @throws IOException if accepting fails
+     * @throws InterruptedException if the accepting thread is interrupted while waiting for a free slot
+     */
+    private void accept(ServerSocketChannel listener, int shard, int shards)
+            throws IOException, InterruptedException {
+        ServerMetrics metrics = context.getMetrics();
+        int first = (loops.length >= shards) ? shard : 0;
+        int step = (loops.length >= shards) ? shards : 1;
+
+        // Accepting stays blocking, only the accepted connections are multiplexed
+        int next = first;
+        while (true) {
+            connectionSlots.acquire();
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                connectionSlots.release();
+                throw e;
+            }
+            if (metrics != null) metrics.connectionAccepted(shard);
+            loops[next].register(channel);
+            next += step;
+            if (next >= loops.length) next = first;
+        }
+    }
+}
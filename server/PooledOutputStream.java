@@ -0,0 +1,156 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Defines an output stream that collects bytes in a direct buffer from the BufferPool
+ * With a channel it replaces BufferedOutputStream on a blocking connection: the buffer is written to the
+ * socket when it fills or is flushed, and the kernel reads it in place instead of the JDK first copying a
+ * heap array into a temporary direct buffer
+ * Without a channel it captures bytes for the nio engine, growing into a larger buffer when needed;
+ * take() hands the filled buffer to the write queue, which releases it once it has been sent
+ */
+public class PooledOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private final WritableByteChannel channel;
+    private final int bufferSize;
+    private ByteBuffer buffer;
+
+    /**
+     * Defines a constructor for a stream over a pool
+     * @param pool hands out the buffers
+     * @param channel is the connection flushed bytes are written to, or null to capture them for take()
+     * @param bufferSize is the size of the first buffer; with a channel the buffer never grows past it
+     */
+    public PooledOutputStream(BufferPool pool, WritableByteChannel channel, int bufferSize) {
+        this.pool = pool;
+        this.channel = channel;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureRoom(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, ensureRoom(length));
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Defines a method that copies the remaining bytes of a buffer (ex. a slice of a mapped file) into the stream
+     * @param source is read from its position to its limit
+     * @throws IOException if a full buffer cannot be written to the channel
+     */
+    public void write(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            int count = Math.min(source.remaining(), ensureRoom(source.remaining()));
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            buffer.put(source);
+            source.limit(limit);
+        }
+    }
+
+    /**
+     * Defines a method that reads a region of a file straight into the stream, with no array in between
+     * @param file is the open file
+     * @param position is the offset of the first byte
+     * @param count is the number of bytes
+     * @throws IOException if reading or writing fails, or the file shrank
+     */
+    public void writeFrom(FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            int room = ensureRoom((int) Math.min(end - position, Integer.MAX_VALUE));
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + (int) Math.min(room, end - position));
+            int read = file.read(buffer, position);
+            buffer.limit(limit);
+            if (read <= 0) {
+                throw new EOFException("File shrank while being sent");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Defines a method that writes buffered bytes to the channel; without a channel it does nothing
+     * @throws IOException if writing to the client fails
+     */
+    @Override
+    public void flush() throws IOException {
+        if (channel == null || buffer == null || buffer.position() == 0) return;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Defines a method to get the number of bytes collected and not yet flushed or taken
+     * @return the byte count
+     */
+    public int size() {
+        return (buffer == null) ? 0 : buffer.position();
+    }
+
+    /**
+     * Defines a method that hands over the captured bytes; the caller releases the buffer to the pool
+     * once it is done with it, and the next write starts a new buffer
+     * @return the buffer flipped for reading, or null if nothing was captured
+     */
+    public ByteBuffer take() {
+        if (size() == 0) return null;
+        ByteBuffer taken = buffer;
+        buffer = null;
+        taken.flip();
+        return taken;
+    }
+
+    /**
+     * Defines a method that gives the buffer back to the pool without writing what it holds
+     * The channel is left open; a later write starts a new buffer
+     */
+    @Override
+    public void close() {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    /**
+     * Defines a method that makes room for more bytes: a buffer is acquired if there is none, a full buffer
+     * is flushed to the channel, and without a channel the bytes move to a buffer large enough for them
+     * @param wanted is the number of bytes about to be written
+     * @return the room now available, at least one byte
+     */
+    private int ensureRoom(int wanted) throws IOException {
+        if (buffer == null) {
+            buffer = pool.acquire((channel != null) ? bufferSize : Math.max(bufferSize, wanted));
+        } else if (!buffer.hasRemaining() || (channel == null && buffer.remaining() < wanted)) {
+            if (channel != null) {
+                flush();
+            } else {
+                ByteBuffer larger = pool.acquire((int) Math.min(Integer.MAX_VALUE, (long) buffer.position() + wanted));
+                buffer.flip();
+                larger.put(buffer);
+                pool.release(buffer);
+                buffer = larger;
+            }
+        }
+        return buffer.remaining();
+    }
+}
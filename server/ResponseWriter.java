@@ -1,13 +1,28 @@
 package server;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Defines a class that generates and formats the response that will be sent to the client
  */
 public final class ResponseWriter {
-    private static final String END_LINE = "\r\n";
+    // Bodies below this size are copied through the output buffer instead of transferTo
+    private static final int TRANSFER_THRESHOLD = 8192;
+    private static final byte[] END_LINE = HttpUtil.END_LINE.getBytes(StandardCharsets.US_ASCII);
+
+    // Each thread reuses one encoder, so building a header does not allocate
+    private static final ThreadLocal<HeaderEncoder> HEADER_ENCODER = ThreadLocal.withInitial(HeaderEncoder::new);
+    // ...and one list of the pieces of a mapped response
+    private static final ThreadLocal<MappedPieces> MAPPED_PIECES = ThreadLocal.withInitial(MappedPieces::new);
 
     private ResponseWriter() {
     }
@@ -18,18 +33,13 @@ public final class ResponseWriter {
      * @throws IOException in case of failure while writing header
      */
     public static void writeHeaders(HttpResponse response) throws IOException {
-        String header = HttpUtil.constructHeader(
-            response.getStatusCode(),
-            response.getStatusDescription(),
-            response.getVersion(),
-            response.getContentType(),
-            response.getContentLength()
-        );
-
-        OutputStream output = response.getOutput();
-        output.write(header.getBytes());
-        output.write(HttpUtil.END_LINE.getBytes());
-        output.flush();
+        // The header already ends with the blank line, so nothing else may follow it on a persistent connection
+        // Flushing is left to the connection handler so pipelined responses can share a packet
+        response.markHeaderStart();
+        HeaderEncoder header = HEADER_ENCODER.get().encode(response);
+        header.writeTo(response.getOutput());
+        response.addBytesWritten(header.getLength());
+        response.markBodyStart();
     }
 
     /**
@@ -63,6 +73,25 @@ public final class ResponseWriter {
         sendStatusNoBody(response, 403, "Forbidden");
     }
 
+    /**
+     * Defines a method that is called when the client's cached copy of the resource is still current
+     * The response repeats the validators (ETag, Last-Modified) already set on it and has no body
+     * @param response is the HTTP response that needs to get populated
+     * @throws IOException if the send doesn't work
+     */
+    public static void sendNotModified(HttpResponse response) throws IOException {
+        sendStatusNoBody(response, 304, "Not Modified");
+    }
+
+    /**
+     * Defines a method that is called when none of the requested ranges overlaps the resource
+     * @param response is the HTTP response that needs to get populated, with its resource length set
+     * @throws IOException if the send doesn't work
+     */
+    public static void sendRangeNotSatisfiable(HttpResponse response) throws IOException {
+        sendStatusNoBody(response, 416, "Range Not Satisfiable");
+    }
+
     /**
      * Defines a method that is called when the HTTP request is malformed or incorrect
      * @param output writes the response back to the client
@@ -71,17 +100,37 @@ public final class ResponseWriter {
     public static void sendBadRequest(OutputStream output) throws IOException {
         int statusCode = 400;
 
-        String header = HttpUtil.constructHeader(
+        HEADER_ENCODER.get().encode(
             statusCode,
             "Bad Request",
             "HTTP/1.1",
             null,
-            0
-        ) + END_LINE;
+            0,
+            false
+        ).writeTo(output);
+        output.flush();
+    }
+
+    /**
+     * Defines a method that is called when the request line or header block is larger than the server accepts
+     * The connection is closed after it, since the rest of the header was never read
+     * @param output writes the response back to the client
+     * @throws IOException if the send doesn't work
+     */
+    public static void sendHeaderTooLarge(OutputStream output) throws IOException {
+        HEADER_ENCODER.get().encode(431, "Request Header Fields Too Large", "HTTP/1.1", null, 0, false)
+                .writeTo(output);
+        output.flush();
+    }
 
-        // StandardCharsets.UTF_8 converts UTF encoded characters to plain text
-        output.write(header.getBytes(StandardCharsets.UTF_8));
-        output.write(END_LINE.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Defines a method that is called when the server is too busy to take the connection
+     * @param output writes the response back to the client
+     * @param retryAfterSeconds tells the client how long to wait before trying again
+     * @throws IOException if the send doesn't work
+     */
+    public static void sendServiceUnavailable(OutputStream output, int retryAfterSeconds) throws IOException {
+        HEADER_ENCODER.get().encodeServiceUnavailable(retryAfterSeconds).writeTo(output);
         output.flush();
     }
 
@@ -95,74 +144,265 @@ public final class ResponseWriter {
         byte[] htmlbodyBytes = "<html<body><h1>500 Internal Server Error</h1></body></html>"
                 .getBytes(StandardCharsets.UTF_8);
 
-        String header = HttpUtil.constructHeader(
+        HEADER_ENCODER.get().encode(
                 statusCode,
                 "Internal Server Error",
                 "HTTP/1.1",
                 "text/html",
-                htmlbodyBytes.length
-        ) + END_LINE;
-
-        output.write(header.getBytes(StandardCharsets.UTF_8));
-        output.write(END_LINE.getBytes(StandardCharsets.UTF_8));
+                htmlbodyBytes.length,
+                false
+        ).writeTo(output);
         output.write(htmlbodyBytes);
         output.flush();
     }
 
     /**
-     * Defines a method that writes the body of HTTP response if the resource is text
-     * @param res is the HTTP response that will get populated
+     * Defines an interface for whatever sends a response body, which is made of bytes built in memory
+     * (multipart boundaries) and regions of the resource
+     */
+    public interface BodySink {
+
+        /**
+         * Defines a method that sends bytes built in memory
+         * @param bytes are the bytes to send
+         * @throws IOException if sending fails
+         */
+        void writeBytes(byte[] bytes) throws IOException;
+
+        /**
+         * Defines a method that sends a region of the resource
+         * @param position is the offset of the first byte in the resource
+         * @param count is the number of bytes
+         * @throws IOException if sending fails
+         */
+        void writeRegion(long position, long count) throws IOException;
+    }
+
+    /**
+     * Defines a method that walks the body of a response in the order it is sent
+     * A full response is one region, a single range is one region, and several ranges are
+     * multipart/byteranges parts, each a part header, a region and a line break, followed by the closing boundary
+     * @param response is the HTTP response being sent
+     * @param sink receives each piece of the body
+     * @throws IOException if the sink fails
+     */
+    public static void writeBodyParts(HttpResponse response, BodySink sink) throws IOException {
+        List<ByteRange> ranges = response.getRanges();
+        if (ranges == null) {
+            sink.writeRegion(0, response.getContentLength());
+            return;
+        }
+        if (ranges.size() == 1) {
+            sink.writeRegion(ranges.get(0).getStart(), ranges.get(0).getLength());
+            return;
+        }
+
+        for (ByteRange range : ranges) {
+            sink.writeBytes(range.partHeader(response.getContentType(), response.getResourceLength()));
+            sink.writeRegion(range.getStart(), range.getLength());
+            sink.writeBytes(END_LINE);
+        }
+        sink.writeBytes(ByteRange.closingBoundary());
+    }
+
+    /**
+     * Defines a method that writes the body of HTTP response, from the content cache or straight from the file
+     * Text and binary resources are both sent byte for byte, so the body always matches the Content-Length
+     * Large regions are handed to FileChannel.transferTo, which lets the kernel copy from disk to socket (sendfile),
+     * or with "-disk_io async" read ahead on the disk threads while earlier chunks are written;
+     * every region is read at its own position, so ranges never read and discard the bytes before them
+     * @param response is the HTTP response that will get populated
+     * @throws IOException if the file cannot be read or the client disconnects
      */
-    public static void writeText(HttpResponse res) {
-        String path = res.getFilePath();
+    public static void writeBody(HttpResponse response) throws IOException {
+        OutputStream output = response.getOutput();
+
+        byte[] cachedBody = response.getCachedBody();
+        if (cachedBody != null && response.getRanges() == null) {
+            output.write(cachedBody, 0, (int) response.getContentLength());
+            return;
+        }
+        if (cachedBody != null) {
+            writeBodyParts(response, new BodySink() {
+                public void writeBytes(byte[] bytes) throws IOException {
+                    output.write(bytes);
+                }
+
+                public void writeRegion(long position, long count) throws IOException {
+                    output.write(cachedBody, (int) position, (int) count);
+                }
+            });
+            return;
+        }
+
+        String path = response.getFilePath();
         if (path == null) return;
 
-        BufferedReader reader = null;
-        OutputStreamWriter writer = null;
+        WritableByteChannel socketChannel = response.getChannel();
+        DiskReader diskReader = response.getDiskReader();
 
-        // BufferedReader wraps the input stream in a buffer which is faster than reading character by character
-        try { reader = new BufferedReader(new InputStreamReader
-            (new FileInputStream(path), StandardCharsets.UTF_8));
+        // Only the file is closed here, closing the socket stream would end a persistent connection
+        try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            writeBodyParts(response, new BodySink() {
+                public void writeBytes(byte[] bytes) throws IOException {
+                    output.write(bytes);
+                }
 
-             writer = new OutputStreamWriter(res.getOutput(), StandardCharsets.UTF_8);
+                public void writeRegion(long position, long count) throws IOException {
+                    if (count >= TRANSFER_THRESHOLD && diskReader != null) {
+                        readAheadRegion(diskReader.open(file, path, position, count, null), socketChannel, output);
+                    } else if (socketChannel == null || count < TRANSFER_THRESHOLD) {
+                        // Small regions join the header in the output buffer so the whole response is one write
+                        copyRegion(file, position, count, output);
+                    } else {
+                        // Anything buffered (this header and earlier pipelined responses) must reach the socket first
+                        output.flush();
+                        transferRegion(file, position, count, socketChannel);
+                    }
+                }
+            });
+        }
+    }
 
-            
-            char[] buffer = new char[8192];
-            int count;
+    /**
+     * Defines a method that writes a response whose body comes from a memory mapping
+     * The header and every body piece are handed to the socket in one gathering write,
+     * with the body bytes read straight from the mapping
+     * @param response is the HTTP response being sent
+     * @param mapping is the retained mapping of the file
+     * @throws IOException if the client disconnects
+     */
+    private static void writeMapped(HttpResponse response, MappedFileCache.Mapping mapping) throws IOException {
+        response.markHeaderStart();
+        HeaderEncoder header = HEADER_ENCODER.get().encode(response);
+        response.addBytesWritten(header.getLength() + response.getContentLength());
+        response.markBodyStart();
+        MappedPieces pieces = MAPPED_PIECES.get();
+        pieces.start(mapping);
+        try {
+            pieces.add(ByteBuffer.wrap(header.getBuffer(), 0, header.getLength()));
+            writeBodyParts(response, pieces);
 
-            // Reader will read the contents of the buffer (8192 lines at a time)
-            // Until there are no more lines left (hence the -1)
-            while ((count = reader.read(buffer)) != -1) {
+            OutputStream output = response.getOutput();
+            WritableByteChannel socketChannel = response.getChannel();
+            if (socketChannel instanceof GatheringByteChannel) {
+                // Anything buffered (earlier pipelined responses) must reach the socket first
+                output.flush();
+                ByteBuffer last = pieces.buffers[pieces.count - 1];
+                while (last.hasRemaining()) {
+                    ((GatheringByteChannel) socketChannel).write(pieces.buffers, 0, pieces.count);
+                }
+                return;
+            }
 
-                // Writer will write the contents of the buffer "count" lines at a time
-                writer.write(buffer, 0, count);
+            // Without a channel the pieces are copied into the output stream
+            for (int i = 0; i < pieces.count; i++) {
+                copyBuffer(pieces.buffers[i], output);
             }
+        } finally {
+            pieces.clear();
+        }
+    }
 
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Defines a method that copies the remaining bytes of a buffer into an output stream
+     * A pooled stream takes the buffer directly; any other stream is fed through a byte array
+     * @param piece is read from its position to its limit
+     * @param output is the response output
+     * @throws IOException if writing fails
+     */
+    private static void copyBuffer(ByteBuffer piece, OutputStream output) throws IOException {
+        if (output instanceof PooledOutputStream) {
+            ((PooledOutputStream) output).write(piece);
+            return;
+        }
+        byte[] chunk = new byte[Math.min(TRANSFER_THRESHOLD, piece.remaining())];
+        while (piece.hasRemaining()) {
+            int count = Math.min(chunk.length, piece.remaining());
+            piece.get(chunk, 0, count);
+            output.write(chunk, 0, count);
         }
     }
 
     /**
-     * Defines a method that writes the body of HTTP response if the resource is binary
-     * @param response is the HTTP response that will get populated
+     * Defines a method that sends a region of a file to the socket with transferTo
+     * @param file is the open file
+     * @param position is the offset of the first byte
+     * @param count is the number of bytes
+     * @param socketChannel is the client connection
+     * @throws IOException if sending fails or the file shrank
      */
-    public static void writeBinary(HttpResponse response) {
-        String path = response.getFilePath();
-        if (path == null) return;
+    private static void transferRegion(FileChannel file, long position, long count, WritableByteChannel socketChannel)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            // A guarded socket hands the transfer to the socket itself, or the kernel would not use sendfile
+            long sent = (socketChannel instanceof SlowClientGuard.GuardedChannel)
+                    ? ((SlowClientGuard.GuardedChannel) socketChannel).transferFrom(file, position, end - position)
+                    : file.transferTo(position, end - position, socketChannel);
+            if (sent <= 0) {
+                throw new EOFException("File shrank while being sent");
+            }
+            position += sent;
+        }
+    }
 
-        try (InputStream input = new BufferedInputStream(new FileInputStream(path));
-             OutputStream output = new BufferedOutputStream(response.getOutput())) {
+    /**
+     * Defines a method that writes a region read ahead by the disk threads, chunk by chunk as each is read
+     * With a channel the chunks are written to the socket directly, otherwise they are copied into the output
+     * @param region is the region, closed here whether or not it was sent completely
+     * @param socketChannel is the client connection, or null
+     * @param output is the buffered socket output
+     * @throws IOException if reading or writing fails, or the file shrank
+     */
+    private static void readAheadRegion(DiskReader.Region region, WritableByteChannel socketChannel,
+                                        OutputStream output) throws IOException {
+        try {
+            if (socketChannel != null) {
+                // Anything buffered (this header and earlier pipelined responses) must reach the socket first
+                output.flush();
+            }
+            ByteBuffer chunk;
+            while ((chunk = region.next()) != null) {
+                if (socketChannel == null) {
+                    copyBuffer(chunk, output);
+                    continue;
+                }
+                while (chunk.hasRemaining()) {
+                    socketChannel.write(chunk);
+                }
+            }
+        } finally {
+            region.close();
+        }
+    }
 
-            byte[] buffer = new byte[8192];
-            int count;
-            while ((count = input.read(buffer)) != -1) {
-                output.write(buffer, 0, count);
+    /**
+     * Defines a method that copies a region of a file into the response output through a byte buffer
+     * @param file is the open file
+     * @param position is the offset of the first byte
+     * @param count is the number of bytes
+     * @param output is the buffered socket output
+     * @throws IOException if reading or writing fails
+     */
+    private static void copyRegion(FileChannel file, long position, long count, OutputStream output)
+            throws IOException {
+        if (output instanceof PooledOutputStream) {
+            // The file is read straight into the output buffer
+            ((PooledOutputStream) output).writeFrom(file, position, count);
+            return;
+        }
+        byte[] buffer = new byte[(int) Math.min(count, TRANSFER_THRESHOLD)];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long end = position + count;
+        while (position < end) {
+            view.clear().limit((int) Math.min(buffer.length, end - position));
+            int read = file.read(view, position);
+            if (read <= 0) {
+                throw new EOFException("File shrank while being sent");
             }
-            output.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            output.write(buffer, 0, read);
+            position += read;
         }
     }
 
@@ -172,26 +412,65 @@ public final class ResponseWriter {
      * @throws IOException if the send doesn't work
      */
     public static void writeSuccessResponse(HttpResponse response) throws IOException {
-        String header = HttpUtil.constructHeader(
-                response.getStatusCode(),
-                response.getStatusDescription(),
-                response.getVersion(),
-                response.getContentType(),
-                response.getContentLength()
-        );
+        MappedFileCache.Mapping mapping = response.getMapping();
+        if (mapping != null && !response.isBodyDeferred()) {
+            try {
+                writeMapped(response, mapping);
+                response.markBodyEnd();
+            } finally {
+                mapping.release();
+            }
+            return;
+        }
 
-        OutputStream output = response.getOutput();
-        output.write(header.getBytes(StandardCharsets.UTF_8));
-        output.flush();
+        writeHeaders(response);
 
-        if (response.getContentLength() == 0) return; 
+        if (response.getContentLength() == 0) return;
+        response.addBytesWritten(response.getContentLength());
 
-        // Call the appropriate method depending on whether the media type is text or binary
-        if (response.isText()) {
-            writeText(response);
-        } else {
-            writeBinary(response);
+        // Cached bodies are written straight into the output buffer, even when the caller would stream the file
+        if (response.isBodyDeferred() && response.getCachedBody() == null) {
+            response.markBodyEnd();
+            return;
         }
+
+        writeBody(response);
+        response.markBodyEnd();
     }
 
+
+    /**
+     * Defines a class that collects the pieces of a mapped response for one gathering write
+     * Body bytes are slices of the mapping and multipart boundaries are wrapped as they are
+     */
+    private static final class MappedPieces implements BodySink {
+        private ByteBuffer[] buffers = new ByteBuffer[8];
+        private int count;
+        private MappedFileCache.Mapping mapping;
+
+        void start(MappedFileCache.Mapping mapping) {
+            this.mapping = mapping;
+        }
+
+        void add(ByteBuffer piece) {
+            if (count == buffers.length) {
+                buffers = Arrays.copyOf(buffers, count * 2);
+            }
+            buffers[count++] = piece;
+        }
+
+        public void writeBytes(byte[] bytes) {
+            add(ByteBuffer.wrap(bytes));
+        }
+
+        public void writeRegion(long position, long count) {
+            add(mapping.slice(position, count));
+        }
+
+        void clear() {
+            Arrays.fill(buffers, 0, count, null);
+            count = 0;
+            mapping = null;
+        }
+    }
 }
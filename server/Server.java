@@ -1,36 +1,356 @@
 package server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.IntFunction;
 
 /**
  * Defines a class that opens a socket to accept incoming requests from a client machine
  * A thread pool is created to manage all the threads 
+ * Connections wait for a pool thread in a bounded queue ("-pool_size", "-queue_capacity"); when it is full
+ * the connection is answered with 503 and a Retry-After header right away instead of piling up
+ * New connections of the threads engine wait in an AcceptFilter until their first request header has arrived,
+ * so clients that connect and send nothing (or send it byte by byte) never take a pool thread
+ * "-acceptors N" opens N listening sockets on the port with SO_REUSEPORT, each with its own acceptor thread
+ * and its own share of the pool, so the kernel spreads a burst of new connections across cores
+ * Passing "-engine nio" runs the selector based engine (NioServer) instead of the thread pool,
+ * and "-engine virtual" runs each ThreadHandler on its own virtual thread (Java 21 or newer)
  */
 public class Server {
-    private static final int PORT = 8888;
-    private static final int POOL_SIZE = 30; // Arbitrary size
-
     /**
      * Defines the main method which starts execution of the 
      * @param args
      */
     public static void main(String[] args) {
-        Socket acceptedSocket = null;
-        ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE);
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        try {
+            ServerContext context = new ServerContext(config);
+            startStatsReport(context);
+            if (context.getMetrics() != null) {
+                context.getMetrics().registerMBean();
+            }
+            if (context.getAccessLog() != null) {
+                // Entries still in the ring are written out when the server is stopped
+                Runtime.getRuntime().addShutdownHook(new Thread(context.getAccessLog()::close, "access-log-close"));
+            }
 
-        try (ServerSocket socket = new ServerSocket(PORT)){
-            while (true) {
-                acceptedSocket = socket.accept();
-                executor.execute(new ThreadHandler(acceptedSocket, args));
+            switch (config.getEngine()) {
+                case "threads":
+                    int shards = config.getAcceptors();
+                    int poolSize = (config.getPoolSize() + shards - 1) / shards;
+                    int queueCapacity = (config.getQueueCapacity() + shards - 1) / shards;
+                    context.getKeepAlivePolicy().setCapacity(poolSize * shards);
+                    runBlocking(context, shard -> newBoundedPool(poolSize, queueCapacity),
+                                context.isAcceptFilterEnabled());
+                    break;
+                case "virtual":
+                    // A virtual thread waiting for a header costs little, so connections go straight to their thread
+                    runBlocking(context, shard -> newVirtualThreadExecutor(), false);
+                    break;
+                case "nio":
+                    new NioServer(config.getPort(), context).run();
+                    break;
+                default:
+                    System.err.println("Unknown engine " + config.getEngine() + ", expected threads, virtual or nio");
             }
+        } catch (UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Defines a method that runs one acceptor per listening socket, each handing its connections to its own executor
+     * The first acceptor runs on the calling thread
+     * @param context holds the document root and shared components passed to each ThreadHandler
+     * @param executors creates the executor of each acceptor, either a fixed thread pool or one virtual thread per task
+     * @param acceptFilter is true to give each acceptor an AcceptFilter, so connections only reach the executor
+     *                     once their first request header has arrived
+     * @throws IOException if a listening socket cannot be opened
+     * @throws InterruptedException if the accepting thread is interrupted while waiting for a free slot
+     */
+    private static void runBlocking(ServerContext context, IntFunction<ExecutorService> executors,
+                                    boolean acceptFilter) throws IOException, InterruptedException {
+        ServerConfig config = context.getConfig();
+        int shards = config.getAcceptors();
+        Semaphore connectionSlots = new Semaphore(config.getMaxConnections());
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        List<ExecutorService> pools = new ArrayList<>();
+        List<AcceptFilter> filters = new ArrayList<>();
+        List<Thread> filterThreads = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                listeners.add(openListener(config, config.getPort(), shards > 1));
+                ExecutorService executor = executors.apply(shard);
+                pools.add(executor);
+                if (acceptFilter) {
+                    AcceptFilter filter = new AcceptFilter(context, (channel, parser, result) -> dispatch(
+                            context, channel.socket(), new ThreadHandler(channel.socket(), context, parser, result),
+                            executor, connectionSlots), connectionSlots::release);
+                    Thread filterThread = new Thread(filter, "accept-filter-" + shard);
+                    filterThread.setDaemon(true);
+                    filterThread.start();
+                    filters.add(filter);
+                    filterThreads.add(filterThread);
+                }
+            }
+            if (context.getMetrics() != null) {
+                context.getMetrics().setShards(shards);
+                context.getMetrics().setQueueDepth(() -> queueDepth(pools));
+            }
+            context.getKeepAlivePolicy().setWaiting(() -> queueDepth(pools));
+
+            for (int shard = 1; shard < shards; shard++) {
+                ServerSocketChannel listener = listeners.get(shard);
+                ExecutorService executor = pools.get(shard);
+                AcceptFilter filter = acceptFilter ? filters.get(shard) : null;
+                int index = shard;
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        acceptBlocking(context, listener, index, executor, filter, connectionSlots);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "acceptor-" + shard);
+                acceptor.start();
+            }
+            acceptBlocking(context, listeners.get(0), 0, pools.get(0), acceptFilter ? filters.get(0) : null,
+                           connectionSlots);
         } finally {
-            executor.shutdown();
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+            for (Thread filterThread : filterThreads) {
+                filterThread.interrupt();
+            }
+            for (ExecutorService executor : pools) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Defines a method that hands every connection accepted on one listening socket to an executor
+     * running blocking ThreadHandlers
+     * At most "-max_connections" connections are open at once across all acceptors; once the cap is reached
+     * the server stops accepting and new clients wait in the listen backlog
+     * With an accept filter, connections wait there for their first request header instead, holding their slot
+     * Sockets are accepted through a blocking channel so ThreadHandler can send file bodies with transferTo
+     * @param context holds the document root and shared components passed to each ThreadHandler
+     * @param listener is the listening socket of this acceptor
+     * @param shard is the index of this acceptor
+     * @param executor runs the handlers of this acceptor
+     * @param filter holds connections until their header has arrived, or null to hand them to the executor at once
+     * @param connectionSlots limits the open connections
+     * @throws IOException if accepting fails
+     * @throws InterruptedException if the accepting thread is interrupted while waiting for a free slot
+     */
+    private static void acceptBlocking(ServerContext context, ServerSocketChannel listener, int shard,
+                                       ExecutorService executor, AcceptFilter filter, Semaphore connectionSlots)
+            throws IOException, InterruptedException {
+        ServerMetrics metrics = context.getMetrics();
+        while (true) {
+            connectionSlots.acquire();
+            SocketChannel channel = listener.accept();
+            if (metrics != null) metrics.connectionAccepted(shard);
+            if (filter != null) {
+                filter.add(channel);
+                continue;
+            }
+            Socket acceptedSocket = channel.socket();
+            dispatch(context, acceptedSocket, new ThreadHandler(acceptedSocket, context), executor, connectionSlots);
+        }
+    }
+
+    /**
+     * Defines a method that hands a connection to an executor, which frees its slot once the handler ends
+     * If the executor refuses the connection because its queue is full, the client gets a 503 at once
+     * @param context holds the metrics and what shed needs
+     * @param acceptedSocket is the connection
+     * @param handler serves the connection
+     * @param executor runs the handler
+     * @param connectionSlots limits the open connections
+     */
+    private static void dispatch(ServerContext context, Socket acceptedSocket, ThreadHandler handler,
+                                 ExecutorService executor, Semaphore connectionSlots) {
+        ServerMetrics metrics = context.getMetrics();
+        long queuedNanos = (metrics != null) ? System.nanoTime() : 0;
+        try {
+            executor.execute(() -> {
+                try {
+                    if (metrics != null) metrics.recordQueueWait(System.nanoTime() - queuedNanos);
+                    handler.run();
+                } finally {
+                    connectionSlots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            connectionSlots.release();
+            handler.abandon();
+            shed(acceptedSocket, context);
+        }
+    }
+
+    /**
+     * Defines a method that opens a listening socket on the port
+     * @param config holds the backlog
+     * @param port is the port to listen on
+     * @param reusePort is true to set SO_REUSEPORT so several sockets can share the port
+     * @return the bound socket
+     * @throws IOException if the socket cannot be opened or bound
+     * @throws UnsupportedOperationException if SO_REUSEPORT is needed but the platform does not have it
+     */
+    static ServerSocketChannel openListener(ServerConfig config, int port, boolean reusePort) throws IOException {
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                if (!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("-acceptors needs SO_REUSEPORT, which "
+                                                            + System.getProperty("os.name") + " does not support");
+                }
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            listener.bind(new InetSocketAddress(port), config.getBacklog());
+            return listener;
+        } catch (IOException | RuntimeException e) {
+            listener.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Defines a method that adds up the connections waiting for a thread in every pool
+     */
+    private static int queueDepth(List<ExecutorService> pools) {
+        int depth = 0;
+        for (ExecutorService executor : pools) {
+            if (executor instanceof ThreadPoolExecutor) {
+                depth += ((ThreadPoolExecutor) executor).getQueue().size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Defines a method that turns a connection away with 503 on the accepting thread
+     * The response is small enough to fit the socket send buffer, so writing it does not block accepting
+     * Request bytes that already arrived are read off first so closing does not reset the connection
+     * before the client has read the response
+     * Over TLS the connection is only closed, since a response would need a handshake on the accepting thread
+     * @param acceptedSocket is the connection to turn away
+     * @param context holds the metrics, access log and Retry-After delay
+     */
+    private static void shed(Socket acceptedSocket, ServerContext context) {
+        try (Socket socket = acceptedSocket) {
+            if (context.getTlsContext() == null) {
+                ResponseWriter.sendServiceUnavailable(socket.getOutputStream(), context.getConfig().getRetryAfter());
+                socket.shutdownOutput();
+                InputStream input = socket.getInputStream();
+                int available = input.available();
+                if (available > 0) input.skip(available);
+            }
+        } catch (IOException ignored) {
+            // The client is gone already
+        }
+        if (context.getMetrics() != null) context.getMetrics().recordShed();
+        if (context.getAccessLog() != null) {
+            context.getAccessLog().log(HttpUtil.remoteAddress(acceptedSocket), null, 503, 0);
+        }
+    }
+
+    /**
+     * Defines a method that creates the pool of the threads engine
+     * Unlike Executors.newFixedThreadPool, the queue is bounded and a full queue rejects the task
+     * @param poolSize is the number of threads
+     * @param queueCapacity is the number of connections that may wait for a thread
+     * @return the pool
+     */
+    private static ExecutorService newBoundedPool(int poolSize, int queueCapacity) {
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Defines a method that prints the cache statistics every "-stats_interval" seconds
+     * Nothing is printed if the option is not given
+     * @param context holds the caches
+     */
+    private static void startStatsReport(ServerContext context) {
+        int intervalSeconds = context.getConfig().getInt("stats_interval", 0);
+        ContentCache cache = context.getContentCache();
+        ContentCache compressedCache = context.getCompressedCache();
+        MappedFileCache mappedFileCache = context.getMappedFileCache();
+        FileMetadataCache metadataCache = context.getMetadataCache();
+        DocumentArchive archive = context.getArchive();
+        AccessLog accessLog = context.getAccessLog();
+        KeepAlivePolicy keepAlivePolicy = context.getKeepAlivePolicy();
+        BufferPool bufferPool = context.getBufferPool();
+        TlsContext tlsContext = context.getTlsContext();
+        DiskReader diskReader = context.getDiskReader();
+        SlowClientGuard slowClientGuard = context.getSlowClientGuard();
+        if (intervalSeconds <= 0) return;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            if (cache != null) System.out.println("content cache: " + cache.getStats());
+            if (compressedCache != null) System.out.println("compressed cache: " + compressedCache.getStats());
+            if (mappedFileCache != null) System.out.println("mapped files: " + mappedFileCache.getStats());
+            if (archive != null) System.out.println("archive: " + archive.getStats());
+            if (metadataCache != null) System.out.println("stat cache: " + metadataCache.getStats());
+            if (accessLog != null) System.out.println("access log: " + accessLog.getStats());
+            System.out.println("keep-alive: " + keepAlivePolicy.getStats());
+            System.out.println("buffer pool: " + bufferPool.getStats());
+            if (tlsContext != null) System.out.println("tls: " + tlsContext.getStats());
+            if (diskReader != null) System.out.println("disk reads: " + diskReader.getStats());
+            System.out.println("dropped clients: " + slowClientGuard.getStats());
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Defines a method that creates an executor starting one virtual thread per connection
+     * The factory is looked up at runtime so the server still compiles and runs on older Java versions
+     * @return the virtual thread executor
+     * @throws UnsupportedOperationException if the running Java version has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("The virtual engine needs Java 21 or newer, running "
+                                                    + Runtime.version());
         }
     }
 }
@@ -0,0 +1,186 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Defines a class that holds the command line options the server was started with
+ * Options are passed as "-name value" pairs (ex. -document_root files -engine nio)
+ */
+public class ServerConfig {
+    private final Map<String, String> options;
+
+    /**
+     * Defines a constructor that stores already parsed options
+     * @param options maps option names (without the leading dash) to their values
+     */
+    private ServerConfig(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Defines a method that parses the command line arguments into a configuration
+     * @param args are the arguments passed to Server.main
+     * @return the parsed configuration
+     * @throws IllegalArgumentException if an option is missing its value
+     */
+    public static ServerConfig parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("-")) continue;
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for option " + args[i]);
+                }
+                options.put(args[i].substring(1), args[++i]);
+            }
+        }
+        return new ServerConfig(options);
+    }
+
+    /**
+     * Defines a method to get a string option
+     * @param name is the option name without the leading dash
+     * @param defaultValue is returned if the option was not given
+     * @return the option value as a String
+     */
+    public String getString(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Defines a method to get a numeric option
+     * @param name is the option name without the leading dash
+     * @param defaultValue is returned if the option was not given
+     * @return the option value as an integer
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option -" + name + " expects a number but got " + value);
+        }
+    }
+
+    /**
+     * Defines a method to get a numeric option that may exceed the integer range (ex. byte sizes)
+     * @param name is the option name without the leading dash
+     * @param defaultValue is returned if the option was not given
+     * @return the option value as a long
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option -" + name + " expects a number but got " + value);
+        }
+    }
+
+    /**
+     * Defines a method to get a fractional option (ex. a ratio)
+     * @param name is the option name without the leading dash
+     * @param defaultValue is returned if the option was not given
+     * @return the option value as a double
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    public double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option -" + name + " expects a number but got " + value);
+        }
+    }
+
+    /**
+     * Defines a method to get the directory files are served from
+     * @return the document root, or the current directory if none was given
+     */
+    public String getDocumentRoot() {
+        return getString("document_root", ".");
+    }
+
+    /**
+     * Defines a method to get the port the server listens on
+     * @return the configured port, or 8888 if none was given
+     */
+    public int getPort() {
+        return getInt("port", 8888);
+    }
+
+    /**
+     * Defines a method to get the connection engine the server runs
+     * "threads" serves each connection on a pool thread, "virtual" on its own virtual thread,
+     * and "nio" multiplexes connections on event loops
+     * @return the engine name in lower case
+     */
+    public String getEngine() {
+        return getString("engine", "threads").toLowerCase();
+    }
+
+    /**
+     * Defines a method to get the number of event loop threads used by the nio engine
+     * @return the configured count, or one per available core
+     */
+    public int getIoThreads() {
+        return Math.max(1, getInt("io_threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Defines a method to get the number of pool threads the threads engine serves connections on
+     * @return the configured count, or 30 if none was given
+     */
+    public int getPoolSize() {
+        return Math.max(1, getInt("pool_size", 30));
+    }
+
+    /**
+     * Defines a method to get the number of accepted connections that may wait for a pool thread
+     * Connections accepted beyond this are answered with 503 right away
+     * @return the configured capacity, or 100 if none was given
+     */
+    public int getQueueCapacity() {
+        return Math.max(1, getInt("queue_capacity", 100));
+    }
+
+    /**
+     * Defines a method to get the number of listening sockets opened on the port
+     * More than one opens each with SO_REUSEPORT and gives each its own acceptor thread and workers,
+     * so the kernel spreads new connections across them
+     * @return the configured count, or 1 if none was given
+     */
+    public int getAcceptors() {
+        return Math.max(1, getInt("acceptors", 1));
+    }
+
+    /**
+     * Defines a method to get the length of the listen backlog, where connections wait to be accepted
+     * @return the configured length, or 128 if none was given
+     */
+    public int getBacklog() {
+        return Math.max(1, getInt("backlog", 128));
+    }
+
+    /**
+     * Defines a method to get the delay suggested to clients turned away with 503
+     * @return the configured seconds, or 1 if none was given
+     */
+    public int getRetryAfter() {
+        return Math.max(0, getInt("retry_after", 1));
+    }
+
+    /**
+     * Defines a method to get the cap on connections the server serves at once, on every engine
+     * @return the configured cap, or no practical limit if none was given
+     */
+    public int getMaxConnections() {
+        return Math.max(1, getInt("max_connections", Integer.MAX_VALUE));
+    }
+}
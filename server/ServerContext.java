@@ -0,0 +1,268 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Defines a class that holds the configuration and the components shared by every connection
+ * One context is created at startup and handed to whichever engine serves the connections
+ */
+public class ServerContext {
+    private final ServerConfig config;
+    private final ContentCache contentCache;
+    private final ContentCache compressedCache;
+    private final MappedFileCache mappedFileCache;
+    private final FileMetadataCache metadataCache;
+    private final DocumentArchive archive;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final KeepAlivePolicy keepAlivePolicy;
+    private final BufferPool bufferPool;
+    private final DiskReader diskReader;
+    private final TlsContext tlsContext;
+    private final SlowClientGuard slowClientGuard;
+    private final Command command;
+
+    /**
+     * Defines a constructor that builds the shared components from the configuration
+     * @param config holds the command line options
+     * @throws IOException if the access log, the archive or the TLS keystore cannot be opened
+     */
+    public ServerContext(ServerConfig config) throws IOException {
+        this.config = config;
+
+        long cacheBytes = config.getLong("cache_bytes", 64L * 1024 * 1024);
+        this.contentCache = (cacheBytes > 0)
+                ? new ContentCache(cacheBytes, config.getLong("cache_max_file", 1024 * 1024))
+                : null;
+
+        long compressedBytes = config.getLong("gzip_cache_bytes", 16L * 1024 * 1024);
+        this.compressedCache = (compressedBytes > 0)
+                ? new ContentCache(compressedBytes, config.getLong("cache_max_file", 1024 * 1024))
+                : null;
+
+        long mappedBytes = config.getLong("mmap_bytes", 0);
+        this.mappedFileCache = (mappedBytes > 0)
+                ? new MappedFileCache(mappedBytes,
+                                      config.getLong("mmap_min_file", 100L * 1024),
+                                      config.getLong("mmap_max_file", 100L * 1024 * 1024),
+                                      config.getInt("mmap_min_hits", 2))
+                : null;
+
+        String archivePath = config.getString("archive", null);
+        this.archive = (archivePath != null)
+                ? DocumentArchive.open(new File(archivePath),
+                                       !"off".equalsIgnoreCase(config.getString("archive_preload", "on")))
+                : null;
+
+        // The document root is not read while an archive is served, so it is not watched either
+        int statEntries = config.getInt("stat_cache_entries", 10_000);
+        this.metadataCache = (statEntries > 0 && archive == null)
+                ? new FileMetadataCache(config.getDocumentRoot(), statEntries,
+                                        config.getLong("stat_cache_ttl_ms", 2000))
+                : null;
+
+        this.metrics = "off".equalsIgnoreCase(config.getString("metrics", "on"))
+                ? null
+                : new ServerMetrics(config.getInt("metrics_sample", 8));
+
+        // The engine lowers the capacity to what it can really serve at once (ex. the thread pool size)
+        this.keepAlivePolicy = new KeepAlivePolicy(config.getInt("keepalive_ms", 5000),
+                                                   config.getInt("keepalive_min_ms", 1000),
+                                                   config.getInt("keepalive_max_ms", 60_000),
+                                                   config.getDouble("keepalive_reap_at", 0.9),
+                                                   config.getLong("keepalive_reap_idle_ms", 250),
+                                                   Math.min(config.getMaxConnections(), 10_000));
+
+        this.bufferPool = new BufferPool(config.getLong("buffer_pool_bytes", 32L * 1024 * 1024),
+                                         "on".equalsIgnoreCase(config.getString("buffer_leak_detection", "off")));
+
+        // Files are sent with transferTo (sendfile) unless read ahead on disk threads is asked for
+        this.diskReader = !"async".equalsIgnoreCase(config.getString("disk_io", "inline"))
+                ? null
+                : new DiskReader(bufferPool,
+                                 config.getInt("disk_max_reads", 8),
+                                 config.getInt("disk_read_bytes", 256 * 1024),
+                                 config.getInt("disk_read_ahead", 2));
+
+        String keystorePath = config.getString("tls_keystore", null);
+        this.tlsContext = (keystorePath != null)
+                ? new TlsContext(new File(keystorePath),
+                                 config.getString("tls_keystore_password", ""),
+                                 config.getString("tls_keystore_type", "PKCS12"),
+                                 config.getString("tls_protocols", "TLSv1.3,TLSv1.2").trim().split("\\s*,\\s*"),
+                                 config.getInt("tls_session_cache", 20_000),
+                                 config.getInt("tls_session_timeout_s", 24 * 60 * 60),
+                                 config.getInt("tls_reload_s", 10))
+                : null;
+
+        this.slowClientGuard = new SlowClientGuard(config.getLong("first_byte_timeout_ms", 10_000),
+                                                   config.getLong("header_timeout_ms", 20_000),
+                                                   config.getLong("min_send_rate", 1024),
+                                                   config.getLong("send_grace_ms", 10_000),
+                                                   config.getInt("max_header_bytes",
+                                                                 HttpRequestParser.DEFAULT_MAX_HEADER_BYTES),
+                                                   config.getInt("max_header_count",
+                                                                 HttpRequestParser.DEFAULT_MAX_HEADER_COUNT));
+        if (metrics != null) metrics.setSlowClientGuard(slowClientGuard);
+
+        String accessLogPath = config.getString("access_log", null);
+        this.accessLog = (accessLogPath != null)
+                ? new AccessLog(new File(accessLogPath),
+                                !"common".equalsIgnoreCase(config.getString("access_log_format", "combined")),
+                                config.getInt("access_log_buffer", 8192),
+                                "block".equalsIgnoreCase(config.getString("access_log_when_full", "drop")),
+                                config.getLong("access_log_flush_ms", 1000),
+                                config.getLong("access_log_max_bytes", 0),
+                                config.getLong("access_log_rotate_minutes", 0) * 60_000)
+                : null;
+
+        // Built last, from the components above; it keeps no per-request state, so every connection shares it
+        this.command = new GetCommand(this);
+    }
+
+    /**
+     * Defines a method to get the command line options
+     * @return the server configuration
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Defines a method to get the command that answers requests, shared by every connection and thread
+     * @return the GetCommand serving the document root (and the stats path, if metrics are on)
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Defines a method to get the in-memory cache of file bodies
+     * @return the content cache, or null if caching is turned off with "-cache_bytes 0"
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Defines a method to get the cache of gzip and deflate variants of text files
+     * @return the compressed variant cache, or null if dynamic compression is turned off with "-gzip_cache_bytes 0"
+     */
+    public ContentCache getCompressedCache() {
+        return compressedCache;
+    }
+
+    /**
+     * Defines a method to get the tier of memory mapped hot files
+     * @return the mapped file cache, or null unless it is turned on with "-mmap_bytes N"
+     */
+    public MappedFileCache getMappedFileCache() {
+        return mappedFileCache;
+    }
+
+    /**
+     * Defines a method to get the request metrics shared by every connection
+     * @return the metrics, or null if they are turned off with "-metrics off"
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Defines a method to get the reserved path that serves the metrics as JSON
+     * @return the path given with "-stats_path", /_stats by default
+     */
+    public String getStatsPath() {
+        return config.getString("stats_path", "/_stats");
+    }
+
+    /**
+     * Defines a method that checks whether clients may switch to HTTP/2 in cleartext (h2c)
+     * @return false if it is turned off with "-http2 off", else true
+     */
+    public boolean isHttp2Enabled() {
+        return !"off".equalsIgnoreCase(config.getString("http2", "on"));
+    }
+
+    /**
+     * Defines a method to get the number of streams an HTTP/2 client may have open at once
+     * @return the limit given with "-http2_max_streams", 100 by default
+     */
+    public int getHttp2MaxStreams() {
+        return Math.max(1, config.getInt("http2_max_streams", 100));
+    }
+
+    /**
+     * Defines a method to get the access log
+     * @return the access log, or null unless one is configured with "-access_log file"
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Defines a method to get the cache of file metadata by request path
+     * @return the metadata cache, or null if it is turned off with "-stat_cache_entries 0"
+     */
+    public FileMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Defines a method to get the packed document root files are served from
+     * @return the archive, or null unless one is given with "-archive file"
+     */
+    public DocumentArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Defines a method to get the policy that sets keep-alive timeouts and reaps idle connections
+     * @return the keep-alive policy
+     */
+    public KeepAlivePolicy getKeepAlivePolicy() {
+        return keepAlivePolicy;
+    }
+
+    /**
+     * Defines a method to get the pool of direct buffers that responses are written through
+     * @return the buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Defines a method to get the disk threads file bodies are read ahead on
+     * @return the disk reader, or null if the sending thread sends files itself, unless "-disk_io async"
+     */
+    public DiskReader getDiskReader() {
+        return diskReader;
+    }
+
+    /**
+     * Defines a method to get the TLS setup shared by every connection
+     * @return the TLS context, or null unless the port serves HTTPS with "-tls_keystore file"
+     */
+    public TlsContext getTlsContext() {
+        return tlsContext;
+    }
+
+    /**
+     * Defines a method to get the limits slow or oversized clients are dropped by
+     * @return the slow client guard
+     */
+    public SlowClientGuard getSlowClientGuard() {
+        return slowClientGuard;
+    }
+
+    /**
+     * Defines a method that checks whether the threads engine waits for the first request header of a connection
+     * before giving it a pool thread (see AcceptFilter); never over TLS
+     * @return false if it is turned off with "-accept_filter off" or the port serves HTTPS, else true
+     */
+    public boolean isAcceptFilterEnabled() {
+        return tlsContext == null && !"off".equalsIgnoreCase(config.getString("accept_filter", "on"));
+    }
+}
@@ -0,0 +1,416 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Defines a class that measures where the time of each request goes
+ * Every request is split into four stages: parsing the request, looking up the file (stat calls, validators,
+ * caches), building the response header, and writing the body. Each stage, each status code and each content
+ * type has a fixed-bucket latency histogram; connections, queue depth and bytes sent are kept as gauges
+ * The time each connection waits for a pool thread and the connections turned away with 503 are kept too
+ * Everything is recorded with LongAdder so request threads never lock or contend on a shared counter
+ * Counts (requests, bytes, status codes) are exact; latencies are taken from one request in "-metrics_sample N"
+ * (8 by default), since reading the clock for every stage costs more than the counting itself
+ * On the nio engine the body stage only covers queuing the body; the socket writes happen later
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final String OBJECT_NAME = "server:type=ServerMetrics";
+
+    // Upper bounds of the histogram buckets in microseconds; the last bucket holds everything slower
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+            25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000
+    };
+
+    private final long startedMillis = System.currentTimeMillis();
+    private final int sampleEvery;
+    private final Histogram parse = new Histogram();
+    private final Histogram lookup = new Histogram();
+    private final Histogram headers = new Histogram();
+    private final Histogram body = new Histogram();
+    private final Histogram queueWait = new Histogram();
+    private final ConcurrentHashMap<Integer, Histogram> byStatus = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> byContentType = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder[] statusCounts = new LongAdder[600];
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder shedConnections = new LongAdder();
+    private volatile LongAdder[] acceptedByShard = new LongAdder[0];
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile SlowClientGuard slowClientGuard;
+
+    /**
+     * Defines a constructor for metrics that time one request in every sampleEvery
+     * @param sampleEvery is 1 to time every request
+     */
+    public ServerMetrics(int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        for (int i = 0; i < statusCounts.length; i++) {
+            statusCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Defines a method that decides whether the next request is timed
+     * @return true for about one request in every sampleEvery
+     */
+    public boolean sampleNext() {
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    /**
+     * Defines a method that records a request that was answered by the command
+     * The stage and latency histograms are only updated if the response was timed
+     * @param parseNanos is the time the parser spent on the request
+     * @param startNanos is the System.nanoTime() at which the command started
+     * @param response is the response, carrying the times ResponseWriter stamped on it
+     */
+    public void recordRequest(long parseNanos, long startNanos, HttpResponse response) {
+        requests.increment();
+        bytesSent.add(response.getBytesWritten());
+        countStatus(response.getStatusCode());
+        if (!response.isTimed()) return;
+
+        parse.record(parseNanos);
+
+        long endNanos;
+        if (response.getHeaderStartNanos() != 0) {
+            lookup.record(response.getHeaderStartNanos() - startNanos);
+            headers.record(response.getBodyStartNanos() - response.getHeaderStartNanos());
+            body.record(response.getBodyEndNanos() - response.getBodyStartNanos());
+            endNanos = response.getBodyEndNanos();
+        } else {
+            endNanos = System.nanoTime();
+        }
+
+        long totalNanos = parseNanos + (endNanos - startNanos);
+        histogramFor(byStatus, response.getStatusCode()).record(totalNanos);
+        String contentType = response.getContentType();
+        histogramFor(byContentType, contentType == null ? "none" : contentType).record(totalNanos);
+    }
+
+    /**
+     * Defines a method that counts a request answered without the command (ex. 400 for a malformed request)
+     * @param statusCode is the status sent
+     */
+    public void recordRejected(int statusCode) {
+        requests.increment();
+        countStatus(statusCode);
+    }
+
+    /**
+     * Defines a method that records how long an accepted connection waited for a pool thread
+     * @param nanos is the wait in nanoseconds
+     */
+    public void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    /**
+     * Defines a method that counts a connection turned away with 503 because the queue was full
+     */
+    public void recordShed() {
+        shedConnections.increment();
+        recordRejected(503);
+    }
+
+    private void countStatus(int statusCode) {
+        if (statusCode >= 0 && statusCode < statusCounts.length) {
+            statusCounts[statusCode].increment();
+        }
+    }
+
+    /**
+     * Defines a method called when a client connection is opened
+     */
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    /**
+     * Defines a method called when a client connection is closed
+     */
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Defines a method that sets the number of listening sockets connections are counted for
+     * @param shards is the number of acceptors
+     */
+    public void setShards(int shards) {
+        LongAdder[] counts = new LongAdder[shards];
+        for (int i = 0; i < shards; i++) {
+            counts[i] = new LongAdder();
+        }
+        this.acceptedByShard = counts;
+    }
+
+    /**
+     * Defines a method called when an acceptor accepts a connection
+     * @param shard is the index of the acceptor
+     */
+    public void connectionAccepted(int shard) {
+        LongAdder[] counts = acceptedByShard;
+        if (shard < counts.length) counts[shard].increment();
+    }
+
+    /**
+     * Defines a method to set where the number of connections waiting for a thread is read from
+     * @param queueDepth returns the current queue length
+     */
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Defines a method to set where the connections dropped as too slow or too large are counted
+     * @param slowClientGuard counts the dropped connections by reason
+     */
+    public void setSlowClientGuard(SlowClientGuard slowClientGuard) {
+        this.slowClientGuard = slowClientGuard;
+    }
+
+    /**
+     * Defines a method that publishes these metrics over JMX, replacing metrics registered earlier in this JVM
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getShedConnections() {
+        return shedConnections.sum();
+    }
+
+    @Override
+    public long getDroppedSlowClients() {
+        SlowClientGuard guard = slowClientGuard;
+        return (guard != null) ? guard.getDroppedTotal() : 0;
+    }
+
+    @Override
+    public long[] getAcceptedByShard() {
+        LongAdder[] counts = acceptedByShard;
+        long[] sums = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            sums[i] = counts[i].sum();
+        }
+        return sums;
+    }
+
+    @Override
+    public double getQueueWaitMeanMicros() {
+        return queueWait.getMeanMicros();
+    }
+
+    @Override
+    public double getParseMeanMicros() {
+        return parse.getMeanMicros();
+    }
+
+    @Override
+    public double getLookupMeanMicros() {
+        return lookup.getMeanMicros();
+    }
+
+    @Override
+    public double getHeadersMeanMicros() {
+        return headers.getMeanMicros();
+    }
+
+    @Override
+    public double getBodyMeanMicros() {
+        return body.getMeanMicros();
+    }
+
+    @Override
+    public String getStatsJson() {
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\n");
+        json.append("  \"uptime_seconds\": ").append((System.currentTimeMillis() - startedMillis) / 1000).append(",\n");
+        json.append("  \"requests\": ").append(getRequests()).append(",\n");
+        json.append("  \"active_connections\": ").append(getActiveConnections()).append(",\n");
+        json.append("  \"queue_depth\": ").append(getQueueDepth()).append(",\n");
+        json.append("  \"bytes_sent\": ").append(getBytesSent()).append(",\n");
+        json.append("  \"shed_connections\": ").append(getShedConnections()).append(",\n");
+        SlowClientGuard guard = slowClientGuard;
+        if (guard != null) {
+            json.append("  \"dropped_slow_clients\": ");
+            guard.appendJson(json);
+            json.append(",\n");
+        }
+        json.append("  \"accepted_by_shard\": ").append(Arrays.toString(getAcceptedByShard())).append(",\n");
+        json.append("  \"queue_wait\": ").append(queueWait.toJson()).append(",\n");
+        json.append("  \"status_counts\": {");
+        String separator = "";
+        for (int status = 0; status < statusCounts.length; status++) {
+            long count = statusCounts[status].sum();
+            if (count == 0) continue;
+            json.append(separator).append('"').append(status).append("\": ").append(count);
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"latency_sample_every\": ").append(sampleEvery).append(",\n");
+        json.append("  \"stages\": {\n");
+        json.append("    \"parse\": ").append(parse.toJson()).append(",\n");
+        json.append("    \"lookup\": ").append(lookup.toJson()).append(",\n");
+        json.append("    \"headers\": ").append(headers.toJson()).append(",\n");
+        json.append("    \"body\": ").append(body.toJson()).append("\n");
+        json.append("  },\n");
+        json.append("  \"status\": ");
+        appendAll(json, new TreeMap<>(byStatus));
+        json.append(",\n  \"content_type\": ");
+        appendAll(json, new TreeMap<>(byContentType));
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    private static void appendAll(StringBuilder json, Map<?, Histogram> histograms) {
+        json.append("{");
+        String separator = "\n";
+        for (Map.Entry<?, Histogram> entry : histograms.entrySet()) {
+            json.append(separator).append("    \"").append(entry.getKey()).append("\": ")
+                .append(entry.getValue().toJson());
+            separator = ",\n";
+        }
+        json.append(histograms.isEmpty() ? "}" : "\n  }");
+    }
+
+    private static <K> Histogram histogramFor(ConcurrentHashMap<K, Histogram> histograms, K key) {
+        Histogram histogram = histograms.get(key);
+        return (histogram != null) ? histogram : histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+
+    /**
+     * Defines a class for a latency histogram with fixed buckets
+     * Percentiles are reported as the upper bound of the bucket they fall in
+     */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MICROS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Defines a method that records one latency
+         * @param nanos is the latency in nanoseconds
+         */
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            long micros = nanos / 1000;
+            int index = 0;
+            while (index < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[index]) {
+                index++;
+            }
+            buckets[index].increment();
+            sumNanos.add(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        double getMeanMicros() {
+            long count = getCount();
+            return (count == 0) ? 0 : sumNanos.sum() / 1000.0 / count;
+        }
+
+        /**
+         * Defines a method that estimates a percentile from the buckets
+         * @param percentile is between 0 and 100
+         * @return the bucket bound in microseconds, or the maximum for the slowest bucket
+         */
+        long getPercentileMicros(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+
+            long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(BUCKET_BOUNDS_MICROS[i], maxNanos.get() / 1000);
+            }
+            return maxNanos.get() / 1000;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"count\": ").append(getCount())
+                .append(", \"mean_us\": ").append(Math.round(getMeanMicros() * 10) / 10.0)
+                .append(", \"p50_us\": ").append(getPercentileMicros(50))
+                .append(", \"p99_us\": ").append(getPercentileMicros(99))
+                .append(", \"p999_us\": ").append(getPercentileMicros(99.9))
+                .append(", \"max_us\": ").append(maxNanos.get() / 1000)
+                .append(", \"buckets_us\": {");
+            for (int i = 0; i < buckets.length; i++) {
+                if (i > 0) json.append(", ");
+                String bound = (i < BUCKET_BOUNDS_MICROS.length) ? Long.toString(BUCKET_BOUNDS_MICROS[i]) : "inf";
+                json.append('"').append(bound).append("\": ").append(buckets[i].sum());
+            }
+            return json.append("}}").toString();
+        }
+    }
+}
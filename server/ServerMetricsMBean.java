@@ -0,0 +1,72 @@
+package server;
+
+/**
+ * Defines the management interface through which ServerMetrics is published over JMX
+ * (ex. in jconsole under server:type=ServerMetrics)
+ */
+public interface ServerMetricsMBean {
+    /**
+     * @return the number of requests answered since the server started
+     */
+    long getRequests();
+
+    /**
+     * @return the number of client connections currently open
+     */
+    int getActiveConnections();
+
+    /**
+     * @return the number of accepted connections waiting for a pool thread
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of response bytes written since the server started
+     */
+    long getBytesSent();
+
+    /**
+     * @return the number of connections turned away with 503 because the queue was full
+     */
+    long getShedConnections();
+
+    /**
+     * @return the number of connections dropped as too slow, or for sending too large a header
+     */
+    long getDroppedSlowClients();
+
+    /**
+     * @return the number of connections accepted by each listening socket, to show how evenly they are spread
+     */
+    long[] getAcceptedByShard();
+
+    /**
+     * @return the mean time an accepted connection waited for a pool thread, in microseconds
+     */
+    double getQueueWaitMeanMicros();
+
+    /**
+     * @return the mean time spent parsing a request, in microseconds
+     */
+    double getParseMeanMicros();
+
+    /**
+     * @return the mean time spent resolving and checking the file of a request, in microseconds
+     */
+    double getLookupMeanMicros();
+
+    /**
+     * @return the mean time spent building and writing a response header, in microseconds
+     */
+    double getHeadersMeanMicros();
+
+    /**
+     * @return the mean time spent writing a response body, in microseconds
+     */
+    double getBodyMeanMicros();
+
+    /**
+     * @return every metric as the JSON document served on the stats endpoint
+     */
+    String getStatsJson();
+}
@@ -0,0 +1,384 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Defines a class that drops clients too slow to be worth a connection: ones that send nothing after connecting
+ * ("-first_byte_timeout_ms"), trickle a request header ("-header_timeout_ms"), or read responses slower than
+ * "-min_send_rate" bytes a second once "-send_grace_ms" has passed; and caps the size ("-max_header_bytes") and
+ * number of fields ("-max_header_count") of a request header, answering a larger one with 431
+ * Blocking connections (threads and virtual engines) arm a Deadline around each wait, and a watchdog thread closes
+ * the socket of any connection past its deadline, which ends the blocked read or write on the thread serving it.
+ * The nio engine checks the same limits from its event loop. Every dropped connection is counted by reason
+ */
+public class SlowClientGuard {
+    // How often the watchdog looks for connections past their deadline
+    private static final long WATCHDOG_PERIOD_MS = 250;
+
+    /**
+     * Defines the reasons a connection is dropped for
+     */
+    public enum Reason {
+        /** Nothing arrived within the first byte timeout of connecting (a TLS handshake counts as nothing) */
+        FIRST_BYTE("first_byte"),
+        /** A request header was started but not finished within the header timeout */
+        HEADER("header"),
+        /** The client took response bytes slower than the minimum send rate */
+        SEND_RATE("send_rate"),
+        /** The request header was larger than the byte or field limit; the client got 431 first */
+        HEADER_TOO_LARGE("header_too_large");
+
+        private final String label;
+
+        Reason(String label) {
+            this.label = label;
+        }
+    }
+
+    private final long firstByteMillis;
+    private final long headerMillis;
+    private final long minSendRate;
+    private final long sendGraceMillis;
+    private final int maxHeaderBytes;
+    private final int maxHeaderCount;
+    private final LongAdder[] dropped = new LongAdder[Reason.values().length];
+    private final Set<Deadline> deadlines = ConcurrentHashMap.newKeySet();
+    private volatile boolean watching;
+
+    /**
+     * Defines a constructor for the limits; a timeout or rate of 0 turns that check off
+     * The watchdog thread starts with the first deadline opened, so the nio engine never starts it
+     * @param firstByteMillis is how long a new connection may stay silent
+     * @param headerMillis is how long a request header may take once its first byte has arrived
+     * @param minSendRate is the slowest rate, in bytes a second, a client may read a response at
+     * @param sendGraceMillis is how long any write may take on top of its size at the minimum rate
+     * @param maxHeaderBytes is the largest request line plus header block accepted
+     * @param maxHeaderCount is the largest number of header fields accepted
+     */
+    public SlowClientGuard(long firstByteMillis, long headerMillis, long minSendRate, long sendGraceMillis,
+                           int maxHeaderBytes, int maxHeaderCount) {
+        this.firstByteMillis = Math.max(0, firstByteMillis);
+        this.headerMillis = Math.max(0, headerMillis);
+        this.minSendRate = Math.max(0, minSendRate);
+        this.sendGraceMillis = Math.max(0, sendGraceMillis);
+        this.maxHeaderBytes = Math.max(1024, maxHeaderBytes);
+        this.maxHeaderCount = Math.max(1, maxHeaderCount);
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Defines a method that creates the request parser of a connection, with the header limits
+     * @return the parser
+     */
+    public HttpRequestParser newParser() {
+        return new HttpRequestParser(maxHeaderBytes, maxHeaderCount);
+    }
+
+    /**
+     * Defines a method to get the largest request header accepted, in bytes
+     * @return the limit given with "-max_header_bytes"
+     */
+    public int getMaxHeaderBytes() {
+        return maxHeaderBytes;
+    }
+
+    /**
+     * Defines a method to get the largest number of request header fields accepted
+     * @return the limit given with "-max_header_count"
+     */
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * Defines a method to get how long a new connection may stay silent
+     * @return the timeout in milliseconds, or 0 if it is off
+     */
+    public long getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    /**
+     * Defines a method to get how long a request header may take once it has started
+     * @return the timeout in milliseconds, or 0 if it is off
+     */
+    public long getHeaderMillis() {
+        return headerMillis;
+    }
+
+    /**
+     * Defines a method that works out how long a client may take to read some bytes of a response
+     * @param bytes is the number of bytes
+     * @return the time in milliseconds, or 0 if the send rate is not checked
+     */
+    public long sendMillis(long bytes) {
+        if (minSendRate == 0) return 0;
+        return sendGraceMillis + bytes * 1000 / minSendRate;
+    }
+
+    /**
+     * Defines a method that opens the deadline of a blocking connection, with nothing armed yet
+     * @param closer closes the connection's socket when a deadline passes; it runs on the watchdog thread
+     * @return the deadline, which the connection closes when it ends
+     */
+    public Deadline open(Runnable closer) {
+        if (!watching) startWatchdog();
+        Deadline deadline = new Deadline(closer);
+        deadlines.add(deadline);
+        return deadline;
+    }
+
+    /**
+     * Defines a method that counts a dropped connection
+     * @param reason is why it was dropped
+     */
+    public void record(Reason reason) {
+        dropped[reason.ordinal()].increment();
+    }
+
+    /**
+     * Defines a method to get the number of connections dropped for one reason
+     * @param reason is the reason
+     * @return the count since the server started
+     */
+    public long getDropped(Reason reason) {
+        return dropped[reason.ordinal()].sum();
+    }
+
+    /**
+     * Defines a method to get the number of connections dropped for any reason
+     * @return the count since the server started
+     */
+    public long getDroppedTotal() {
+        long total = 0;
+        for (LongAdder count : dropped) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Defines a method to get the dropped connections by reason as a one line summary
+     * @return the statistics
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Reason reason : Reason.values()) {
+            stats.append(reason.label).append('=').append(getDropped(reason)).append(' ');
+        }
+        return stats.append("watched=").append(deadlines.size()).toString();
+    }
+
+    /**
+     * Defines a method that writes the dropped connections by reason as a JSON object
+     * @param json receives the object
+     */
+    void appendJson(StringBuilder json) {
+        json.append('{');
+        String separator = "";
+        for (Reason reason : Reason.values()) {
+            json.append(separator).append('"').append(reason.label).append("\": ").append(getDropped(reason));
+            separator = ", ";
+        }
+        json.append('}');
+    }
+
+    private synchronized void startWatchdog() {
+        if (watching) return;
+        watching = true;
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "slow-client-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::closeExpired, WATCHDOG_PERIOD_MS, WATCHDOG_PERIOD_MS,
+                                        TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Defines a method that closes every connection past its deadline; runs on the watchdog thread
+     */
+    private void closeExpired() {
+        long now = System.currentTimeMillis();
+        for (Deadline deadline : deadlines) {
+            Reason reason = deadline.expire(now);
+            if (reason == null) continue;
+            record(reason);
+            try {
+                deadline.closer.run();
+            } catch (RuntimeException e) {
+                // The connection is already closing
+            }
+        }
+    }
+
+    /**
+     * Defines a class for the deadline of one blocking connection, armed for one wait at a time: the first byte,
+     * the rest of a request header, or one write
+     * Arming and disarming only set fields under the deadline's lock, which the watchdog takes too, so a wait
+     * that ends just as its deadline passes is never dropped after the fact
+     */
+    public final class Deadline {
+        private final Runnable closer;
+        private Reason phase;
+        private long expiresAt;
+        private boolean expired;
+
+        private Deadline(Runnable closer) {
+            this.closer = closer;
+        }
+
+        /**
+         * Defines a method that gives a new connection "-first_byte_timeout_ms" to send its first byte
+         */
+        public void startFirstByte() {
+            arm(Reason.FIRST_BYTE, firstByteMillis);
+        }
+
+        /**
+         * Defines a method called while a request header is incomplete; the first call gives the rest of the header
+         * "-header_timeout_ms" to arrive, later calls for the same header leave the deadline as it is
+         */
+        public void startHeader() {
+            if (phase != Reason.HEADER) arm(Reason.HEADER, headerMillis);
+        }
+
+        /**
+         * Defines a method that gives the client until "-send_grace_ms" plus the time to read bytes at
+         * "-min_send_rate" to take a write
+         * @param bytes is the size of the write
+         */
+        public void startSend(long bytes) {
+            arm(Reason.SEND_RATE, sendMillis(bytes));
+        }
+
+        /**
+         * Defines a method called when the wait the deadline was armed for is over
+         */
+        public synchronized void finish() {
+            phase = null;
+        }
+
+        /**
+         * Defines a method that checks whether the watchdog dropped the connection, which explains why its
+         * read or write failed
+         * @return true if a deadline passed, else false
+         */
+        public synchronized boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Defines a method called when the connection ends
+         */
+        public void close() {
+            deadlines.remove(this);
+        }
+
+        private synchronized void arm(Reason reason, long millis) {
+            if (expired) return;
+            if (millis <= 0) {
+                // This check is off, but an earlier deadline must not stay armed for the new wait
+                phase = null;
+                return;
+            }
+            phase = reason;
+            expiresAt = System.currentTimeMillis() + millis;
+        }
+
+        private synchronized Reason expire(long now) {
+            if (phase == null || now < expiresAt) return null;
+            Reason reason = phase;
+            expired = true;
+            phase = null;
+            return reason;
+        }
+    }
+
+    /**
+     * Defines a channel that arms the connection's deadline around every write, so a client that stops
+     * reading is dropped by the watchdog instead of holding the thread blocked in the write
+     */
+    public static final class GuardedChannel implements GatheringByteChannel {
+        private final GatheringByteChannel channel;
+        private final Deadline deadline;
+
+        /**
+         * Defines a constructor for a guarded view of a blocking channel
+         * @param channel is the socket, or the TlsChannel over it
+         * @param deadline is the deadline of the connection
+         */
+        public GuardedChannel(GatheringByteChannel channel, Deadline deadline) {
+            this.channel = channel;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            deadline.startSend(source.remaining());
+            try {
+                return channel.write(source);
+            } finally {
+                deadline.finish();
+            }
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            long bytes = 0;
+            for (int i = offset; i < offset + length; i++) {
+                bytes += sources[i].remaining();
+            }
+            deadline.startSend(bytes);
+            try {
+                return channel.write(sources, offset, length);
+            } finally {
+                deadline.finish();
+            }
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) throws IOException {
+            return write(sources, 0, sources.length);
+        }
+
+        /**
+         * Defines a method that sends part of a file with transferTo straight to the wrapped channel, so the
+         * kernel still copies a file to a socket with sendfile, which it does not for any other channel
+         * @param file is the open file
+         * @param position is the offset of the first byte
+         * @param count is the number of bytes
+         * @return the number of bytes sent
+         * @throws IOException if sending fails
+         */
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            deadline.startSend(count);
+            try {
+                return file.transferTo(position, count, channel);
+            } finally {
+                deadline.finish();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Defines a class that answers the reserved stats path with the server metrics as JSON
+ * GetCommand hands requests for the path to this command instead of looking for a file
+ */
+public class StatsCommand implements Command {
+    private final ServerMetrics metrics;
+    private final String path;
+
+    /**
+     * Defines a constructor for the stats endpoint
+     * @param metrics are the metrics reported
+     * @param path is the reserved request path (ex. /_stats)
+     */
+    public StatsCommand(ServerMetrics metrics, String path) {
+        this.metrics = metrics;
+        this.path = path;
+    }
+
+    /**
+     * Defines a method which checks whether a request is for the stats path
+     * @param request is the parsed HTTP request
+     * @return true if this command should answer it, else false
+     */
+    public boolean matches(HttpRequest request) {
+        return path.equals(request.getPath());
+    }
+
+    @Override
+    public void execute(HttpRequest request, HttpResponse response) throws Exception {
+        byte[] body = metrics.getStatsJson().getBytes(StandardCharsets.UTF_8);
+
+        response.setVersion(request.getVersion());
+        response.setStatus(200, "OK");
+        response.setContentType("application/json");
+        response.setContentLength(body.length);
+        response.setCachedBody(body);
+        response.setText(true);
+        ResponseWriter.writeSuccessResponse(response);
+    }
+}
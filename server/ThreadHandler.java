@@ -1,87 +1,248 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.GatheringByteChannel;
+
+import javax.net.ssl.SSLException;
 
 /**
  * Defines a class that handles the work of the threads
+ * Each handler owns one client connection and serves requests on it until the connection closes
+ * A client that starts HTTP/2 (h2c), with prior knowledge or "Upgrade: h2c", is handed to an Http2Connection
+ * With "-tls_keystore" the connection is wrapped in a TlsChannel first, and a client that picks "h2" with ALPN
+ * starts with the HTTP/2 preface; h2c upgrades are only accepted in cleartext
+ * The SlowClientGuard's watchdog closes the socket of a client that sends its first byte or request header too
+ * slowly, or takes responses too slowly, which ends whatever read or write the handler is blocked in
  */
 public class ThreadHandler implements Runnable {
+    private static final int OUTPUT_BUFFER_BYTES = 16 * 1024;
+
     private final Socket acceptedSocket;
-    private final String[] args;
+    private final ServerContext context;
     private final HttpRequestParser parser;
-    private final TimeoutHeuristic timeoutObj;
+    private final KeepAliveTimer keepAliveTimer;
+    private final SlowClientGuard guard;
+    private final SlowClientGuard.Deadline deadline;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final byte[] remoteAddress;
+    private TlsChannel tls;
+    // What the AcceptFilter's parse of the first request gave, until that request is answered
+    private HttpRequestParser.Result firstResult;
 
     /**
      * Defines a constructor that creates a new request parser object
      * @param acceptedSocket is the socket connection accepts incoming client requests
-     * @param args contains the document root the client will pass in while running the server
+     * @param context contains the document root the client will pass in while running the server
      */
-    public ThreadHandler(Socket acceptedSocket, String[] args) {
+    public ThreadHandler(Socket acceptedSocket, ServerContext context) {
+        this(acceptedSocket, context, context.getSlowClientGuard().newParser(), null);
+        parser.setTimed(metrics != null && metrics.sampleNext());
+    }
+
+    /**
+     * Defines a constructor for a connection whose first request header an AcceptFilter has already read
+     * @param acceptedSocket is the socket connection accepts incoming client requests
+     * @param context contains the document root the client will pass in while running the server
+     * @param parser holds the bytes read so far
+     * @param firstResult is what parsing them gave, or null if nothing was read yet
+     */
+    public ThreadHandler(Socket acceptedSocket, ServerContext context, HttpRequestParser parser,
+                         HttpRequestParser.Result firstResult) {
         this.acceptedSocket = acceptedSocket;
-        this.args = args;
-        this.parser = new HttpRequestParser();
-        this.timeoutObj = new TimeoutHeuristic(acceptedSocket);
+        this.context = context;
+        this.parser = parser;
+        this.firstResult = firstResult;
+        this.keepAliveTimer = new KeepAliveTimer(context.getKeepAlivePolicy(), this::closeQuietly);
+        this.guard = context.getSlowClientGuard();
+        this.deadline = guard.open(this::closeQuietly);
+        if (firstResult == null) {
+            // Counted from accepting, so it also covers the wait for a pool thread and the TLS handshake
+            deadline.startFirstByte();
+        }
+        this.metrics = context.getMetrics();
+        this.accessLog = context.getAccessLog();
+        this.remoteAddress = (accessLog != null) ? HttpUtil.remoteAddress(acceptedSocket) : null;
     }
 
     @Override
     /**
      * Defines a run method that each thread will execute
+     * Requests are read and answered in order until the client asks to close,
+     * the connection is HTTP/1.0 without keep-alive, the connection sits idle past its timeout,
+     * the keep-alive reaper closes it while it is idle, or the watchdog drops it as too slow
      */
     public void run() {
+        OutputStream outputStream = null;
+        if (metrics != null) metrics.connectionOpened();
+        keepAliveTimer.open();
         try {
-            // Input and Output Streams
-            InputStreamReader inputStream = new InputStreamReader(acceptedSocket.getInputStream());
-            BufferedReader bufferedInputStream = new BufferedReader(inputStream);
-            OutputStream outputStream = acceptedSocket.getOutputStream();
-            
-            // Parse HTTP Request line
-            HttpRequest parsedRequest = parser.parseRequest(bufferedInputStream );
-            if (parsedRequest == null) {
-                ResponseWriter.sendBadRequest(outputStream);
-                return;
+            boolean http2 = context.isHttp2Enabled();
+            TlsContext tlsContext = context.getTlsContext();
+            if (tlsContext != null) {
+                tls = tlsContext.open(acceptedSocket.getChannel(), context.getBufferPool(), http2);
             }
 
-            timeoutObj.startClock();
-
-            // If path is /, then default to index.html
-            HttpRequest finalParsedRequest = null;
-            // getPath() returns the uri from HttpRequest.java
-            if ("/".equals(parsedRequest.getPath())) {
-                finalParsedRequest = new HttpRequest(parsedRequest.getMethod(), "/index.html", parsedRequest.getVersion());
+            // The parser buffers input for the life of the connection so pipelined bytes are not lost
+            InputStream inputStream = (tls != null) ? tls.getInputStream() : acceptedSocket.getInputStream();
+            // Every write goes through the guard, so a client that stops reading loses the connection
+            // Over TLS, response bytes are collected into 16 KB records before they are encrypted
+            GatheringByteChannel channel = (tls != null) ? tls : acceptedSocket.getChannel();
+            if (channel != null) {
+                channel = new SlowClientGuard.GuardedChannel(channel, deadline);
+                outputStream = new PooledOutputStream(context.getBufferPool(), channel, OUTPUT_BUFFER_BYTES);
             } else {
-                finalParsedRequest = parsedRequest;
+                outputStream = new BufferedOutputStream(acceptedSocket.getOutputStream());
             }
 
-            // Prepend the document root
-            String documentRoot = null;
-            if (args != null && args.length > 1) {
-                documentRoot = args[1];
-            } else {
-                documentRoot = ".";
-            }
+            // The command serving the document root is shared by every connection
+            Command command = context.getCommand();
 
+            // One response object serves every request on the connection
+            // Over TLS bodies must be encrypted, so they are copied through the output instead of sent with transferTo
             HttpResponse httpResponse = new HttpResponse(outputStream);
-            Command command = new GetCommand(documentRoot);
-            command.execute(finalParsedRequest, httpResponse);
+            httpResponse.setChannel((tls != null) ? null : channel);
+            httpResponse.setDiskReader(context.getDiskReader());
+
+            if (tls != null) {
+                // The handshake counts against the keep-alive timeout like waiting for a first request
+                acceptedSocket.setSoTimeout(keepAliveTimer.calculateTimeout());
+                tls.handshake();
+            }
+            boolean keepAlive = true;
+            while (keepAlive) {
+                // Parse HTTP Request line and headers
+                acceptedSocket.setSoTimeout(keepAliveTimer.calculateTimeout());
+                keepAliveTimer.markIdle();
+                HttpRequest parsedRequest;
+                if (firstResult != null) {
+                    parsedRequest = (firstResult == HttpRequestParser.Result.COMPLETE) ? parser.getRequest() : null;
+                    firstResult = null;
+                } else {
+                    parsedRequest = parser.parseRequest(inputStream, deadline);
+                }
+                if (!keepAliveTimer.markBusy()) {
+                    return;
+                }
+                if (parsedRequest == null && http2 && parser.isHttp2Preface()) {
+                    // The client knows the server speaks HTTP/2 and skipped HTTP/1.x altogether
+                    new Http2Connection(acceptedSocket, inputStream, outputStream, context, keepAliveTimer)
+                            .serve(parser.takeBuffered());
+                    return;
+                }
+                if (parsedRequest == null && parser.isTooLarge()) {
+                    ResponseWriter.sendHeaderTooLarge(outputStream);
+                    guard.record(SlowClientGuard.Reason.HEADER_TOO_LARGE);
+                    if (metrics != null) metrics.recordRejected(431);
+                    if (accessLog != null) accessLog.log(remoteAddress, null, 431, 0);
+                    return;
+                }
+                if (parsedRequest == null) {
+                    ResponseWriter.sendBadRequest(outputStream);
+                    if (metrics != null) metrics.recordRejected(400);
+                    if (accessLog != null) accessLog.log(remoteAddress, null, 400, 0);
+                    return;
+                }
 
-            int timeoutLen = timeoutObj.calculateTimeout();
-            acceptedSocket.setSoTimeout(timeoutLen);
+                if (http2 && tls == null && Http2Connection.isUpgrade(parsedRequest)) {
+                    // Answered on stream 1 after "101 Switching Protocols"
+                    new Http2Connection(acceptedSocket, inputStream, outputStream, context, keepAliveTimer)
+                            .serveUpgrade(parsedRequest, parser.takeBuffered());
+                    return;
+                }
 
+                keepAlive = parsedRequest.isKeepAlive();
+
+                // If path is /, then default to index.html
+                HttpRequest finalParsedRequest = HttpUtil.resolveDefaultPage(parsedRequest);
+
+                httpResponse.reset();
+                httpResponse.setKeepAlive(keepAlive);
+                httpResponse.setTimed(parser.isTimed());
+                long started = parser.isTimed() ? System.nanoTime() : 0;
+                command.execute(finalParsedRequest, httpResponse);
+                if (metrics != null) {
+                    metrics.recordRequest(parser.getParseNanos(), started, httpResponse);
+                    parser.setTimed(metrics.sampleNext());
+                }
+                if (accessLog != null) {
+                    accessLog.log(remoteAddress, parsedRequest, httpResponse.getStatusCode(),
+                                  httpResponse.getContentLength());
+                }
+
+                // Pipelined requests that are already buffered are answered before flushing,
+                // so their responses go out together instead of one packet per request
+                if (!keepAlive || !parser.hasBufferedInput()) {
+                    outputStream.flush();
+                }
+            }
+
+        } catch (EOFException | SocketTimeoutException e) {
+            // The client closed the connection or stayed idle past the keep-alive timeout
+            flushQuietly(outputStream);
+        } catch (SSLException e) {
+            // The handshake failed or a record was not valid; the engine has sent its alert and nothing more can go out
         } catch (Exception e) {
-            try (OutputStream output = acceptedSocket.getOutputStream()) {
+            if (keepAliveTimer.isReaped() || deadline.isExpired()) {
+                // The reaper closed the socket while this handler waited for the next request,
+                // or the watchdog closed it because the client was too slow
+                return;
+            }
+            try {
+                OutputStream output = (outputStream != null) ? outputStream : acceptedSocket.getOutputStream();
                 ResponseWriter.sendInternalServerError(output);
             } catch (IOException ignored) {
             }
+            if (metrics != null) metrics.recordRejected(500);
+            if (accessLog != null) accessLog.log(remoteAddress, null, 500, 0);
         } finally {
-            try { 
-                acceptedSocket.close();
-            } catch (IOException ignored){
-                // This ignores exceptions if the socket has closed
+            if (metrics != null) metrics.connectionClosed();
+            keepAliveTimer.close();
+            deadline.close();
+            if (tls != null) {
+                // Sends close_notify, closes the socket and gives the record buffer back to the pool
+                tls.close();
             }
+            closeQuietly();
+            if (outputStream instanceof PooledOutputStream) {
+                // Gives the output buffer back to the pool
+                ((PooledOutputStream) outputStream).close();
+            }
+        }
+    }
+
+    /**
+     * Defines a method called instead of run when the connection is turned away before a thread takes it
+     * The caller closes the socket
+     */
+    void abandon() {
+        deadline.close();
+    }
+
+    private void closeQuietly() {
+        try { 
+            acceptedSocket.close();
+        } catch (IOException ignored){
+            // This ignores exceptions if the socket has closed
+        }
+    }
+
+    /**
+     * Defines a method that pushes out any responses still buffered before the connection closes
+     * @param output is the buffered socket output, or null if it was never opened
+     */
+    private static void flushQuietly(OutputStream output) {
+        if (output == null) return;
+        try {
+            output.flush();
+        } catch (IOException ignored) {
+            // The client is already gone
         }
     }
 }
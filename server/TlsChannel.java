@@ -0,0 +1,406 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Defines a channel that encrypts and decrypts one connection with an SSLEngine
+ * It stands between the socket and the rest of the server, so the blocking engines read it as an InputStream
+ * and write it through a PooledOutputStream, and the nio engine reads and writes it like the SocketChannel
+ * On a blocking socket every call blocks until it is done and reads honour the socket timeout; on a
+ * non-blocking socket calls do what they can without waiting, and flushPending() tells the event loop whether
+ * encrypted bytes are still waiting for the socket
+ * Several small writes are wrapped into records of up to 16 KB and sent with one socket write
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+    // Wrapped when the engine has a message of its own to send (handshake, alert or close_notify)
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+    private static final int RECORD_HEADER_BYTES = 5;
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    private final InputStream socketInput;
+    private final BufferPool pool;
+    private final TlsContext context;
+    private final ByteBuffer[] single = new ByteBuffer[1];
+
+    // Encrypted bytes read from the socket, kept ready for filling (0..position)
+    private ByteBuffer netIn;
+    // Decrypted bytes not yet read, kept ready for draining (position..limit)
+    private ByteBuffer appIn;
+    // Encrypted bytes waiting for the socket, kept ready for filling (0..position)
+    private ByteBuffer netOut;
+    private int packetSize;
+
+    private long handshakeStarted;
+    private boolean handshaken;
+    private boolean inputClosed;
+    private boolean closed;
+
+    /**
+     * Defines a constructor for a connection whose handshake has not started; see TlsContext.open
+     * @param engine is the server side engine of the connection
+     * @param channel is the client connection
+     * @param pool hands out the buffer of encrypted output
+     * @param context counts the handshakes
+     * @throws IOException if the socket input cannot be opened
+     */
+    TlsChannel(SSLEngine engine, SocketChannel channel, BufferPool pool, TlsContext context) throws IOException {
+        this.engine = engine;
+        this.channel = channel;
+        // The socket's stream is read on a blocking connection because, unlike the channel, it honours SO_TIMEOUT
+        this.socketInput = channel.isBlocking() ? channel.socket().getInputStream() : null;
+        this.pool = pool;
+        this.context = context;
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        this.netOut = pool.acquire(packetSize);
+    }
+
+    /**
+     * Defines a method that runs the handshake as far as it can go
+     * On a blocking connection it returns once the handshake is done; it is also called by read and write,
+     * so calling it first only makes the handshake happen at a known point (ex. under the keep-alive timeout)
+     * @return true once the handshake is done, false if a non-blocking socket has to be read or written first
+     * @throws SSLException if the handshake fails
+     * @throws EOFException if the client closes the connection during the handshake
+     */
+    public boolean handshake() throws IOException {
+        try {
+            if (handshakeStarted == 0) {
+                // Until it is told to begin, a server engine reports NOT_HANDSHAKING
+                handshakeStarted = System.currentTimeMillis();
+                engine.beginHandshake();
+            }
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        if (netOut.remaining() < packetSize && !flushNetOut()) return false;
+                        wrap(NOTHING, 0, 1);
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        // The client waits for this side's messages before it sends the next ones
+                        if (!flushNetOut()) return false;
+                        int status = unwrap();
+                        if (status == 0) return false;
+                        if (status < 0) throw new EOFException("Connection closed during the TLS handshake");
+                        break;
+                    default:
+                        if (!handshaken) {
+                            handshaken = true;
+                            context.recordHandshake(engine.getSession(), handshakeStarted);
+                        }
+                        return true;
+                }
+            }
+        } catch (SSLException e) {
+            if (!handshaken) context.recordFailure();
+            // The engine has an alert for the client, which is sent if the socket takes it
+            closed = true;
+            try {
+                engine.closeOutbound();
+                wrap(NOTHING, 0, 1);
+                flushNetOut();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Defines a method that reads decrypted bytes, running the handshake first if it is not done
+     * @param destination receives the bytes
+     * @return the number of bytes read, 0 if a non-blocking socket has none ready, or -1 once the client has
+     *         closed the connection
+     * @throws IOException if reading fails, the socket timeout passes or a record is not valid
+     */
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        while (!appIn.hasRemaining()) {
+            if (inputClosed) return -1;
+            if (!handshake()) return 0;
+            int status = unwrap();
+            if (status <= 0) return status;
+        }
+        int count = Math.min(appIn.remaining(), destination.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        destination.put(appIn);
+        appIn.limit(limit);
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        single[0] = source;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    /**
+     * Defines a method that encrypts bytes and writes them to the socket
+     * On a non-blocking socket the bytes taken may be fewer than given, and some of them may still wait
+     * for the socket; see flushPending
+     * @param sources hold the bytes, read from their positions
+     * @param offset is the first buffer used
+     * @param length is the number of buffers used
+     * @return the number of bytes taken from the sources
+     * @throws IOException if writing fails or the connection is closed
+     */
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (!handshake()) return 0;
+        long taken = 0;
+        while (hasRemaining(sources, offset, length)) {
+            if (netOut.remaining() < packetSize && !flushNetOut()) break;
+            taken += wrap(sources, offset, length);
+        }
+        flushNetOut();
+        return taken;
+    }
+
+    /**
+     * Defines a method that writes encrypted bytes still waiting for the socket and carries on a handshake
+     * that waited for them
+     * @return true if nothing is left to write, false if the event loop should wait for the socket to take more
+     * @throws IOException if writing fails or the handshake fails
+     */
+    public boolean flushPending() throws IOException {
+        if (closed) return true;
+        if (!flushNetOut()) return false;
+        if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            handshake();
+        }
+        return netOut.position() == 0;
+    }
+
+    /**
+     * Defines a method that checks whether bytes can be read without waiting for the socket
+     * A non-blocking connection must be read again while this is true, since the selector only sees the socket
+     * @return true if decrypted bytes or a whole record are buffered, else false
+     */
+    public boolean hasBufferedInput() {
+        if (closed) return false;
+        if (appIn.hasRemaining()) return true;
+        if (inputClosed || netIn.position() < RECORD_HEADER_BYTES) return false;
+        int recordLength = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+        return netIn.position() >= RECORD_HEADER_BYTES + recordLength;
+    }
+
+    /**
+     * Defines a method to get the protocol agreed with ALPN
+     * @return "h2" or "http/1.1", or an empty string if the client did not ask for one
+     */
+    public String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return (protocol != null) ? protocol : "";
+    }
+
+    /**
+     * Defines a method to get the decrypted bytes as a stream, for the blocking engines
+     * available() counts buffered bytes of either kind and what the socket has, so it is only a hint
+     * that a read would not block
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) return 0;
+                int count;
+                do {
+                    count = TlsChannel.this.read(ByteBuffer.wrap(bytes, offset, length));
+                } while (count == 0);
+                return count;
+            }
+
+            @Override
+            public int available() throws IOException {
+                if (closed) return 0;
+                return appIn.remaining() + netIn.position() + ((socketInput != null) ? socketInput.available() : 0);
+            }
+        };
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Defines a method that tells the client the connection is ending (close_notify), as far as the socket
+     * takes it without waiting, and then closes the socket and gives the output buffer back to the pool
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                engine.closeOutbound();
+                if (netOut.remaining() >= packetSize || flushNetOut()) {
+                    wrap(NOTHING, 0, 1);
+                }
+                flushNetOut();
+            } catch (IOException ignored) {
+                // The client is already gone
+            }
+        }
+        pool.release(netOut);
+        netOut = null;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Defines a method that decrypts the next record from netIn into appIn, reading from the socket when
+     * netIn holds no whole record
+     * @return 1 once a record was handled, 0 if a non-blocking socket has nothing more, -1 at the end of input
+     */
+    private int unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return 1;
+                case CLOSED:
+                    // The client sent close_notify
+                    inputClosed = true;
+                    return -1;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+                    break;
+                default:
+                    // A record is not complete yet
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+                    }
+                    int count = fill();
+                    if (count < 0) {
+                        inputClosed = true;
+                        return -1;
+                    }
+                    if (count == 0) return 0;
+            }
+        }
+    }
+
+    /**
+     * Defines a method that encrypts bytes from the sources into netOut, which has room for one record
+     * @return the number of bytes taken from the sources
+     */
+    private int wrap(ByteBuffer[] sources, int offset, int length) throws IOException {
+        SSLEngineResult result = engine.wrap(sources, offset, length, netOut);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                // The session needs larger records than planned; the bytes are wrapped on the next call
+                packetSize = Math.max(packetSize, engine.getSession().getPacketBufferSize());
+                if (flushNetOut() && netOut.capacity() < packetSize) {
+                    pool.release(netOut);
+                    netOut = pool.acquire(packetSize);
+                }
+                return 0;
+            case CLOSED:
+                if (result.bytesProduced() == 0 && hasRemaining(sources, offset, length)) {
+                    throw new ClosedChannelException();
+                }
+                return result.bytesConsumed();
+            default:
+                return result.bytesConsumed();
+        }
+    }
+
+    /**
+     * Defines a method that reads encrypted bytes from the socket into netIn
+     * @return the number of bytes read, 0 if a non-blocking socket has none, or -1 at the end of the stream
+     */
+    private int fill() throws IOException {
+        if (socketInput == null) {
+            return channel.read(netIn);
+        }
+        int count = socketInput.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (count > 0) netIn.position(netIn.position() + count);
+        return count;
+    }
+
+    /**
+     * Defines a method that writes netOut to the socket
+     * @return true if everything was written, false if a non-blocking socket took only part of it
+     */
+    private boolean flushNetOut() throws IOException {
+        if (netOut.position() == 0) return true;
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0 && socketInput == null) return false;
+            }
+            return true;
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] sources, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (sources[i].hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Defines a method that moves the bytes of a buffer into a larger one
+     * @param buffer is the buffer, ready for draining if draining is true, else ready for filling
+     * @param size is the size the engine asks for
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int size, boolean draining) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        if (!draining) buffer.flip();
+        larger.put(buffer);
+        if (draining) larger.flip();
+        return larger;
+    }
+}
@@ -0,0 +1,298 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * Defines a class that holds what every TLS connection of the server shares: the certificate and key from the
+ * keystore, the cache of sessions clients may resume and the protocols offered
+ * One SSLContext lives as long as the server, so resumption (session IDs for TLS 1.2, the JDK's session tickets
+ * for TLS 1.3) keeps working across reloads. The keystore file is checked every "-tls_reload_s" seconds and,
+ * once it changes, its key replaces the old one for new handshakes without a restart
+ */
+public class TlsContext {
+    private static final String H2 = "h2";
+    private static final String HTTP_1_1 = "http/1.1";
+
+    private final File keystoreFile;
+    private final char[] password;
+    private final String keystoreType;
+    private final String[] protocols;
+    private final SSLContext sslContext;
+    private final ReloadingKeyManager keyManager;
+
+    // Only the reload thread reads and writes these after the constructor
+    private long loadedModified;
+    private long loadedLength;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+
+    /**
+     * Defines a constructor that loads the keystore and creates the SSLContext
+     * @param keystoreFile is the PKCS12 or JKS file holding the server key and certificate chain
+     * @param password opens the keystore and the key
+     * @param keystoreType is the keystore format (ex. PKCS12)
+     * @param protocols are the TLS versions enabled on every connection
+     * @param sessionCacheSize is the number of sessions kept for resumption, 0 for no limit
+     * @param sessionTimeoutSeconds is how long a session may be resumed
+     * @param reloadSeconds is how often the keystore file is checked for changes, 0 to never check
+     * @throws IOException if the keystore cannot be read or holds no usable key
+     */
+    public TlsContext(File keystoreFile, String password, String keystoreType, String[] protocols,
+                      int sessionCacheSize, int sessionTimeoutSeconds, int reloadSeconds) throws IOException {
+        this.keystoreFile = keystoreFile;
+        this.password = password.toCharArray();
+        this.keystoreType = keystoreType;
+        this.protocols = protocols;
+        this.loadedModified = keystoreFile.lastModified();
+        this.loadedLength = keystoreFile.length();
+        this.keyManager = new ReloadingKeyManager(loadKeyManager());
+        try {
+            this.sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(new KeyManager[] {keyManager}, null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot create the TLS context: " + e.getMessage(), e);
+        }
+
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(Math.max(0, sessionCacheSize));
+        sessions.setSessionTimeout(Math.max(0, sessionTimeoutSeconds));
+
+        if (reloadSeconds > 0) {
+            ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "tls-keystore-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watcher.scheduleWithFixedDelay(this::reloadIfChanged, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Defines a method that wraps a newly accepted connection in TLS
+     * The handshake has not started; it runs on the first read or on an explicit TlsChannel.handshake()
+     * @param channel is the client connection, blocking or not
+     * @param pool hands out the buffer encrypted bytes are written from
+     * @param http2Allowed is true if ALPN may pick "h2" for this connection
+     * @return the TLS channel
+     * @throws IOException if the socket input cannot be opened
+     */
+    public TlsChannel open(SocketChannel channel, BufferPool pool, boolean http2Allowed) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        parameters.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(parameters);
+        // "h2" if the client offers it and this engine serves HTTP/2, otherwise HTTP/1.1, which the server
+        // also speaks to clients that offer neither
+        engine.setHandshakeApplicationProtocolSelector((sslEngine, offered) -> {
+            if (http2Allowed && offered.contains(H2)) return H2;
+            return offered.contains(HTTP_1_1) ? HTTP_1_1 : "";
+        });
+        return new TlsChannel(engine, channel, pool, this);
+    }
+
+    /**
+     * Defines a method that counts a finished handshake, as resumed if its session is older than the handshake
+     * @param session is the session the handshake settled on
+     * @param startedMillis is when the handshake started
+     */
+    void recordHandshake(SSLSession session, long startedMillis) {
+        handshakes.increment();
+        if (session.getCreationTime() < startedMillis) resumed.increment();
+    }
+
+    /**
+     * Defines a method that counts a handshake that failed (ex. no common protocol, or a client that
+     * does not trust the certificate)
+     */
+    void recordFailure() {
+        failures.increment();
+    }
+
+    /**
+     * Defines a method to get the handshake counts as a one line summary
+     * @return the statistics
+     */
+    public String getStats() {
+        return "handshakes=" + handshakes.sum() + " resumed=" + resumed.sum() + " failed=" + failures.sum()
+                + " reloads=" + reloads.sum();
+    }
+
+    /**
+     * Defines a method that loads the keystore again if the file changed since it was last loaded
+     * A keystore that cannot be loaded (ex. one still being written) leaves the current key in place
+     * until the file changes again
+     */
+    private void reloadIfChanged() {
+        long modified = keystoreFile.lastModified();
+        long length = keystoreFile.length();
+        if (modified == loadedModified && length == loadedLength) return;
+        loadedModified = modified;
+        loadedLength = length;
+        try {
+            keyManager.replace(loadKeyManager());
+            reloads.increment();
+        } catch (IOException e) {
+            System.err.println("Keeping the current TLS key, cannot reload " + keystoreFile + ": " + e);
+        }
+    }
+
+    /**
+     * Defines a method that reads the keystore into a key manager
+     * @return the key manager of the keystore
+     * @throws IOException if the file cannot be read, the password is wrong or it holds no key
+     */
+    private X509ExtendedKeyManager loadKeyManager() throws IOException {
+        try (InputStream input = new FileInputStream(keystoreFile)) {
+            KeyStore keyStore = KeyStore.getInstance(keystoreType);
+            keyStore.load(input, password);
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keyStore, password);
+            for (KeyManager manager : factory.getKeyManagers()) {
+                if (manager instanceof X509ExtendedKeyManager && hasKey(keyStore)) {
+                    return (X509ExtendedKeyManager) manager;
+                }
+            }
+            throw new IOException(keystoreFile + " holds no private key");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load " + keystoreFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean hasKey(KeyStore keyStore) throws GeneralSecurityException {
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (keyStore.isKeyEntry(alias)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Defines a key manager that passes every call to the key manager of the keystore loaded last
+     * A handshake picks an alias and then asks for its key and chain, so a reload may fall in between; the alias
+     * carries the generation of the keystore it came from and the previous keystore is kept to answer for it
+     */
+    private static final class ReloadingKeyManager extends X509ExtendedKeyManager {
+        private volatile Generation current;
+        private volatile Generation previous;
+
+        ReloadingKeyManager(X509ExtendedKeyManager manager) {
+            this.current = new Generation(0, manager);
+            this.previous = current;
+        }
+
+        void replace(X509ExtendedKeyManager manager) {
+            Generation replaced = current;
+            previous = replaced;
+            current = new Generation(replaced.number + 1, manager);
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            Generation generation = current;
+            return generation.tag(generation.manager.chooseEngineServerAlias(keyType, issuers, engine));
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            Generation generation = current;
+            return generation.tag(generation.manager.chooseServerAlias(keyType, issuers, socket));
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            Generation generation = current;
+            String[] aliases = generation.manager.getServerAliases(keyType, issuers);
+            if (aliases == null) return null;
+            for (int i = 0; i < aliases.length; i++) {
+                aliases[i] = generation.tag(aliases[i]);
+            }
+            return aliases;
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            Generation generation = generationOf(alias);
+            return (generation != null) ? generation.manager.getCertificateChain(Generation.untag(alias)) : null;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            Generation generation = generationOf(alias);
+            return (generation != null) ? generation.manager.getPrivateKey(Generation.untag(alias)) : null;
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+            return null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return null;
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        private Generation generationOf(String alias) {
+            if (alias == null) return null;
+            Generation generation = current;
+            if (alias.startsWith(generation.prefix)) return generation;
+            generation = previous;
+            return alias.startsWith(generation.prefix) ? generation : null;
+        }
+    }
+
+    /**
+     * Defines a class for one loaded keystore and the prefix its aliases are handed out with
+     */
+    private static final class Generation {
+        private final int number;
+        private final String prefix;
+        private final X509ExtendedKeyManager manager;
+
+        Generation(int number, X509ExtendedKeyManager manager) {
+            this.number = number;
+            this.prefix = number + ":";
+            this.manager = manager;
+        }
+
+        String tag(String alias) {
+            return (alias != null) ? prefix + alias : null;
+        }
+
+        static String untag(String alias) {
+            return alias.substring(alias.indexOf(':') + 1);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Defines the checks on what ContentCache serves from memory and when it reads a file again
+ */
+class ContentCacheTest {
+    @TempDir
+    Path root;
+
+    @Test
+    void hitReturnsTheCachedBody() throws Exception {
+        File file = write("a.txt", 100);
+        ContentCache cache = new ContentCache(1000, 1000);
+
+        byte[] first = cache.get(file, file.lastModified(), file.length());
+        byte[] second = cache.get(file, file.lastModified(), file.length());
+
+        assertArrayEquals(Files.readAllBytes(file.toPath()), first);
+        assertSame(first, second);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void changedFileIsReadAgain() throws Exception {
+        File file = write("a.txt", 100);
+        ContentCache cache = new ContentCache(1000, 1000);
+        byte[] before = cache.get(file, file.lastModified(), file.length());
+
+        Files.write(file.toPath(), new byte[50]);
+        byte[] after = cache.get(file, file.lastModified(), file.length());
+
+        assertNotSame(before, after);
+        assertEquals(50, after.length);
+        assertEquals(50, cache.getBytesHeld());
+    }
+
+    @Test
+    void leastRecentlyUsedFileIsEvicted() throws Exception {
+        File a = write("a.txt", 400);
+        File b = write("b.txt", 400);
+        File c = write("c.txt", 400);
+        ContentCache cache = new ContentCache(1000, 1000);
+        byte[] cachedA = cache.get(a, a.lastModified(), a.length());
+        cache.get(b, b.lastModified(), b.length());
+        cache.get(a, a.lastModified(), a.length());
+        cache.get(c, c.lastModified(), c.length());
+
+        assertSame(cachedA, cache.get(a, a.lastModified(), a.length()));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(800, cache.getBytesHeld());
+    }
+
+    @Test
+    void tooLargeFileIsNotCached() throws Exception {
+        File file = write("a.txt", 2000);
+        ContentCache cache = new ContentCache(1000, 1000);
+
+        assertNull(cache.get(file, file.lastModified(), file.length()));
+        assertEquals(0, cache.getBytesHeld());
+    }
+
+    @Test
+    void concurrentMissesShareOneRead() throws Exception {
+        // Large enough that compressing it takes long compared to starting the threads
+        File file = write("a.txt", 4 * 1024 * 1024);
+        ContentCache cache = new ContentCache(16 * 1024 * 1024, 16 * 1024 * 1024);
+        int threads = 8;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> bodies = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                bodies.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(file, file.lastModified(), file.length(), "gzip");
+                }));
+            }
+            byte[] first = bodies.get(0).get();
+            for (Future<byte[]> body : bodies) {
+                assertTrue(first == body.get(), "every request got the body of the one read");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private File write(String name, int length) throws Exception {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        Path path = root.resolve(name);
+        Files.write(path, bytes);
+        return path.toFile();
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Defines the checks that a request path can only name files under the document root, with and without the cache
+ */
+class FileMetadataCacheTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "/../secret.txt",
+            "/../../../../etc/hostname",
+            "/%2e%2e/secret.txt",
+            "/%2E%2E/%2e%2e/etc/hostname",
+            "/a/../../secret.txt",
+            "/..",
+            "/%2e%2e",
+            "/a/%2e%2e/%2e%2e/secret.txt",
+            "/..%2fsecret.txt",
+            "/index.html%00"
+    })
+    void rejectsPathsOutOfTheRoot(String requestPath) throws IOException {
+        Path root = makeRoot();
+        FileMetadataCache cache = new FileMetadataCache(root.toString(), 100, 60_000);
+        try {
+            assertNull(cache.get(requestPath));
+            assertNull(cache.get(requestPath), "not remembered either");
+            assertNull(FileMetadataCache.stat(FileMetadataCache.rootPathOf(root.toString()),
+                                              FileMetadataCache.decode(requestPath)));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"/index.html", "index.html", "//index.html", "/a/../index.html", "/./index.html",
+                            "/a/%2e%2e/index.html", "/a/b.txt", "/a/./b.txt"})
+    void servesPathsInsideTheRoot(String requestPath) throws IOException {
+        Path root = makeRoot();
+        FileMetadataCache cache = new FileMetadataCache(root.toString(), 100, 60_000);
+        try {
+            FileMetadataCache.Entry entry = cache.get(requestPath);
+            assertNotNull(entry);
+            assertTrue(entry.exists());
+            assertTrue(entry.getFile().toPath().startsWith(root.toAbsolutePath().normalize()));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    void resolvesRootAndMissingFilesInside() throws IOException {
+        Path root = makeRoot();
+        Path rootPath = FileMetadataCache.rootPathOf(root.toString());
+
+        assertEquals(rootPath.toFile(), FileMetadataCache.resolve(rootPath, "/"));
+        FileMetadataCache.Entry missing = FileMetadataCache.stat(rootPath, "/missing.html");
+        assertNotNull(missing);
+        assertFalse(missing.exists());
+    }
+
+    @Test
+    void relativeRootIsResolvedToo() {
+        Path rootPath = FileMetadataCache.rootPathOf(".");
+
+        assertEquals(new File("index.html").getAbsoluteFile().toPath().normalize().toFile(),
+                     FileMetadataCache.resolve(rootPath, "/index.html"));
+        assertNull(FileMetadataCache.resolve(rootPath, "/../index.html"));
+    }
+
+    /**
+     * Defines a method that makes a document root with a file next to it that must never be served
+     */
+    private Path makeRoot() throws IOException {
+        Path root = Files.createDirectories(directory.resolve("root"));
+        Files.writeString(root.resolve("index.html"), "<html></html>");
+        Files.createDirectories(root.resolve("a"));
+        Files.writeString(root.resolve("a").resolve("b.txt"), "b");
+        Files.writeString(directory.resolve("secret.txt"), "secret");
+        return root;
+    }
+}
@@ -0,0 +1,147 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Defines the checks on what GetCommand answers for a document root, run in process without a socket
+ */
+class GetCommandTest {
+    private static final String TEXT = "hello world ".repeat(500);
+
+    @TempDir
+    Path root;
+
+    @Test
+    void precompressedAndCompressedVariantsHaveDifferentTags() throws Exception {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, TEXT);
+        Path sidecar = root.resolve("a.txt.gz");
+        Files.write(sidecar, gzip(TEXT, Deflater.BEST_SPEED));
+        Files.setLastModifiedTime(sidecar, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        ServerContext context = newContext();
+
+        Response fromFile = get(context, "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+        Files.delete(sidecar);
+        Response compressed = get(context, "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+        Response plain = get(context, "GET /a.txt HTTP/1.1\r\n\r\n");
+
+        assertEquals("gzip", fromFile.header("Content-Encoding"));
+        assertEquals("gzip", compressed.header("Content-Encoding"));
+        assertArrayEquals(Files.readAllBytes(file), plain.body);
+        assertFalse(Arrays.equals(fromFile.body, compressed.body), "the two gzip bodies are different bytes");
+        assertNotEquals(fromFile.header("ETag"), compressed.header("ETag"));
+        assertNotEquals(plain.header("ETag"), compressed.header("ETag"));
+        assertNotEquals(plain.header("ETag"), fromFile.header("ETag"));
+    }
+
+    @Test
+    void precompressedTagFollowsTheGzFile() throws Exception {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, TEXT);
+        Path sidecar = root.resolve("a.txt.gz");
+        long modified = Files.getLastModifiedTime(file).toMillis() + 1000;
+        Files.write(sidecar, gzip(TEXT, Deflater.BEST_SPEED));
+        Files.setLastModifiedTime(sidecar, FileTime.fromMillis(modified));
+        ServerContext context = newContext();
+        String before = get(context, "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n").header("ETag");
+
+        // Recompressing the .gz copy leaves the original file alone but changes the representation
+        Files.write(sidecar, gzip(TEXT, Deflater.BEST_COMPRESSION));
+        Files.setLastModifiedTime(sidecar, FileTime.fromMillis(modified + 1000));
+        Response after = get(context, "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+
+        assertNotEquals(before, after.header("ETag"));
+        assertArrayEquals(Files.readAllBytes(sidecar), after.body);
+    }
+
+    @Test
+    void staleTagFromTheOtherVariantIsNotNotModified() throws Exception {
+        Path file = root.resolve("a.txt");
+        Files.writeString(file, TEXT);
+        Path sidecar = root.resolve("a.txt.gz");
+        Files.write(sidecar, gzip(TEXT, Deflater.BEST_SPEED));
+        Files.setLastModifiedTime(sidecar, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        ServerContext context = newContext();
+        String sidecarTag = get(context, "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n").header("ETag");
+        Files.delete(sidecar);
+
+        Response response = get(context, "GET /a.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\nIf-None-Match: "
+                                         + sidecarTag + "\r\n\r\n");
+
+        assertTrue(response.statusLine.contains(" 200 "), response.statusLine);
+    }
+
+    private ServerContext newContext() throws IOException {
+        // Metadata is checked on every request, so a changed .gz copy is seen at once
+        return new ServerContext(ServerConfig.parse(new String[] {
+                "-document_root", root.toString(), "-metrics", "off", "-stat_cache_entries", "0"}));
+    }
+
+    private static Response get(ServerContext context, String requestText) throws Exception {
+        HttpRequestParser parser = new HttpRequestParser();
+        parser.read(new ByteArrayInputStream(requestText.getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpResponse response = new HttpResponse(output);
+        new GetCommand(context).execute(parser.getRequest(), response);
+        response.getOutput().flush();
+        return new Response(output.toByteArray());
+    }
+
+    private static byte[] gzip(String text, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Defines a class for a response split into its status line, header block and body
+     */
+    private static final class Response {
+        private final String statusLine;
+        private final String head;
+        private final byte[] body;
+
+        Response(byte[] bytes) {
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            int end = text.indexOf("\r\n\r\n");
+            this.head = text.substring(0, end);
+            this.statusLine = head.substring(0, head.indexOf("\r\n"));
+            this.body = Arrays.copyOfRange(bytes, end + 4, bytes.length);
+        }
+
+        String header(String name) {
+            for (String line : head.split("\r\n")) {
+                if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+}
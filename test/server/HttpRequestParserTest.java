@@ -0,0 +1,486 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Defines the corpus HttpRequestParser is checked against: valid, pipelined, truncated, malformed and oversized
+ * requests, each also fed to the parser in 1, 3, 7 and 1000 byte pieces, which must not change what it finds
+ */
+class HttpRequestParserTest {
+    private static final String SIMPLE = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n";
+
+    @Test
+    void parsesRequestLineAndHeaders() throws IOException {
+        HttpRequest request = new HttpRequestParser().parseRequest(stream(SIMPLE, 1000));
+
+        assertNotNull(request);
+        assertEquals("GET", request.getMethod());
+        assertEquals("/index.html", request.getPath());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals(2, request.getHeaders().size());
+        assertEquals("localhost", request.getHeader("host"));
+        assertEquals("*/*", request.getHeader("Accept"));
+    }
+
+    @Test
+    void trimsWhitespaceAroundHeaderValues() throws IOException {
+        HttpRequest request = new HttpRequestParser()
+                .parseRequest(stream("GET / HTTP/1.0\r\nHost: \t localhost \t\r\nX-Empty:\r\n\r\n", 1000));
+
+        assertNotNull(request);
+        assertEquals("HTTP/1.0", request.getVersion());
+        assertEquals("localhost", request.getHeader("Host"));
+        assertEquals("", request.getHeader("X-Empty"));
+    }
+
+    @Test
+    void acceptsBareLineFeeds() throws IOException {
+        HttpRequest request = new HttpRequestParser()
+                .parseRequest(stream("GET /a.txt HTTP/1.1\nHost: localhost\nConnection: close\n\n", 1000));
+
+        assertNotNull(request);
+        assertEquals("/a.txt", request.getPath());
+        assertEquals("localhost", request.getHeader("Host"));
+        assertFalse(request.isKeepAlive());
+    }
+
+    @Test
+    void acceptsMixedLineEndings() throws IOException {
+        HttpRequest request = new HttpRequestParser()
+                .parseRequest(stream("GET / HTTP/1.1\nHost: localhost\r\nAccept: */*\n\r\n", 1000));
+
+        assertNotNull(request);
+        assertEquals("*/*", request.getHeader("Accept"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            // Whitespace before the colon (RFC 7230, section 3.2.4)
+            "GET / HTTP/1.1\r\nHost : localhost\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost\t: localhost\r\n\r\n",
+            // Obsolete line folding
+            "GET / HTTP/1.1\r\nHost: localhost\r\n continued\r\n\r\n",
+            // No name, no colon, or a control character in the value
+            "GET / HTTP/1.1\r\n: localhost\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost localhost\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: local\u0001host\r\n\r\n",
+            // A bare CR
+            "GET / HTTP/1.1\rHost: localhost\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: localhost\r\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: localhost\r\n\rX"
+    })
+    void rejectsMalformedHeaders(String input) throws IOException {
+        assertMalformed(input);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "GET / HTTP/2.0\r\n\r\n",
+            "GET / HTTP/1.2\r\n\r\n",
+            "GET / HTTP/1.10\r\n\r\n",
+            "GET / HTTP/1\r\n\r\n",
+            "GET / HTTX/1.1\r\n\r\n",
+            "GET / http/1.1x\r\n\r\n",
+            "GET /\r\n\r\n"
+    })
+    void rejectsBadVersions(String input) throws IOException {
+        assertMalformed(input);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "GET / HTTP/1.1 extra\r\n\r\n",
+            "GET / HTTP/1.1 \r\n\r\n",
+            "GET /a /b HTTP/1.1\r\n\r\n",
+            "GET /a\u0000b HTTP/1.1\r\n\r\n",
+            "GET /a<b> HTTP/1.1\r\n\r\n",
+            "GET\r\n\r\n",
+            " GET / HTTP/1.1\r\n\r\n"
+    })
+    void rejectsBadRequestLines(String input) throws IOException {
+        assertMalformed(input);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH", "CONNECT", "TRACE", "GETS", "GE"})
+    void rejectsUnsupportedMethods(String method) throws IOException {
+        assertMalformed(method + " / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    }
+
+    @Test
+    void rejectsOverlongMethodBeforeThePathArrives() {
+        HttpRequestParser parser = new HttpRequestParser();
+        feed(parser, "ABCDEFGHIJKLMNOPQRSTUVWXYZ");
+
+        assertEquals(HttpRequestParser.Result.MALFORMED, parser.parse());
+    }
+
+    @Test
+    void throwsEofWhenNothingArrives() {
+        assertThrows(EOFException.class, () -> new HttpRequestParser().parseRequest(stream("", 1000)));
+    }
+
+    @Test
+    void throwsEofForEveryTruncatedRequest() {
+        for (int length = 1; length < SIMPLE.length(); length++) {
+            String truncated = SIMPLE.substring(0, length);
+            for (int chunk : CHUNK_SIZES) {
+                assertThrows(EOFException.class,
+                        () -> new HttpRequestParser().parseRequest(stream(truncated, chunk)),
+                        "truncated after " + length + " bytes, read " + chunk + " at a time");
+            }
+        }
+    }
+
+    @Test
+    void reportsPartialRequestUntilHeaderEnds() {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertFalse(parser.hasPartialRequest());
+
+        feed(parser, "GET / HTTP/1.1\r\nHost: local");
+        assertEquals(HttpRequestParser.Result.INCOMPLETE, parser.parse());
+        assertTrue(parser.hasPartialRequest());
+
+        feed(parser, "host\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse());
+        assertFalse(parser.hasPartialRequest());
+    }
+
+    @Test
+    void throwsEofWhenPipelinedRequestIsCutShort() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        InputStream input = stream(SIMPLE + "GET /next HTTP/1.1\r\nHo", 7);
+
+        assertEquals("/index.html", parser.parseRequest(input).getPath());
+        assertThrows(EOFException.class, () -> parser.parseRequest(input));
+    }
+
+    @Test
+    void parsesPipelinedRequestsFromOneBuffer() {
+        String input = "GET /one HTTP/1.1\r\nHost: a\r\n\r\n"
+                + "\r\n"
+                + "GET /two HTTP/1.0\nHost: b\n\n"
+                + "GET /three HTTP/1.1\r\nHost: c\r\nConnection: close\r\n\r\n";
+        HttpRequestParser parser = new HttpRequestParser();
+        feed(parser, input);
+
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse());
+        assertEquals("/one", parser.getRequest().getPath());
+        assertEquals("a", parser.getRequest().getHeader("Host"));
+        assertTrue(parser.hasBufferedInput());
+
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse());
+        assertEquals("/two", parser.getRequest().getPath());
+        assertEquals("HTTP/1.0", parser.getRequest().getVersion());
+        assertEquals("b", parser.getRequest().getHeader("Host"));
+
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse());
+        assertEquals("/three", parser.getRequest().getPath());
+        assertEquals("c", parser.getRequest().getHeader("Host"));
+        assertFalse(parser.getRequest().isKeepAlive());
+        assertFalse(parser.hasBufferedInput());
+
+        assertEquals(HttpRequestParser.Result.INCOMPLETE, parser.parse());
+        assertFalse(parser.hasPartialRequest());
+    }
+
+    @Test
+    void stopsAtMalformedPipelinedRequest() {
+        HttpRequestParser parser = new HttpRequestParser();
+        feed(parser, SIMPLE + "POST /form HTTP/1.1\r\n\r\n" + SIMPLE);
+
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse());
+        assertEquals(HttpRequestParser.Result.MALFORMED, parser.parse());
+    }
+
+    @Test
+    void doesNotReuseRequestForDifferentPath() {
+        HttpRequestParser parser = new HttpRequestParser();
+        feed(parser, "GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\nGET /b HTTP/1.0\r\n\r\n");
+
+        parser.parse();
+        assertEquals("/a", parser.getRequest().getPath());
+        parser.parse();
+        assertEquals("/b", parser.getRequest().getPath());
+        parser.parse();
+        assertEquals("/b", parser.getRequest().getPath());
+        assertEquals("HTTP/1.0", parser.getRequest().getVersion());
+    }
+
+    /**
+     * Defines the inputs fed whole and in pieces; each must give the same requests and final result either way
+     */
+    private static final String[] CORPUS = {
+            SIMPLE,
+            "GET /a.txt HTTP/1.1\nHost: localhost\n\n",
+            "GET /one HTTP/1.1\r\nHost: a\r\n\r\nGET /two HTTP/1.1\r\nHost: b\r\n\r\nGET /three HTTP/1.0\r\n\r\n",
+            "GET /one HTTP/1.1\r\n\r\n\r\n\nGET /two HTTP/1.1\r\n\r\n",
+            "GET /photo%20album/cat.jpg?size=large&x=1 HTTP/1.1\r\nRange: bytes=0-99\r\nIf-None-Match: \"abc\"\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost : localhost\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: localhost\r\n folded\r\n\r\n",
+            "GET / HTTP/1.3\r\n\r\n",
+            "GET / HTTP/1.1 extra\r\n\r\n",
+            "DELETE /index.html HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1\r\n\r\nPOST / HTTP/1.1\r\n\r\n",
+            "GET / HTTP/1.1\r\nHost: local"
+    };
+
+    private static final int[] CHUNK_SIZES = {1, 3, 7, 1000};
+
+    @Test
+    void givesSameResultsWhateverTheReadSizes() {
+        for (String input : CORPUS) {
+            List<String> whole = parseAll(new HttpRequestParser(), input, input.length());
+            for (int chunk : CHUNK_SIZES) {
+                assertEquals(whole, parseAll(new HttpRequestParser(), input, chunk),
+                        "read " + chunk + " bytes at a time: " + input);
+            }
+        }
+    }
+
+    @Test
+    void givesExpectedResultsForCorpus() {
+        assertEquals(List.of("GET /index.html HTTP/1.1 [Host=localhost, Accept=*/*]", "INCOMPLETE"),
+                parseAll(new HttpRequestParser(), CORPUS[0], 3));
+        assertEquals(List.of("GET /one HTTP/1.1 [Host=a]", "GET /two HTTP/1.1 [Host=b]", "GET /three HTTP/1.0 []",
+                "INCOMPLETE"), parseAll(new HttpRequestParser(), CORPUS[2], 7));
+        assertEquals(List.of("GET /one HTTP/1.1 []", "GET /two HTTP/1.1 []", "INCOMPLETE"),
+                parseAll(new HttpRequestParser(), CORPUS[3], 1));
+        assertEquals(List.of("MALFORMED"), parseAll(new HttpRequestParser(), CORPUS[5], 1));
+        assertEquals(List.of("GET / HTTP/1.1 []", "MALFORMED"), parseAll(new HttpRequestParser(), CORPUS[10], 3));
+        assertEquals(List.of("INCOMPLETE"), parseAll(new HttpRequestParser(), CORPUS[11], 1000));
+    }
+
+    @Test
+    void compactsBufferAcrossPipelinedRequestsInSmallReads() {
+        // Six requests of about 300 bytes each overflow a 1 KB buffer, so unfinished requests must be moved
+        StringBuilder input = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            String value = "v".repeat(250) + i;
+            input.append("GET /").append(i).append(" HTTP/1.1\r\nX-Fill: ").append(value).append("\r\n\r\n");
+            expected.add("GET /" + i + " HTTP/1.1 [X-Fill=" + value + "]");
+        }
+        expected.add("INCOMPLETE");
+
+        for (int chunk : CHUNK_SIZES) {
+            assertEquals(expected, parseAll(new HttpRequestParser(1024, 10), input.toString(), chunk),
+                    "read " + chunk + " bytes at a time");
+        }
+    }
+
+    @Test
+    void acceptsHeaderBlockOfExactlyTheByteLimit() {
+        String request = requestOfLength(1024);
+
+        for (int chunk : CHUNK_SIZES) {
+            HttpRequestParser parser = new HttpRequestParser(1024, 100);
+            assertEquals(List.of("COMPLETE", "INCOMPLETE"), results(parser, request, chunk));
+            assertFalse(parser.isTooLarge());
+        }
+    }
+
+    @Test
+    void rejectsHeaderBlockOverTheByteLimit() {
+        String request = requestOfLength(1025);
+
+        for (int chunk : CHUNK_SIZES) {
+            HttpRequestParser parser = new HttpRequestParser(1024, 100);
+            assertEquals(List.of("TOO_LARGE"), results(parser, request, chunk), "read " + chunk + " at a time");
+            assertTrue(parser.isTooLarge());
+        }
+    }
+
+    @Test
+    void rejectsRequestLineOverTheByteLimit() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024, 100);
+        String request = "GET /" + "a".repeat(2000) + " HTTP/1.1\r\n\r\n";
+
+        assertNull(parser.parseRequest(stream(request, 7)));
+        assertTrue(parser.isTooLarge());
+    }
+
+    @Test
+    void acceptsHeaderCountUpToTheLimit() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(16 * 1024, 5);
+        HttpRequest request = parser.parseRequest(stream(requestWithHeaders(5), 3));
+
+        assertNotNull(request);
+        assertEquals(5, request.getHeaders().size());
+        assertFalse(parser.isTooLarge());
+    }
+
+    @Test
+    void rejectsHeaderCountOverTheLimit() throws IOException {
+        for (int chunk : CHUNK_SIZES) {
+            HttpRequestParser parser = new HttpRequestParser(16 * 1024, 5);
+            assertNull(parser.parseRequest(stream(requestWithHeaders(6), chunk)));
+            assertTrue(parser.isTooLarge());
+        }
+    }
+
+    @Test
+    void malformedRequestIsNotTooLarge() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(1024, 5);
+
+        assertNull(parser.parseRequest(stream("GET / HTTP/1.1\r\nBad Header: x\r\n\r\n", 1000)));
+        assertFalse(parser.isTooLarge());
+    }
+
+    @Test
+    void defaultLimitsMatchTheGuardDefaults() {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertEquals(List.of("COMPLETE", "INCOMPLETE"),
+                results(parser, requestOfLength(HttpRequestParser.DEFAULT_MAX_HEADER_BYTES), 1000));
+        assertEquals(List.of("TOO_LARGE"), results(new HttpRequestParser(),
+                requestOfLength(HttpRequestParser.DEFAULT_MAX_HEADER_BYTES + 1), 1000));
+        assertEquals(List.of("TOO_LARGE"), results(new HttpRequestParser(),
+                requestWithHeaders(HttpRequestParser.DEFAULT_MAX_HEADER_COUNT + 1), 1000));
+    }
+
+    @Test
+    void guardParsersUseItsLimits() throws IOException {
+        SlowClientGuard guard = new SlowClientGuard(0, 0, 0, 0, 2048, 3);
+
+        HttpRequestParser parser = guard.newParser();
+        assertNull(parser.parseRequest(stream(requestOfLength(2049), 1000)));
+        assertTrue(parser.isTooLarge());
+
+        parser = guard.newParser();
+        assertNull(parser.parseRequest(stream(requestWithHeaders(4), 1000)));
+        assertTrue(parser.isTooLarge());
+
+        assertNotNull(guard.newParser().parseRequest(stream(requestWithHeaders(3), 1000)));
+    }
+
+    @Test
+    void answersTooLargeWith431() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ResponseWriter.sendHeaderTooLarge(output);
+        String response = output.toString(StandardCharsets.ISO_8859_1);
+
+        assertTrue(response.startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"), response);
+        assertTrue(response.endsWith("\r\n\r\n"), response);
+    }
+
+    private static void assertMalformed(String input) throws IOException {
+        for (int chunk : CHUNK_SIZES) {
+            HttpRequestParser parser = new HttpRequestParser();
+            assertNull(parser.parseRequest(stream(input, chunk)), "read " + chunk + " at a time: " + input);
+            assertFalse(parser.isTooLarge());
+        }
+    }
+
+    /**
+     * Defines a method that builds a request of exactly the given length, padded with one header value
+     */
+    private static String requestOfLength(int length) {
+        String head = "GET / HTTP/1.1\r\nX-Fill: ";
+        String tail = "\r\n\r\n";
+        return head + "x".repeat(length - head.length() - tail.length()) + tail;
+    }
+
+    private static String requestWithHeaders(int count) {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < count; i++) {
+            request.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+        }
+        return request.append("\r\n").toString();
+    }
+
+    /**
+     * Defines a method that feeds the input to the parser in pieces and describes each request completed, up to
+     * the first result that is not COMPLETE, which ends the list
+     */
+    private static List<String> parseAll(HttpRequestParser parser, String input, int chunk) {
+        List<String> parsed = new ArrayList<>();
+        drive(parser, input, chunk, result -> {
+            if (result != HttpRequestParser.Result.COMPLETE) {
+                parsed.add(result.name());
+                return;
+            }
+            HttpRequest request = parser.getRequest();
+            List<String> headers = new ArrayList<>();
+            for (int i = 0; i < request.getHeaders().size(); i++) {
+                headers.add(request.getHeaders().getName(i) + "=" + request.getHeaders().getValue(i));
+            }
+            parsed.add(request.getMethod() + " " + request.getPath() + " " + request.getVersion() + " " + headers);
+        });
+        return parsed;
+    }
+
+    private static List<String> results(HttpRequestParser parser, String input, int chunk) {
+        List<String> results = new ArrayList<>();
+        drive(parser, input, chunk, result -> results.add(result.name()));
+        return results;
+    }
+
+    /**
+     * Defines a method that reads the input into the parser chunk bytes at a time, parsing after each read, and
+     * reports every COMPLETE and the result parsing stops at once the input has run out (or is rejected)
+     */
+    private static void drive(HttpRequestParser parser, String input, int chunk,
+                              Consumer<HttpRequestParser.Result> sink) {
+        InputStream stream = stream(input, chunk);
+        boolean ended = false;
+        while (true) {
+            HttpRequestParser.Result result = parser.parse();
+            if (result == HttpRequestParser.Result.COMPLETE) {
+                sink.accept(result);
+                continue;
+            }
+            if (result != HttpRequestParser.Result.INCOMPLETE || ended) {
+                sink.accept(result);
+                return;
+            }
+            try {
+                ended = parser.read(stream) == -1;
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static void feed(HttpRequestParser parser, String input) {
+        try {
+            InputStream stream = stream(input, input.length());
+            while (parser.read(stream) > 0) {
+                // Reads until the parser has everything
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Defines a method that makes a stream returning at most chunk bytes from each read, like a socket the
+     * request arrives on in pieces
+     */
+    private static InputStream stream(String input, int chunk) {
+        return new ByteArrayInputStream(input.getBytes(StandardCharsets.ISO_8859_1)) {
+            @Override
+            public synchronized int read(byte[] target, int offset, int length) {
+                return super.read(target, offset, Math.min(length, chunk));
+            }
+        };
+    }
+}
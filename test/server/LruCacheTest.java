@@ -0,0 +1,88 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Defines the checks on which values LruCache keeps within its budget and which it hands back
+ */
+class LruCacheTest {
+    private final List<byte[]> removed = new ArrayList<>();
+    private final LruCache<byte[]> cache = new LruCache<>(10, value -> value.length, removed::add);
+
+    @Test
+    void evictsLeastRecentlyUsedFirst() {
+        byte[] a = new byte[4];
+        byte[] b = new byte[4];
+        byte[] c = new byte[4];
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.get("a");
+        cache.put("c", c);
+
+        assertSame(a, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertSame(c, cache.get("c"));
+        assertEquals(List.of(b), removed);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(8, cache.getBytesHeld());
+    }
+
+    @Test
+    void evictsAsManyAsNeeded() {
+        for (int i = 0; i < 5; i++) {
+            cache.put("small" + i, new byte[2]);
+        }
+        cache.put("large", new byte[9]);
+
+        assertEquals(1, cache.size());
+        assertEquals(9, cache.getBytesHeld());
+        assertEquals(5, cache.getEvictions());
+    }
+
+    @Test
+    void replacingHandsBackTheOldValue() {
+        byte[] old = new byte[3];
+        byte[] current = new byte[5];
+        cache.put("a", old);
+        cache.put("a", current);
+
+        assertSame(current, cache.get("a"));
+        assertEquals(List.of(old), removed);
+        assertEquals(5, cache.getBytesHeld());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void removeOnlyDropsTheGivenValue() {
+        byte[] old = new byte[3];
+        byte[] current = new byte[5];
+        cache.put("a", old);
+        cache.put("a", current);
+        removed.clear();
+
+        assertFalse(cache.remove("a", old));
+        assertTrue(cache.remove("a", current));
+        assertNull(cache.get("a"));
+        assertEquals(List.of(current), removed);
+        assertEquals(0, cache.getBytesHeld());
+    }
+
+    @Test
+    void valueLargerThanTheBudgetIsNotKept() {
+        byte[] huge = new byte[11];
+        cache.put("huge", huge);
+
+        assertNull(cache.get("huge"));
+        assertEquals(List.of(huge), removed);
+        assertEquals(0, cache.getBytesHeld());
+    }
+}